@@ -13,6 +13,7 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Function;
@@ -33,11 +34,9 @@ public class EquoBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
     private static final String SWM_SCHEME = "swm://postMessage/";
 
     private final List<Runnable> pageLoadListeners = new CopyOnWriteArrayList<>();
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
-        Thread t = new Thread(r, "swm-message-handler");
-        t.setDaemon(true);
-        return t;
-    });
+    private final List<Runnable> beforeBridgeInjectionListeners = new CopyOnWriteArrayList<>();
+    private volatile Executor messageExecutor;
+    private ExecutorService ownedExecutor;
     private ChromiumBrowser browser;
     private JPanel container;
     private volatile Function<String, String> incomingMessageHandler;
@@ -79,14 +78,28 @@ public class EquoBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
         this.incomingMessageHandler = handler;
     }
 
+    @Override
+    public void setMessageExecutor(Executor executor) {
+        this.messageExecutor = executor;
+    }
+
     @Override
     public void addPageLoadListener(Runnable callback) {
         pageLoadListeners.add(callback);
     }
 
+    @Override
+    public void addBeforeBridgeInjectionListener(Runnable callback) {
+        beforeBridgeInjectionListeners.add(callback);
+    }
+
     @Override
     public void close() {
-        executor.shutdownNow();
+        synchronized (this) {
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdownNow();
+            }
+        }
         if (browser != null) {
             browser.close();
         }
@@ -115,6 +128,8 @@ public class EquoBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
         browser.subscribe().onLoadEnd(event -> {
             logger.info("Page load complete (status={})", event.getHttpStatusCode());
 
+            runListeners(beforeBridgeInjectionListeners);
+
             // 1. Inject the common bridge JS
             browser.executeJavaScript(BridgeScriptLoader.getScript());
 
@@ -134,16 +149,20 @@ public class EquoBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
                 "}"
             );
 
-            for (Runnable listener : pageLoadListeners) {
-                try {
-                    listener.run();
-                } catch (Exception e) {
-                    logger.error("Error in page load listener", e);
-                }
-            }
+            runListeners(pageLoadListeners);
         });
     }
 
+    private static void runListeners(List<Runnable> listeners) {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error("Error in page load listener", e);
+            }
+        }
+    }
+
     private void setupConsoleListener() {
         browser.addConsoleListener((level, message, source, line) -> {
             // CEF levels: 0=DEFAULT, 1=VERBOSE, 2=INFO(console.log), 3+=WARNING/ERROR
@@ -163,7 +182,7 @@ public class EquoBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
             logger.debug("Received from JS: {}", json);
 
             if (incomingMessageHandler != null) {
-                executor.execute(() -> {
+                messageExecutor().execute(() -> {
                     try {
                         String responseJson = incomingMessageHandler.apply(json);
                         if (responseJson != null) {
@@ -179,4 +198,24 @@ public class EquoBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
         }
     }
 
+    /**
+     * The executor set with {@link #setMessageExecutor(Executor)}, or a thread of our own.
+     */
+    private Executor messageExecutor() {
+        Executor executor = messageExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (ownedExecutor == null) {
+                ownedExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "swm-message-handler");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return ownedExecutor;
+        }
+    }
+
 }
@@ -15,6 +15,7 @@ import org.slf4j.LoggerFactory;
 import java.awt.Component;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 /**
@@ -31,10 +32,12 @@ public class JxBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(JxBrowserAdapter.class);
 
     private final List<Runnable> pageLoadListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> beforeBridgeInjectionListeners = new CopyOnWriteArrayList<>();
     private final Engine engine;
     private Browser browser;
     private JxBrowserBridge bridge;
     private Function<String, String> pendingIncomingMessageHandler;
+    private Executor messageExecutor;
     private boolean ownsEngine;
 
     /**
@@ -91,7 +94,7 @@ public class JxBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
                 event.consoleMessage().message())
         );
 
-        bridge = new JxBrowserBridge(browser, this::sendMessage);
+        bridge = new JxBrowserBridge(browser, this::sendMessage, messageExecutor);
 
         if (pendingIncomingMessageHandler != null) {
             bridge.setIncomingMessageHandler(pendingIncomingMessageHandler);
@@ -101,14 +104,9 @@ public class JxBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
         browser.navigation().on(FrameLoadFinished.class, event -> {
             if (event.frame().isMain()) {
                 logger.info("Page loaded: {}", event.url());
+                runListeners(beforeBridgeInjectionListeners);
                 bridge.injectBridge();
-                for (Runnable listener : pageLoadListeners) {
-                    try {
-                        listener.run();
-                    } catch (Exception e) {
-                        logger.error("Error in page load listener", e);
-                    }
-                }
+                runListeners(pageLoadListeners);
             }
         });
 
@@ -135,6 +133,17 @@ public class JxBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
         });
     }
 
+    @Override
+    public void sendMessages(List<String> jsonMessages) {
+        String batch = EmbeddedBrowser.toJsonArray(jsonMessages);
+        browser.mainFrame().ifPresent(frame -> {
+            JsObject window = frame.executeJavaScript("window");
+            if (window != null) {
+                window.call("swmReceiveMessages", batch);
+            }
+        });
+    }
+
     @Override
     public void setIncomingMessageHandler(Function<String, String> handler) {
         if (bridge != null) {
@@ -144,11 +153,21 @@ public class JxBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
         }
     }
 
+    @Override
+    public void setMessageExecutor(Executor executor) {
+        this.messageExecutor = executor;
+    }
+
     @Override
     public void addPageLoadListener(Runnable callback) {
         pageLoadListeners.add(callback);
     }
 
+    @Override
+    public void addBeforeBridgeInjectionListener(Runnable callback) {
+        beforeBridgeInjectionListeners.add(callback);
+    }
+
     @Override
     public void close() {
         if (bridge != null) {
@@ -168,4 +187,14 @@ public class JxBrowserAdapter implements EmbeddedBrowser, AutoCloseable {
     public Browser getBrowser() {
         return browser;
     }
+
+    private static void runListeners(List<Runnable> listeners) {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error("Error in page load listener", e);
+            }
+        }
+    }
 }
@@ -7,6 +7,7 @@ import health.tiro.formfiller.swing.BridgeScriptLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
@@ -23,16 +24,27 @@ public class JxBrowserBridge implements AutoCloseable {
 
     private final Browser browser;
     private final Consumer<String> responseSender;
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
-        Thread t = new Thread(r, "swm-message-handler");
-        t.setDaemon(true);
-        return t;
-    });
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
     private volatile Function<String, String> incomingMessageHandler;
 
-    JxBrowserBridge(Browser browser, Consumer<String> responseSender) {
+    /**
+     * @param executor serial executor for incoming messages, or null to start a thread of its own
+     */
+    JxBrowserBridge(Browser browser, Consumer<String> responseSender, Executor executor) {
         this.browser = browser;
         this.responseSender = responseSender;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "swm-message-handler");
+                t.setDaemon(true);
+                return t;
+            });
+            this.executor = ownedExecutor;
+        }
     }
 
     void setIncomingMessageHandler(Function<String, String> handler) {
@@ -63,7 +75,9 @@ public class JxBrowserBridge implements AutoCloseable {
     }
     @Override
     public void close() {
-        executor.shutdownNow();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
     }
 
     /**
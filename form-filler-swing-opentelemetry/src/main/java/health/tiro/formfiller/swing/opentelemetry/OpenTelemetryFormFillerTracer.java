@@ -0,0 +1,224 @@
+package health.tiro.formfiller.swing.opentelemetry;
+
+import health.tiro.formfiller.swing.tracing.FormFillerTracer;
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OpenTelemetry-backed tracer. Created automatically for {@link GlobalOpenTelemetry} by
+ * {@code FormFillerTracerFactory} when this module is on the classpath.
+ * <p>
+ * Each FormFiller session is a span, with the startup phases as child spans. Outbound
+ * requests (Java to JS) open a {@link SpanKind#CLIENT} span that ends when the page's response
+ * with the matching {@code responseToMessageId} arrives, so its duration is the full
+ * Java→JS→Java round trip. Inbound messages (JS to Java) get a {@link SpanKind#SERVER} span
+ * covering their handling, which is current on the handling thread while listeners run inline.
+ * <p>
+ * Context crosses threads: requests sent while a span is current (e.g. from a listener
+ * notified on the Swing EDT, which FormFiller runs in the context of the handling thread)
+ * become its children; otherwise they are children of the session.
+ */
+public class OpenTelemetryFormFillerTracer implements FormFillerTracer {
+
+    private static final String INSTRUMENTATION_NAME = "health.tiro.formfiller";
+    private static final AttributeKey<String> TARGET_URL = AttributeKey.stringKey("formfiller.target_url");
+    private static final AttributeKey<String> BROWSER_ADAPTER = AttributeKey.stringKey("formfiller.browser_adapter");
+    private static final AttributeKey<String> MESSAGE_TYPE = AttributeKey.stringKey("swm.message.type");
+    private static final AttributeKey<String> MESSAGE_ID = AttributeKey.stringKey("swm.message.id");
+    private static final AttributeKey<String> RESPONSE_TO_MESSAGE_ID = AttributeKey.stringKey("swm.message.response_to_id");
+    private static final AttributeKey<Long> MESSAGE_LENGTH = AttributeKey.longKey("swm.message.length");
+
+    /**
+     * Requests whose response never comes, e.g. queued displays replaced before the handshake,
+     * are ended as unanswered once this many newer ones are waiting.
+     */
+    static final int MAX_PENDING_REQUESTS = 256;
+
+    /**
+     * Inbound messages being handled, per thread: started by traceMessageReceived and ended
+     * by traceMessageHandled on the same thread.
+     */
+    private static final ThreadLocal<Handling> handling = new ThreadLocal<>();
+
+    private final Tracer tracer;
+    private final Map<String, Span> pendingRequests = new LinkedHashMap<String, Span>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Span> eldest) {
+            if (size() <= MAX_PENDING_REQUESTS) {
+                return false;
+            }
+            endUnanswered(eldest.getValue(), "No response received");
+            return true;
+        }
+    };
+    private volatile Span session;
+
+    public OpenTelemetryFormFillerTracer() {
+        this(GlobalOpenTelemetry.get());
+    }
+
+    public OpenTelemetryFormFillerTracer(OpenTelemetry openTelemetry) {
+        this.tracer = openTelemetry.getTracer(INSTRUMENTATION_NAME);
+    }
+
+    @Override
+    public void startSession(String targetUrl, String browserType) {
+        session = tracer.spanBuilder("FormFiller session")
+            .setNoParent()
+            .setAttribute(TARGET_URL, targetUrl != null ? targetUrl : "")
+            .setAttribute(BROWSER_ADAPTER, browserType)
+            .startSpan();
+    }
+
+    @Override
+    public void traceBridgeInjected() {
+        Span s = this.session;
+        if (s == null) return;
+        s.addEvent("bridge injected");
+    }
+
+    @Override
+    public void traceMessageSent(String messageType, String messageId, String json) {
+        Span s = this.session;
+        if (s == null || messageId == null) return;
+
+        Span request = tracer.spanBuilder(messageType)
+            .setSpanKind(SpanKind.CLIENT)
+            .setParent(parentContext(s))
+            .setAttribute(MESSAGE_TYPE, messageType)
+            .setAttribute(MESSAGE_ID, messageId)
+            .setAttribute(MESSAGE_LENGTH, (long) json.length())
+            .startSpan();
+        Span previous;
+        synchronized (pendingRequests) {
+            previous = pendingRequests.put(messageId, request);
+        }
+        if (previous != null) {
+            endUnanswered(previous, "Message ID reused");
+        }
+    }
+
+    @Override
+    public void traceMessageReceived(String messageType, String messageId, String json) {
+        Span s = this.session;
+        if (s == null) return;
+
+        Span span = tracer.spanBuilder(messageType)
+            .setSpanKind(SpanKind.SERVER)
+            .setParent(Context.current().with(s))
+            .setAttribute(MESSAGE_TYPE, messageType)
+            .setAttribute(MESSAGE_LENGTH, (long) json.length())
+            .startSpan();
+        if (messageId != null) {
+            span.setAttribute(MESSAGE_ID, messageId);
+        }
+        handling.set(new Handling(span, span.makeCurrent()));
+    }
+
+    @Override
+    public void traceResponseReceived(String responseToMessageId) {
+        Span request;
+        synchronized (pendingRequests) {
+            request = pendingRequests.remove(responseToMessageId);
+        }
+        if (request != null) {
+            request.end();
+        }
+        Handling current = handling.get();
+        if (current != null) {
+            current.span.setAttribute(RESPONSE_TO_MESSAGE_ID, responseToMessageId);
+        }
+    }
+
+    @Override
+    public void traceMessageHandled(String messageType, String messageId, long durationNanos) {
+        Handling current = handling.get();
+        if (current == null) return;
+        handling.remove();
+        current.scope.close();
+        current.span.end();
+    }
+
+    @Override
+    public void traceHandshakeReceived() {
+        Span s = this.session;
+        if (s == null) return;
+        s.addEvent("handshake received");
+    }
+
+    @Override
+    public void traceFormSubmitted() {
+        Span s = this.session;
+        if (s == null) return;
+        s.addEvent("form submitted");
+    }
+
+    @Override
+    public void traceStartupPhase(String phase, long startEpochNanos, long durationNanos) {
+        Span s = this.session;
+        if (s == null) return;
+        tracer.spanBuilder("startup " + phase)
+            .setParent(Context.root().with(s))
+            .setStartTimestamp(startEpochNanos, TimeUnit.NANOSECONDS)
+            .startSpan()
+            .end(startEpochNanos + durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Runnable wrap(Runnable task) {
+        return Context.current().wrap(task);
+    }
+
+    @Override
+    public void finishSession() {
+        Span s = this.session;
+        if (s == null) return;
+        List<Span> unanswered;
+        synchronized (pendingRequests) {
+            unanswered = new ArrayList<>(pendingRequests.values());
+            pendingRequests.clear();
+        }
+        for (Span request : unanswered) {
+            endUnanswered(request, "Session finished before a response was received");
+        }
+        s.end();
+        this.session = null;
+    }
+
+    /**
+     * The current context if a span is active in it, e.g. a listener handling an inbound
+     * message, otherwise the session.
+     */
+    private static Context parentContext(Span session) {
+        Context current = Context.current();
+        return Span.fromContext(current).getSpanContext().isValid() ? current : current.with(session);
+    }
+
+    private static void endUnanswered(Span request, String description) {
+        request.setStatus(StatusCode.ERROR, description);
+        request.end();
+    }
+
+    private static final class Handling {
+        final Span span;
+        final Scope scope;
+
+        Handling(Span span, Scope scope) {
+            this.span = span;
+            this.scope = scope;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package health.tiro.formfiller.swing;
 
 import java.awt.Component;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 
 /**
@@ -53,14 +55,33 @@ public interface EmbeddedBrowser extends AutoCloseable {
      * @param json the JSON message to send
      */
     default void sendMessage(String json) {
-        String escaped = json.replace("\\", "\\\\")
-                             .replace("'", "\\'")
-                             .replace("\n", "\\n")
-                             .replace("\r", "\\r")
-                             .replace("\u2028", "\\u2028")
-                             .replace("\u2029", "\\u2029")
-                             .replace("\u0000", "\\u0000");
-        executeJavaScript("window.swmReceiveMessage('" + escaped + "');");
+        executeJavaScript("window.swmReceiveMessage('" + JsStrings.escapeSingleQuoted(json) + "');");
+    }
+
+    /**
+     * Send several JSON messages from Java to JS in one call; the bridge handles them in order.
+     * Default implementation passes them as one JSON array to {@code window.swmReceiveMessages(...)}
+     * via {@link #executeJavaScript(String)}.
+     *
+     * @param jsonMessages the JSON messages to send
+     */
+    default void sendMessages(List<String> jsonMessages) {
+        executeJavaScript("window.swmReceiveMessages('" + JsStrings.escapeSingleQuoted(toJsonArray(jsonMessages)) + "');");
+    }
+
+    /**
+     * Join JSON messages into the text of a JSON array.
+     */
+    static String toJsonArray(List<String> jsonMessages) {
+        StringBuilder array = new StringBuilder(2 + jsonMessages.stream().mapToInt(String::length).sum() + jsonMessages.size());
+        array.append('[');
+        for (int i = 0; i < jsonMessages.size(); i++) {
+            if (i > 0) {
+                array.append(',');
+            }
+            array.append(jsonMessages.get(i));
+        }
+        return array.append(']').toString();
     }
 
     /**
@@ -71,5 +92,27 @@ public interface EmbeddedBrowser extends AutoCloseable {
      */
     void addPageLoadListener(Runnable callback);
 
+    /**
+     * Register a callback for main-frame page load completion that runs before the JS bridge
+     * is injected, so that {@link FormFiller} can tell the page load and the injection apart in
+     * its {@link StartupTimeline}. Page load listeners run after the injection. The default
+     * implementation ignores the callback.
+     *
+     * @param callback invoked when the main frame finishes loading, before the bridge is injected
+     */
+    default void addBeforeBridgeInjectionListener(Runnable callback) {
+    }
+
+    /**
+     * Set the executor on which incoming messages are handled. It must run tasks one at a time,
+     * in order. Adapters that handle messages off the browser thread use it instead of starting
+     * a thread of their own. Must be called before {@link #createComponent()}; the default
+     * implementation ignores it.
+     *
+     * @param executor the executor, e.g. {@code SmartMessagingRuntime.newSessionExecutor()}
+     */
+    default void setMessageExecutor(Executor executor) {
+    }
+
     void close();
 }
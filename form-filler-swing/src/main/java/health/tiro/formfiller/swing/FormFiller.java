@@ -4,12 +4,13 @@ import health.tiro.formfiller.swing.tracing.FormFillerTracer;
 import health.tiro.formfiller.swing.tracing.FormFillerTracerFactory;
 import health.tiro.swm.AbstractSmartMessageHandler;
 import health.tiro.swm.events.*;
-import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.SwingUtilities;
 import java.awt.Component;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.regex.Matcher;
@@ -38,28 +39,38 @@ import java.util.regex.Pattern;
 public class FormFiller implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(FormFiller.class);
+    private static final ScheduledExecutorService timeoutScheduler = createTimeoutScheduler();
+    private static final ClassValue<Boolean> usesParsedResources = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("onFormSubmitted", FormSubmittedEvent.class).getDeclaringClass()
+                    == FormFillerListener.class;
+            } catch (NoSuchMethodException e) {
+                return true;
+            }
+        }
+    };
     private static final Pattern MESSAGE_TYPE_PATTERN = Pattern.compile(
         "\"messageType\"\\s*:\\s*\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
 
+    private final StartupTimeline startupTimeline = new StartupTimeline();
     private final FormFillerConfig config;
     private final FormFillerTracer tracer;
     private final EmbeddedBrowser browser;
     private final AbstractSmartMessageHandler handler;
     private final Component component;
     private volatile CompletableFuture<Void> handshakeReceived = new CompletableFuture<>();
-    private final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
-        Thread t = new Thread(r, "swm-handshake-timeout");
-        t.setDaemon(true);
-        return t;
-    });
+    private final OutboundQueue outboundQueue;
     private final List<FormFillerListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile String displayMessageId;
 
     /**
      * Creates a new FormFiller.
      *
      * @param config  configuration (target URL, timeouts)
      * @param browser the embedded browser adapter
-     * @param handler the SMART Web Messaging handler (R4 or R5)
+     * @param handler the SMART Web Messaging handler (R4 or R5), standalone or a session of a {@code SmartMessagingRuntime}
      */
     public FormFiller(FormFillerConfig config, EmbeddedBrowser browser, AbstractSmartMessageHandler handler) {
         this.config = config;
@@ -67,25 +78,93 @@ public class FormFiller implements AutoCloseable {
         this.handler = handler;
         this.tracer = FormFillerTracerFactory.create();
 
+        // Handler sessions of a runtime share its worker pool instead of a thread per browser
+        if (handler.getRuntime() != null) {
+            browser.setMessageExecutor(handler.getRuntime().newSessionExecutor());
+        }
+
         tracer.startSession(config.getTargetUrl(), browser.getClass().getSimpleName());
 
-        // Wire incoming messages: JS → handler → response sent by adapter via return value
-        browser.setIncomingMessageHandler(json -> {
-            tracer.traceMessageReceived(extractMessageType(json), handler.getMessageIdFromJson(json), json);
-            return handler.handleMessage(json);
+        // Wire incoming messages: JS → handler → response sent by adapter via return value.
+        // The handler reports each message's type and IDs once it has decoded the envelope.
+        browser.setIncomingMessageHandler(handler::handleMessage);
+        handler.setInboundMessageObserver(new AbstractSmartMessageHandler.InboundMessageObserver() {
+            @Override
+            public void onMessageReceived(String messageType, String messageId, String responseToMessageId,
+                                          String json) {
+                if (!startupTimeline.isComplete()) {
+                    recordStartup(messageType, responseToMessageId);
+                }
+                tracer.traceMessageReceived(messageType, messageId, json);
+                if (responseToMessageId != null) {
+                    tracer.traceResponseReceived(responseToMessageId);
+                }
+            }
+
+            @Override
+            public void onMessageHandled(String messageType, String messageId, long durationNanos) {
+                tracer.traceMessageHandled(messageType, messageId, durationNanos);
+            }
         });
 
         // Wire outgoing messages: handler → JS (queued until handshake completes)
-        handler.setMessageSender(json -> {
-            tracer.traceMessageSent(extractMessageType(json), handler.getMessageIdFromJson(json), json);
-            return handshakeReceived.thenApply(v -> {
-                browser.sendMessage(json);
-                return null;
+        this.outboundQueue = new OutboundQueue(config.getOutboundQueueCapacity(), config.getCoalescedMessageTypes(),
+            messages -> {
+                if (messages.size() == 1) {
+                    browser.sendMessage(messages.get(0));
+                } else {
+                    browser.sendMessages(messages);
+                }
             });
+        handler.setMessageSender(new AbstractSmartMessageHandler.MessageSender() {
+            @Override
+            public CompletableFuture<String> sendMessage(String json) {
+                return sendMessages(Collections.singletonList(json));
+            }
+
+            @Override
+            public CompletableFuture<String> sendMessages(List<String> jsonMessages) {
+                List<String> messageTypes = new ArrayList<>(jsonMessages.size());
+                List<String> messageIds = new ArrayList<>(jsonMessages.size());
+                for (String json : jsonMessages) {
+                    messageTypes.add(extractMessageType(json));
+                    messageIds.add(handler.getMessageIdFromJson(json));
+                }
+                return sendRequests(messageTypes, messageIds, jsonMessages);
+            }
+
+            @Override
+            public CompletableFuture<String> sendRequest(String messageType, String messageId, String json) {
+                return sendRequests(Collections.singletonList(messageType), Collections.singletonList(messageId),
+                    Collections.singletonList(json));
+            }
+
+            @Override
+            public CompletableFuture<String> sendRequests(List<String> messageTypes, List<String> messageIds,
+                                                          List<String> jsonMessages) {
+                for (int i = 0; i < jsonMessages.size(); i++) {
+                    String messageType = messageTypes.get(i);
+                    if ("sdc.displayQuestionnaire".equals(messageType) && !startupTimeline.isComplete()) {
+                        // The latest one, as queued displays replace each other until the handshake
+                        displayMessageId = messageIds.get(i);
+                    }
+                    tracer.traceMessageSent(messageType, messageIds.get(i), jsonMessages.get(i));
+                }
+                return outboundQueue.enqueue(jsonMessages, messageTypes, messageIds);
+            }
+
+            @Override
+            public boolean withdrawRequest(String messageId) {
+                return outboundQueue.withdraw(messageId);
+            }
         });
 
-        // Track bridge injection on page load
-        browser.addPageLoadListener(() -> tracer.traceBridgeInjected());
+        // Track page load and bridge injection
+        browser.addBeforeBridgeInjectionListener(() -> completeStartupPhase(StartupTimeline.Phase.PAGE_LOAD));
+        browser.addPageLoadListener(() -> {
+            completeStartupPhase(StartupTimeline.Phase.BRIDGE_INJECTION);
+            tracer.traceBridgeInjected();
+        });
 
         // Listen for SMART Web Messaging events
         handler.addListener(new SmartMessageListener() {
@@ -94,6 +173,7 @@ public class FormFiller implements AutoCloseable {
                 logger.info("Handshake received from web page");
                 tracer.traceHandshakeReceived();
                 handshakeReceived.complete(null);
+                outboundQueue.open();
                 fireHandshakeReceived();
             }
 
@@ -101,7 +181,13 @@ public class FormFiller implements AutoCloseable {
             public void onFormSubmitted(FormSubmittedEvent event) {
                 logger.info("Form submitted");
                 tracer.traceFormSubmitted();
-                fireFormSubmitted(event.getResponse(), event.getOutcome());
+                if (needsParsedResources()) {
+                    // Parse here rather than on the EDT; a resource that fails to parse
+                    // is answered with an error response
+                    event.getResponse();
+                    event.getOutcome();
+                }
+                fireFormSubmitted(event);
             }
 
             @Override
@@ -113,6 +199,7 @@ public class FormFiller implements AutoCloseable {
 
         // Create the browser component
         this.component = browser.createComponent();
+        completeStartupPhase(StartupTimeline.Phase.CREATE_COMPONENT);
 
         // Load the target URL (use default page if no custom URL is configured)
         String url = config.getTargetUrl();
@@ -120,6 +207,32 @@ public class FormFiller implements AutoCloseable {
             url = DefaultPageLoader.createPage(config.getSdcEndpointAddress(), config.getDataEndpointAddress(), config.getSdkUrl());
         }
         browser.loadUrl(url);
+        completeStartupPhase(StartupTimeline.Phase.LOAD_URL);
+    }
+
+    // ========== Startup timeline ==========
+
+    /**
+     * Track the handshake and the acknowledgement of the first questionnaire.
+     */
+    private void recordStartup(String messageType, String responseToMessageId) {
+        if ("status.handshake".equals(messageType)) {
+            completeStartupPhase(StartupTimeline.Phase.HANDSHAKE);
+            return;
+        }
+        String awaitedMessageId = displayMessageId;
+        if (awaitedMessageId != null && awaitedMessageId.equals(responseToMessageId)) {
+            completeStartupPhase(StartupTimeline.Phase.QUESTIONNAIRE_DISPLAY);
+            logger.info("Startup timeline: {}", startupTimeline);
+        }
+    }
+
+    private void completeStartupPhase(StartupTimeline.Phase phase) {
+        for (StartupTimeline.Phase ended : startupTimeline.complete(phase)) {
+            long startEpochNanos = TimeUnit.MILLISECONDS.toNanos(startupTimeline.getStartEpochMillis())
+                + startupTimeline.getStartOffsetNanos(ended);
+            tracer.traceStartupPhase(ended.getName(), startEpochNanos, startupTimeline.getDurationNanos(ended));
+        }
     }
 
     // ========== Listener management ==========
@@ -133,7 +246,7 @@ public class FormFiller implements AutoCloseable {
     }
 
     private void fireHandshakeReceived() {
-        SwingUtilities.invokeLater(() -> {
+        SwingUtilities.invokeLater(tracer.wrap(() -> {
             for (FormFillerListener listener : listeners) {
                 try {
                     listener.onHandshakeReceived();
@@ -141,23 +254,36 @@ public class FormFiller implements AutoCloseable {
                     logger.error("Error in listener onHandshakeReceived", e);
                 }
             }
-        });
+        }));
+    }
+
+    /**
+     * Whether a listener takes the parsed resources, i.e. does not override
+     * {@link FormFillerListener#onFormSubmitted(FormSubmittedEvent)}.
+     */
+    private boolean needsParsedResources() {
+        for (FormFillerListener listener : listeners) {
+            if (usesParsedResources.get(listener.getClass())) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void fireFormSubmitted(IBaseResource response, IBaseResource outcome) {
-        SwingUtilities.invokeLater(() -> {
+    private void fireFormSubmitted(FormSubmittedEvent event) {
+        SwingUtilities.invokeLater(tracer.wrap(() -> {
             for (FormFillerListener listener : listeners) {
                 try {
-                    listener.onFormSubmitted(response, outcome);
+                    listener.onFormSubmitted(event);
                 } catch (Exception e) {
                     logger.error("Error in listener onFormSubmitted", e);
                 }
             }
-        });
+        }));
     }
 
     private void fireCloseRequested() {
-        SwingUtilities.invokeLater(() -> {
+        SwingUtilities.invokeLater(tracer.wrap(() -> {
             for (FormFillerListener listener : listeners) {
                 try {
                     listener.onCloseRequested();
@@ -165,7 +291,7 @@ public class FormFiller implements AutoCloseable {
                     logger.error("Error in listener onCloseRequested", e);
                 }
             }
-        });
+        }));
     }
 
     // ========== Public API ==========
@@ -185,6 +311,14 @@ public class FormFiller implements AutoCloseable {
         return withTimeout(handshakeReceived, config.getHandshakeTimeoutSeconds(), TimeUnit.SECONDS);
     }
 
+    /**
+     * Returns the time taken by each phase of the startup, from this FormFiller's constructor
+     * until the page has displayed the first questionnaire.
+     */
+    public StartupTimeline getStartupTimeline() {
+        return startupTimeline;
+    }
+
     /**
      * Request form submission from the frontend.
      */
@@ -193,13 +327,27 @@ public class FormFiller implements AutoCloseable {
         handler.sendFormRequestSubmitAsync(null);
     }
 
+    /**
+     * Send all requests made by {@code requests} to the page in a single browser call,
+     * e.g. a context update followed by a questionnaire.
+     *
+     * @see AbstractSmartMessageHandler#sendBatchAsync(Runnable)
+     */
+    public CompletableFuture<String> sendBatchAsync(Runnable requests) {
+        return handler.sendBatchAsync(requests);
+    }
+
     /**
      * Navigate the browser to a different URL.
      * Resets the handshake state so outbound messages are queued until the new page completes its handshake.
+     * Messages still queued for the previous page are dropped, and requests and displays the previous page
+     * has not answered yet fail with a {@link CancellationException}, as does the
+     * future of every message that was dropped.
      */
     public void navigate(String url) {
         handshakeReceived = new CompletableFuture<>();
-        handler.clearAllResponseListeners();
+        outboundQueue.reset();
+        handler.resetSession();
         browser.loadUrl(url);
     }
 
@@ -219,12 +367,21 @@ public class FormFiller implements AutoCloseable {
     }
 
     /**
-     * Clean up resources. Call this when the viewer is no longer needed.
+     * Clean up resources. Call this when the viewer is no longer needed. A handler that is a
+     * session of a {@code SmartMessagingRuntime} is closed with it; a standalone one is reset.
+     * Either way, messages not yet delivered and requests and displays not yet answered fail with a
+     * {@link CancellationException}, so nothing waits on a page that is gone.
      */
     @Override
     public void close() {
         tracer.finishSession();
-        timeoutScheduler.shutdownNow();
+        outboundQueue.reset();
+        // Fail the session's pending responses, then release its listeners and launch context
+        if (handler.getRuntime() != null) {
+            handler.getRuntime().closeSession(handler);
+        } else {
+            handler.resetSession();
+        }
         // Run on a separate thread to avoid deadlocks when called from within
         // a browser callback (e.g., from an onFormSubmitted listener).
         new Thread(browser::close, "formfiller-dispose").start();
@@ -249,11 +406,25 @@ public class FormFiller implements AutoCloseable {
                 result.complete(value);
             }
         });
-        timeoutScheduler.schedule(() -> {
+        ScheduledFuture<?> timer = timeoutScheduler.schedule(() -> {
             if (!result.isDone()) {
                 result.completeExceptionally(new TimeoutException("Handshake timeout after " + timeout + " " + unit));
             }
         }, timeout, unit);
+        result.whenComplete((value, ex) -> timer.cancel(false));
         return result;
     }
+
+    /**
+     * One timer thread for the handshake timeouts of all FormFillers.
+     */
+    private static ScheduledExecutorService createTimeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "swm-handshake-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
 }
@@ -1,5 +1,10 @@
 package health.tiro.formfiller.swing;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
  * Configuration for {@link FormFiller}.
  * Use {@link #builder()} to create instances.
@@ -29,6 +34,8 @@ public class FormFillerConfig {
     private final String dataEndpointAddress;
     private final String sdkUrl;
     private final long handshakeTimeoutSeconds;
+    private final int outboundQueueCapacity;
+    private final Set<String> coalescedMessageTypes;
 
     private FormFillerConfig(Builder builder) {
         this.targetUrl = builder.targetUrl;
@@ -36,6 +43,8 @@ public class FormFillerConfig {
         this.dataEndpointAddress = builder.dataEndpointAddress;
         this.sdkUrl = builder.sdkUrl;
         this.handshakeTimeoutSeconds = builder.handshakeTimeoutSeconds;
+        this.outboundQueueCapacity = builder.outboundQueueCapacity;
+        this.coalescedMessageTypes = Collections.unmodifiableSet(new LinkedHashSet<>(builder.coalescedMessageTypes));
     }
 
     public String getTargetUrl() {
@@ -58,6 +67,14 @@ public class FormFillerConfig {
         return handshakeTimeoutSeconds;
     }
 
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public Set<String> getCoalescedMessageTypes() {
+        return coalescedMessageTypes;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -68,6 +85,9 @@ public class FormFillerConfig {
         private String dataEndpointAddress;
         private String sdkUrl = DEFAULT_SDK_URL;
         private long handshakeTimeoutSeconds = 30;
+        private int outboundQueueCapacity = 64;
+        private Set<String> coalescedMessageTypes = new LinkedHashSet<>(
+            Arrays.asList("sdc.displayQuestionnaire", "sdc.configureContext"));
 
         private Builder() {}
 
@@ -115,7 +135,29 @@ public class FormFillerConfig {
             return this;
         }
 
+        /**
+         * Set the maximum number of messages held while the page is loading (default: 64).
+         * Further messages fail until the handshake completes.
+         */
+        public Builder outboundQueueCapacity(int outboundQueueCapacity) {
+            this.outboundQueueCapacity = outboundQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Set the message types of which only the latest is delivered when sent while the page
+         * is loading (default: {@code sdc.displayQuestionnaire} and {@code sdc.configureContext}).
+         * Pass no types to deliver every message.
+         */
+        public Builder coalescedMessageTypes(String... messageTypes) {
+            this.coalescedMessageTypes = new LinkedHashSet<>(Arrays.asList(messageTypes));
+            return this;
+        }
+
         public FormFillerConfig build() {
+            if (outboundQueueCapacity <= 0) {
+                throw new IllegalArgumentException("outboundQueueCapacity must be positive");
+            }
             if (targetUrl == null || targetUrl.trim().isEmpty()) {
                 if (sdcEndpointAddress == null || sdcEndpointAddress.trim().isEmpty()) {
                     throw new IllegalArgumentException(
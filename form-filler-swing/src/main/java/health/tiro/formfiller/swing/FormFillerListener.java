@@ -1,5 +1,6 @@
 package health.tiro.formfiller.swing;
 
+import health.tiro.swm.events.FormSubmittedEvent;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 /**
@@ -26,13 +27,28 @@ public interface FormFillerListener {
     default void onHandshakeReceived() {}
 
     /**
-     * Called when the user submits a form in the browser.
+     * Called when the user submits a form in the browser. The resources are parsed before the
+     * page's submission is acknowledged, off the Swing event thread; if they are not valid FHIR,
+     * the page receives an error response and this method is not called.
      *
      * @param response the submitted QuestionnaireResponse (as IBaseResource)
      * @param outcome  the OperationOutcome (as IBaseResource), may be null
      */
     default void onFormSubmitted(IBaseResource response, IBaseResource outcome) {}
 
+    /**
+     * Called when the user submits a form in the browser. Override this instead of
+     * {@link #onFormSubmitted(IBaseResource, IBaseResource)} to get the submitted JSON without
+     * parsing it ({@link FormSubmittedEvent#getResponseJson()}). If every listener overrides this
+     * method, the resources are only parsed when first requested, on the thread that asks for
+     * them: like all listener methods, this one runs on the Swing event thread, so parse large
+     * responses elsewhere. The default implementation calls the other method with the resources
+     * parsed beforehand.
+     */
+    default void onFormSubmitted(FormSubmittedEvent event) {
+        onFormSubmitted(event.getResponse(), event.getOutcome());
+    }
+
     /**
      * Called when the browser app requests to close (ui.done message).
      */
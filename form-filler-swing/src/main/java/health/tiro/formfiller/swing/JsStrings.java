@@ -0,0 +1,23 @@
+package health.tiro.formfiller.swing;
+
+/**
+ * Escaping of Java strings for embedding in JavaScript source.
+ */
+final class JsStrings {
+
+    private JsStrings() {
+    }
+
+    /**
+     * Escape a string for use inside a single-quoted JavaScript string literal.
+     */
+    static String escapeSingleQuoted(String value) {
+        return value.replace("\\", "\\\\")
+                    .replace("'", "\\'")
+                    .replace("\n", "\\n")
+                    .replace("\r", "\\r")
+                    .replace("\u2028", "\\u2028")
+                    .replace("\u2029", "\\u2029")
+                    .replace("\u0000", "\\u0000");
+    }
+}
@@ -0,0 +1,218 @@
+package health.tiro.formfiller.swing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Per-page queue of outbound messages. Messages are held while the page is loading and
+ * delivered in FIFO order once it is {@linkplain #open() open}; after that they are
+ * delivered immediately, still in order.
+ * <p>
+ * While held, a message whose types are all coalesced replaces every pending message of
+ * those types, so only the latest e.g. {@code sdc.displayQuestionnaire} reaches the page.
+ * Replaced messages fail with a {@link CancellationException}, as do messages that are
+ * {@linkplain #withdraw(String) withdrawn} before delivery. When {@code capacity}
+ * messages are pending, new ones fail with a {@link RejectedExecutionException}.
+ */
+final class OutboundQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+    private final int capacity;
+    private final Set<String> coalescedTypes;
+    private final Consumer<List<String>> transport;
+
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private boolean open;
+    private boolean draining;
+
+    /**
+     * @param capacity       maximum number of pending entries
+     * @param coalescedTypes message types of which only the latest is kept while the page loads
+     * @param transport      delivers one or more messages to the page in a single call
+     */
+    OutboundQueue(int capacity, Collection<String> coalescedTypes, Consumer<List<String>> transport) {
+        this.capacity = capacity;
+        this.coalescedTypes = Collections.unmodifiableSet(new HashSet<>(coalescedTypes));
+        this.transport = transport;
+    }
+
+    /**
+     * Queue messages, with their message types and IDs, to be delivered together in one transport call.
+     *
+     * @return a future that completes when the messages have been delivered
+     */
+    CompletableFuture<String> enqueue(List<String> messages, List<String> messageTypes, List<String> messageIds) {
+        Entry entry = new Entry(messages, messageTypes, messageIds);
+        List<Entry> superseded = new ArrayList<>();
+        boolean rejected = false;
+        synchronized (this) {
+            if (!open && coalescedTypes.containsAll(entry.types)) {
+                Iterator<Entry> it = pending.iterator();
+                while (it.hasNext()) {
+                    Entry queued = it.next();
+                    if (entry.types.containsAll(queued.types)) {
+                        it.remove();
+                        superseded.add(queued);
+                    }
+                }
+            }
+            if (pending.size() >= capacity) {
+                rejected = true;
+            } else {
+                pending.add(entry);
+            }
+        }
+
+        for (Entry queued : superseded) {
+            logger.debug("Dropping superseded message(s) of type {}", queued.types);
+            queued.future.completeExceptionally(
+                new CancellationException("Superseded by a newer " + String.join(", ", entry.types)));
+        }
+        if (rejected) {
+            logger.warn("Outbound queue full ({} pending), rejecting message(s) of type {}", capacity, entry.types);
+            entry.future.completeExceptionally(
+                new RejectedExecutionException("Outbound queue full (" + capacity + " pending)"));
+            return entry.future;
+        }
+        drain();
+        return entry.future;
+    }
+
+    /**
+     * Take the message with the given ID out of the queue if it has not been handed to the
+     * transport yet. The rest of its entry is still delivered; an entry left empty fails with a
+     * {@link CancellationException}.
+     *
+     * @return whether the message was pending and is now removed
+     */
+    boolean withdraw(String messageId) {
+        Entry withdrawn = null;
+        boolean emptied = false;
+        synchronized (this) {
+            Iterator<Entry> it = pending.iterator();
+            while (withdrawn == null && it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.remove(messageId)) {
+                    withdrawn = entry;
+                    emptied = entry.messages.isEmpty();
+                    if (emptied) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+        if (withdrawn == null) {
+            return false;
+        }
+        logger.debug("Withdrew undelivered message {}", messageId);
+        if (emptied) {
+            withdrawn.future.completeExceptionally(new CancellationException("Withdrawn before delivery"));
+        }
+        return true;
+    }
+
+    /**
+     * Start delivering: the page has completed its handshake.
+     */
+    void open() {
+        synchronized (this) {
+            open = true;
+        }
+        drain();
+    }
+
+    /**
+     * Hold messages again for a new page, or after the FormFiller is closed, and drop anything
+     * still pending for the previous one.
+     */
+    void reset() {
+        List<Entry> dropped;
+        synchronized (this) {
+            open = false;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Entry entry : dropped) {
+            entry.future.completeExceptionally(new CancellationException("Page was left before delivery"));
+        }
+    }
+
+    /**
+     * Number of messages waiting for delivery.
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Deliver pending entries in order. Only one thread drains at a time, outside the lock,
+     * so a slow transport call does not block callers that are queueing.
+     */
+    private void drain() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                if (!open || draining || pending.isEmpty()) {
+                    return;
+                }
+                entry = pending.poll();
+                draining = true;
+            }
+            try {
+                transport.accept(entry.messages);
+                entry.future.complete(null);
+            } catch (RuntimeException e) {
+                logger.error("Failed to deliver message(s) of type {}", entry.types, e);
+                entry.future.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        final List<String> messages;
+        final List<String> messageTypes;
+        final List<String> messageIds;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        Set<String> types;
+
+        Entry(List<String> messages, List<String> messageTypes, List<String> messageIds) {
+            this.messages = new ArrayList<>(messages);
+            this.messageTypes = new ArrayList<>(messageTypes);
+            this.messageIds = new ArrayList<>(messageIds);
+            this.types = new HashSet<>(messageTypes);
+        }
+
+        /**
+         * Remove the message with the given ID, if this entry holds it.
+         */
+        boolean remove(String messageId) {
+            int index = messageIds.indexOf(messageId);
+            if (index < 0) {
+                return false;
+            }
+            messages.remove(index);
+            messageTypes.remove(index);
+            messageIds.remove(index);
+            types = new HashSet<>(messageTypes);
+            return true;
+        }
+    }
+}
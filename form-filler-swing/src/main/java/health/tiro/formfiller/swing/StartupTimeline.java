@@ -0,0 +1,144 @@
+package health.tiro.formfiller.swing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the time goes between creating a {@link FormFiller} and the page showing its first
+ * questionnaire. Each {@link Phase} starts when the previous one ends; the first starts in the
+ * {@code FormFiller} constructor. Times are measured with {@link System#nanoTime()}.
+ * <p>
+ * Only the first page load is covered: {@link FormFiller#navigate(String)} does not start a new
+ * timeline. Phases that an adapter cannot report separately end together with the next phase
+ * and take no time.
+ *
+ * <pre>{@code
+ * handler.sendSdcDisplayQuestionnaireAsync(questionnaire, null, null, null, null, null, response ->
+ *     logger.info("Form shown: {}", viewer.getStartupTimeline()));
+ * }</pre>
+ */
+public final class StartupTimeline {
+
+    /**
+     * Startup phases, in order.
+     */
+    public enum Phase {
+        /** {@link EmbeddedBrowser#createComponent()}, e.g. starting the browser engine. */
+        CREATE_COMPONENT,
+        /** {@link EmbeddedBrowser#loadUrl(String)} until it returns; includes engine creation for adapters that create it lazily. */
+        LOAD_URL,
+        /** Until the main frame has finished loading. */
+        PAGE_LOAD,
+        /** Injecting the JS bridge into the loaded page. */
+        BRIDGE_INJECTION,
+        /** Until the page's first handshake arrives: downloading and initializing the SDK. */
+        HANDSHAKE,
+        /**
+         * Until the page acknowledges the first {@code sdc.displayQuestionnaire}. The bundled bridge
+         * acknowledges a display only once it has set it on the form filler, in the task that renders
+         * it; a page that acknowledges on receipt ends this phase before anything is shown.
+         */
+        QUESTIONNAIRE_DISPLAY;
+
+        /**
+         * Lower-case name for spans and events, e.g. {@code page_load}.
+         */
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long startNanos = System.nanoTime();
+    private final long startEpochMillis = System.currentTimeMillis();
+    private final long[] endNanos = new long[PHASES.length];
+    private int completed;
+    private volatile boolean complete;
+
+    StartupTimeline() {
+    }
+
+    /**
+     * End {@code phase} now, together with earlier phases that have not ended yet.
+     *
+     * @return the phases ended by this call, in order; empty if {@code phase} had already ended
+     */
+    synchronized List<Phase> complete(Phase phase) {
+        if (completed > phase.ordinal()) {
+            return Collections.emptyList();
+        }
+        long now = System.nanoTime();
+        List<Phase> ended = new ArrayList<>(phase.ordinal() - completed + 1);
+        while (completed <= phase.ordinal()) {
+            endNanos[completed] = now;
+            ended.add(PHASES[completed]);
+            completed++;
+        }
+        complete = completed == PHASES.length;
+        return ended;
+    }
+
+    /**
+     * Wall-clock time at which the timeline started, in milliseconds since the epoch.
+     */
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    public synchronized boolean isCompleted(Phase phase) {
+        return completed > phase.ordinal();
+    }
+
+    /**
+     * Whether all phases have ended.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Time from the start of the timeline to the start of {@code phase}, or -1 if it has not ended yet.
+     */
+    public synchronized long getStartOffsetNanos(Phase phase) {
+        if (!isCompleted(phase)) {
+            return -1;
+        }
+        return phase.ordinal() == 0 ? 0 : endNanos[phase.ordinal() - 1] - startNanos;
+    }
+
+    /**
+     * Time from the start of the timeline to the end of {@code phase}, or -1 if it has not ended yet.
+     */
+    public synchronized long getEndOffsetNanos(Phase phase) {
+        return isCompleted(phase) ? endNanos[phase.ordinal()] - startNanos : -1;
+    }
+
+    /**
+     * Time taken by {@code phase}, or -1 if it has not ended yet.
+     */
+    public synchronized long getDurationNanos(Phase phase) {
+        return isCompleted(phase) ? getEndOffsetNanos(phase) - getStartOffsetNanos(phase) : -1;
+    }
+
+    /**
+     * The duration of each ended phase in milliseconds, e.g.
+     * {@code create_component=85.2ms load_url=0.4ms page_load=312.9ms ...}.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < completed; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            Phase phase = PHASES[i];
+            text.append(phase.getName()).append('=')
+                .append(String.format(Locale.ROOT, "%.1fms", getDurationNanos(phase) / (double) TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+        return text.length() > 0 ? text.toString() : "not started";
+    }
+}
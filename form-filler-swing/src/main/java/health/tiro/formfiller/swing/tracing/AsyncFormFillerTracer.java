@@ -0,0 +1,373 @@
+package health.tiro.formfiller.swing.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracer that hands every event to another tracer on a background thread, so the message path
+ * only pays for claiming a slot in a ring buffer: a compare-and-set, a few field writes and a
+ * {@link System#nanoTime()}. Messages are passed on by length only, so the cost does not depend
+ * on the size of the message JSON and the ring never holds on to message contents.
+ * <p>
+ * All FormFillers share one bounded ring (a multi-producer, single-consumer queue of
+ * preallocated slots, after Dmitry Vyukov's bounded queue) drained by the daemon thread
+ * {@code formfiller-tracer}. Events keep their order per calling thread and carry the time
+ * they happened (see {@link TraceClock#eventEpochNanos()}). When the ring is full, events are
+ * dropped and counted rather than blocking the caller. The start and finish of a session are
+ * never dropped, or the tracer's transaction would stay open: they wait up to 10 ms for a free
+ * slot and are then handed to the consumer through a separate unbounded queue, behind the
+ * events already published.
+ * <p>
+ * {@link #wrap(Runnable)} captures the calling thread's context, so it is passed through
+ * synchronously.
+ */
+final class AsyncFormFillerTracer implements FormFillerTracer {
+
+    private static final Logger logger = LoggerFactory.getLogger(AsyncFormFillerTracer.class);
+
+    static final int CAPACITY = 8192;
+
+    private static final Ring ring = new Ring(CAPACITY);
+
+    private final Delegate delegate;
+
+    AsyncFormFillerTracer(Delegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Number of events dropped so far by all asynchronous tracers because the ring was full.
+     */
+    static long getDroppedEvents() {
+        return ring.dropped.get();
+    }
+
+    @Override
+    public void startSession(String targetUrl, String browserType) {
+        ring.publishAwaiting(Kind.START_SESSION, delegate, targetUrl, browserType, 0, 0);
+    }
+
+    @Override
+    public void traceBridgeInjected() {
+        ring.publish(Kind.BRIDGE_INJECTED, delegate, null, null, 0, 0);
+    }
+
+    @Override
+    public void traceMessageSent(String messageType, String messageId, String json) {
+        ring.publish(Kind.MESSAGE_SENT, delegate, messageType, messageId, json.length(), 0);
+    }
+
+    @Override
+    public void traceMessageReceived(String messageType, String messageId, String json) {
+        ring.publish(Kind.MESSAGE_RECEIVED, delegate, messageType, messageId, json.length(), 0);
+    }
+
+    @Override
+    public void traceMessageHandled(String messageType, String messageId, long durationNanos) {
+        ring.publish(Kind.MESSAGE_HANDLED, delegate, messageType, messageId, durationNanos, 0);
+    }
+
+    @Override
+    public void traceResponseReceived(String responseToMessageId) {
+        ring.publish(Kind.RESPONSE_RECEIVED, delegate, responseToMessageId, null, 0, 0);
+    }
+
+    @Override
+    public void traceHandshakeReceived() {
+        ring.publish(Kind.HANDSHAKE_RECEIVED, delegate, null, null, 0, 0);
+    }
+
+    @Override
+    public void traceFormSubmitted() {
+        ring.publish(Kind.FORM_SUBMITTED, delegate, null, null, 0, 0);
+    }
+
+    @Override
+    public void traceStartupPhase(String phase, long startEpochNanos, long durationNanos) {
+        ring.publish(Kind.STARTUP_PHASE, delegate, phase, null, startEpochNanos, durationNanos);
+    }
+
+    @Override
+    public Runnable wrap(Runnable task) {
+        return delegate.wrap(task);
+    }
+
+    @Override
+    public void finishSession() {
+        ring.publishAwaiting(Kind.FINISH_SESSION, delegate, null, null, 0, 0);
+    }
+
+    /**
+     * A tracer that can be run behind an {@link AsyncFormFillerTracer}: it records messages by
+     * their length, as the message JSON is not kept until delivery.
+     */
+    interface Delegate extends FormFillerTracer {
+
+        /** Record an outbound message of {@code length} characters. */
+        void traceMessageSent(String messageType, String messageId, int length);
+
+        /** Record an inbound message of {@code length} characters. */
+        void traceMessageReceived(String messageType, String messageId, int length);
+
+        @Override
+        default void traceMessageSent(String messageType, String messageId, String json) {
+            traceMessageSent(messageType, messageId, json.length());
+        }
+
+        @Override
+        default void traceMessageReceived(String messageType, String messageId, String json) {
+            traceMessageReceived(messageType, messageId, json.length());
+        }
+    }
+
+    private enum Kind {
+        START_SESSION, BRIDGE_INJECTED, MESSAGE_SENT, MESSAGE_RECEIVED, MESSAGE_HANDLED,
+        RESPONSE_RECEIVED, HANDSHAKE_RECEIVED, FORM_SUBMITTED, STARTUP_PHASE, FINISH_SESSION
+    }
+
+    /**
+     * One event. A slot may be written when its sequence equals the position being published,
+     * and read when it is one more than that; reading it makes it writable for the next lap.
+     * An overflow event's sequence is the position it is delivered at, before the event there.
+     */
+    private static final class Slot {
+        volatile long sequence;
+        Kind kind;
+        Delegate tracer;
+        String text1;
+        String text2;
+        long number1;
+        long number2;
+        long epochNanos;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class Ring implements Runnable {
+        private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private static final long AWAIT_MILLIS = 10;
+        private static final long AWAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(AWAIT_MILLIS);
+        private static final long AWAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+        private final Slot[] slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        /** Session starts and finishes that found no free slot in time. */
+        private final Queue<Slot> overflow = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean sleeping = new AtomicBoolean();
+        private final Thread consumer;
+        /** Next position to read; only used by the consumer thread. */
+        private long head;
+
+        Ring(int capacity) {
+            slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot(i);
+            }
+            mask = capacity - 1;
+            consumer = new Thread(this, "formfiller-tracer");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        /**
+         * Publish an event, or drop it if the ring is full.
+         */
+        void publish(Kind kind, Delegate tracer, String text1, String text2,
+                     long number1, long number2) {
+            if (!tryPublish(kind, tracer, text1, text2, number1, number2)) {
+                countDropped();
+            }
+        }
+
+        /**
+         * Publish an event that must not be lost, waiting up to {@link #AWAIT_MILLIS} ms for a
+         * free slot if the ring is full. The caller may be the Swing EDT, so it does not wait
+         * longer for a tracer that has fallen behind: the event then goes to the overflow queue,
+         * to be delivered after the events published before it.
+         */
+        void publishAwaiting(Kind kind, Delegate tracer, String text1, String text2,
+                             long number1, long number2) {
+            long deadline = System.nanoTime() + AWAIT_NANOS;
+            while (!tryPublish(kind, tracer, text1, text2, number1, number2)) {
+                if (System.nanoTime() - deadline >= 0) {
+                    Slot slot = new Slot(tail.get());
+                    slot.kind = kind;
+                    slot.tracer = tracer;
+                    slot.text1 = text1;
+                    slot.text2 = text2;
+                    slot.number1 = number1;
+                    slot.number2 = number2;
+                    slot.epochNanos = TraceClock.epochNanos();
+                    overflow.add(slot);
+                    logger.debug("Tracing ring is full, queued {} separately", kind);
+                    wakeConsumer();
+                    return;
+                }
+                wakeConsumer();
+                LockSupport.parkNanos(AWAIT_PARK_NANOS);
+            }
+        }
+
+        private void countDropped() {
+            if (dropped.getAndIncrement() == 0) {
+                logger.warn("Tracing events are produced faster than they can be delivered; dropping events");
+            }
+        }
+
+        private boolean tryPublish(Kind kind, Delegate tracer, String text1, String text2,
+                                   long number1, long number2) {
+            long epochNanos = TraceClock.epochNanos();
+            Slot slot;
+            long position;
+            while (true) {
+                position = tail.get();
+                slot = slots[(int) position & mask];
+                long difference = slot.sequence - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                } else if (difference < 0) {
+                    // The slot still holds an event from the previous lap
+                    return false;
+                }
+                // Otherwise another producer claimed this position first
+            }
+            slot.kind = kind;
+            slot.tracer = tracer;
+            slot.text1 = text1;
+            slot.text2 = text2;
+            slot.number1 = number1;
+            slot.number2 = number2;
+            slot.epochNanos = epochNanos;
+            slot.sequence = position + 1;
+            if (sleeping.get()) {
+                wakeConsumer();
+            }
+            return true;
+        }
+
+        private void wakeConsumer() {
+            if (sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!drain()) {
+                    sleeping.set(true);
+                    // Re-check after announcing the sleep, so a concurrent publish is not missed
+                    if (!isEmpty()) {
+                        sleeping.set(false);
+                        continue;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    sleeping.set(false);
+                }
+            }
+        }
+
+        private boolean isEmpty() {
+            return slots[(int) head & mask].sequence != head + 1 && !overflowDue();
+        }
+
+        /**
+         * Whether the next overflow event comes before the event at {@code head}.
+         */
+        private boolean overflowDue() {
+            Slot next = overflow.peek();
+            return next != null && next.sequence <= head;
+        }
+
+        /**
+         * Deliver all published events.
+         *
+         * @return whether there were any
+         */
+        private boolean drain() {
+            boolean any = false;
+            while (true) {
+                while (overflowDue()) {
+                    any = true;
+                    deliverSafely(overflow.poll());
+                }
+                Slot slot = slots[(int) head & mask];
+                if (slot.sequence != head + 1) {
+                    return any;
+                }
+                any = true;
+                try {
+                    deliverSafely(slot);
+                } finally {
+                    slot.tracer = null;
+                    slot.text1 = null;
+                    slot.text2 = null;
+                    slot.sequence = head + slots.length;
+                    head++;
+                }
+            }
+        }
+
+        private static void deliverSafely(Slot slot) {
+            try {
+                TraceClock.setEventEpochNanos(slot.epochNanos);
+                deliver(slot);
+            } catch (RuntimeException | LinkageError e) {
+                logger.warn("Tracer failed to record {}", slot.kind, e);
+            } finally {
+                TraceClock.setEventEpochNanos(0);
+            }
+        }
+
+        private static void deliver(Slot slot) {
+            Delegate tracer = slot.tracer;
+            switch (slot.kind) {
+                case START_SESSION:
+                    tracer.startSession(slot.text1, slot.text2);
+                    break;
+                case BRIDGE_INJECTED:
+                    tracer.traceBridgeInjected();
+                    break;
+                case MESSAGE_SENT:
+                    tracer.traceMessageSent(slot.text1, slot.text2, (int) slot.number1);
+                    break;
+                case MESSAGE_RECEIVED:
+                    tracer.traceMessageReceived(slot.text1, slot.text2, (int) slot.number1);
+                    break;
+                case MESSAGE_HANDLED:
+                    tracer.traceMessageHandled(slot.text1, slot.text2, slot.number1);
+                    break;
+                case RESPONSE_RECEIVED:
+                    tracer.traceResponseReceived(slot.text1);
+                    break;
+                case HANDSHAKE_RECEIVED:
+                    tracer.traceHandshakeReceived();
+                    break;
+                case FORM_SUBMITTED:
+                    tracer.traceFormSubmitted();
+                    break;
+                case STARTUP_PHASE:
+                    tracer.traceStartupPhase(slot.text1, slot.number1, slot.number2);
+                    break;
+                case FINISH_SESSION:
+                    tracer.finishSession();
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown event " + slot.kind);
+            }
+        }
+    }
+}
@@ -5,7 +5,10 @@ package health.tiro.formfiller.swing.tracing;
  * <p>
  * When Sentry is on the classpath, a Sentry-backed implementation is used
  * that creates transactions and spans visible in the Sentry dashboard.
- * Otherwise, a no-op implementation is used with zero overhead.
+ * With OpenTelemetry and {@code form-filler-swing-opentelemetry}, spans measure request
+ * round trips and message handling. Otherwise, on Java 11 and later, custom Java Flight
+ * Recorder events are emitted,
+ * and elsewhere a no-op implementation is used with zero overhead.
  *
  * @see FormFillerTracerFactory#create()
  */
@@ -23,12 +26,46 @@ public interface FormFillerTracer {
     /** Record an inbound message (JS to Java). */
     void traceMessageReceived(String messageType, String messageId, String json);
 
+    /**
+     * Record that an inbound message has been handled, on the thread that called
+     * {@link #traceMessageReceived}. The default implementation does nothing.
+     *
+     * @param durationNanos time taken by the message handler, including listeners it ran inline
+     */
+    default void traceMessageHandled(String messageType, String messageId, long durationNanos) {}
+
+    /**
+     * Record that the inbound message just passed to {@link #traceMessageReceived} answers the
+     * outbound request {@code responseToMessageId}. The default implementation does nothing.
+     */
+    default void traceResponseReceived(String responseToMessageId) {}
+
     /** Record SMART Web Messaging handshake completion. */
     void traceHandshakeReceived();
 
     /** Record form submission received from the browser. */
     void traceFormSubmitted();
 
+    /**
+     * Record a startup phase that has ended, e.g. {@code page_load}. Phases are reported in
+     * order, after the fact, so tracers can create spans with their real start and duration.
+     * The default implementation does nothing.
+     *
+     * @param phase           the phase name, see {@code StartupTimeline.Phase#getName()}
+     * @param startEpochNanos wall-clock start of the phase in nanoseconds since the epoch
+     * @param durationNanos   duration of the phase in nanoseconds
+     */
+    default void traceStartupPhase(String phase, long startEpochNanos, long durationNanos) {}
+
+    /**
+     * Wrap a task that FormFiller hands to another thread, e.g. listener notifications on the
+     * Swing EDT, so it runs in the trace context of the calling thread. The default
+     * implementation returns the task unchanged.
+     */
+    default Runnable wrap(Runnable task) {
+        return task;
+    }
+
     /** Finish the session transaction. Called from FormFiller.dispose(). */
     void finishSession();
 }
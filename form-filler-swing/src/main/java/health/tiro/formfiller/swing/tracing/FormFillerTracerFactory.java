@@ -1,33 +1,96 @@
 package health.tiro.formfiller.swing.tracing;
 
+import io.sentry.Sentry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Factory that creates the appropriate {@link FormFillerTracer} based on
- * whether Sentry is available on the classpath.
+ * which tracing backend is available on the classpath.
  * <p>
- * If {@code io.sentry:sentry} is present, returns a Sentry-backed tracer.
- * Otherwise, returns a no-op tracer with zero overhead.
+ * If {@code io.sentry:sentry} is present, returns a Sentry-backed tracer, which records
+ * events on a background thread.
+ * Otherwise, if {@code io.opentelemetry:opentelemetry-api} and
+ * {@code health.tiro:form-filler-swing-opentelemetry} are present, returns an
+ * OpenTelemetry tracer for the global {@code OpenTelemetry} instance.
+ * Otherwise, on Java 11 and later, returns a tracer emitting Java Flight Recorder
+ * events, which cost next to nothing while no recording is running. Elsewhere,
+ * returns a no-op tracer with zero overhead.
  */
 public final class FormFillerTracerFactory {
 
     private static final Logger logger = LoggerFactory.getLogger(FormFillerTracerFactory.class);
+    private static final String OPENTELEMETRY_TRACER = "health.tiro.formfiller.swing.opentelemetry.OpenTelemetryFormFillerTracer";
+    private static final String JFR_TRACER = "health.tiro.formfiller.swing.tracing.JfrFormFillerTracer";
 
     private FormFillerTracerFactory() {}
 
     /**
      * Creates a tracer. Returns a Sentry-backed tracer if {@code io.sentry:sentry}
-     * is on the classpath; otherwise returns a no-op.
+     * is on the classpath, then an OpenTelemetry tracer, then a JFR tracer if Flight
+     * Recorder is available; otherwise returns a no-op.
      */
     public static FormFillerTracer create() {
         try {
             Class.forName("io.sentry.Sentry");
             logger.info("Sentry SDK detected on classpath, enabling FormFiller tracing");
-            return new SentryFormFillerTracer();
+            return createSentryTracer();
         } catch (ClassNotFoundException e) {
-            logger.debug("Sentry SDK not on classpath, tracing disabled");
-            return NoOpFormFillerTracer.INSTANCE;
+            logger.debug("Sentry SDK not on classpath");
+        }
+        FormFillerTracer openTelemetry = createOpenTelemetryTracer();
+        if (openTelemetry != null) {
+            logger.info("OpenTelemetry detected on classpath, enabling FormFiller tracing");
+            return openTelemetry;
+        }
+        FormFillerTracer jfr = createJfrTracer();
+        if (jfr != null) {
+            logger.debug("Java Flight Recorder available, emitting FormFiller events");
+            return jfr;
+        }
+        logger.debug("No tracing backend available, tracing disabled");
+        return NoOpFormFillerTracer.INSTANCE;
+    }
+
+    /**
+     * Spans and breadcrumbs are built off the message path, by {@link AsyncFormFillerTracer}.
+     * The OpenTelemetry and JFR tracers stay synchronous: OpenTelemetry spans follow the context
+     * of the calling thread, and JFR already buffers events per thread.
+     */
+    private static FormFillerTracer createSentryTracer() {
+        return new AsyncFormFillerTracer(new SentryFormFillerTracer(Sentry.getCurrentScopes()));
+    }
+
+    private static FormFillerTracer createOpenTelemetryTracer() {
+        try {
+            Class.forName("io.opentelemetry.api.GlobalOpenTelemetry");
+        } catch (ClassNotFoundException e) {
+            logger.debug("OpenTelemetry not on classpath");
+            return null;
+        }
+        try {
+            return (FormFillerTracer) Class.forName(OPENTELEMETRY_TRACER).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            logger.debug("OpenTelemetry on classpath without form-filler-swing-opentelemetry");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            logger.warn("Failed to create OpenTelemetry tracer", e);
+        }
+        return null;
+    }
+
+    /**
+     * The JFR tracer is only in the Java 11 part of the multi-release JAR, so it is
+     * loaded by name.
+     */
+    private static FormFillerTracer createJfrTracer() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (FormFillerTracer) Class.forName(JFR_TRACER).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return null;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Java Flight Recorder tracing unavailable", e);
+            return null;
         }
     }
 }
@@ -1,7 +1,7 @@
 package health.tiro.formfiller.swing.tracing;
 
 /**
- * No-op tracer used when Sentry is not on the classpath.
+ * No-op tracer used when no tracing backend is available.
  */
 final class NoOpFormFillerTracer implements FormFillerTracer {
 
@@ -13,7 +13,11 @@ final class NoOpFormFillerTracer implements FormFillerTracer {
     @Override public void traceBridgeInjected() {}
     @Override public void traceMessageSent(String messageType, String messageId, String json) {}
     @Override public void traceMessageReceived(String messageType, String messageId, String json) {}
+    @Override public void traceMessageHandled(String messageType, String messageId, long durationNanos) {}
+    @Override public void traceResponseReceived(String responseToMessageId) {}
     @Override public void traceHandshakeReceived() {}
     @Override public void traceFormSubmitted() {}
+    @Override public void traceStartupPhase(String phase, long startEpochNanos, long durationNanos) {}
+    @Override public Runnable wrap(Runnable task) { return task; }
     @Override public void finishSession() {}
 }
@@ -1,13 +1,20 @@
 package health.tiro.formfiller.swing.tracing;
 
 import io.sentry.Breadcrumb;
+import io.sentry.IScopes;
 import io.sentry.ISpan;
 import io.sentry.ITransaction;
-import io.sentry.Sentry;
+import io.sentry.Instrumenter;
+import io.sentry.SentryDate;
+import io.sentry.SentryInstantDate;
 import io.sentry.SentryLevel;
 import io.sentry.SpanStatus;
 import io.sentry.TransactionOptions;
 
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Sentry-backed tracer that creates a transaction per FormFiller session
  * with child spans for each lifecycle event.
@@ -17,27 +24,41 @@ import io.sentry.TransactionOptions;
  * this sidesteps the thread-local scope problem entirely — spans created on
  * the {@code swm-message-handler} thread, the Swing EDT, or any browser
  * engine thread all appear as children of the same transaction.
+ * <p>
+ * Created by {@link FormFillerTracerFactory} behind an {@link AsyncFormFillerTracer}, so spans
+ * and breadcrumbs are built on its background thread. They are timestamped with the time of
+ * the event rather than of its delivery, and breadcrumbs go to the scopes of the thread that
+ * created the FormFiller.
+ * <p>
+ * Messages are recorded by type, ID and length. Their JSON is never sent to Sentry, as it
+ * carries patient data.
  */
-final class SentryFormFillerTracer implements FormFillerTracer {
+final class SentryFormFillerTracer implements AsyncFormFillerTracer.Delegate {
 
+    private final IScopes scopes;
     private volatile ITransaction transaction;
 
+    SentryFormFillerTracer(IScopes scopes) {
+        this.scopes = scopes;
+    }
+
     @Override
     public void startSession(String targetUrl, String browserType) {
-        if (!Sentry.isEnabled()) return;
+        if (!scopes.isEnabled()) return;
 
         TransactionOptions options = new TransactionOptions();
         options.setBindToScope(false);
-        transaction = Sentry.startTransaction("FormFiller Session", "form-filler", options);
+        options.setStartTimestamp(date(TraceClock.eventEpochNanos()));
+        transaction = scopes.startTransaction("FormFiller Session", "form-filler", options);
         transaction.setTag("target_url", targetUrl);
         transaction.setTag("browser_adapter", browserType);
 
-        Breadcrumb bc = new Breadcrumb("Session started");
+        Breadcrumb bc = breadcrumb("Session started");
         bc.setCategory("formfiller.lifecycle");
         bc.setLevel(SentryLevel.INFO);
         bc.setData("target_url", targetUrl);
         bc.setData("browser_adapter", browserType);
-        Sentry.addBreadcrumb(bc);
+        scopes.addBreadcrumb(bc);
     }
 
     @Override
@@ -45,53 +66,53 @@ final class SentryFormFillerTracer implements FormFillerTracer {
         ITransaction tx = this.transaction;
         if (tx == null) return;
 
-        ISpan span = tx.startChild("browser.bridge_inject", "JS bridge injected");
-        span.finish(SpanStatus.OK);
+        ISpan span = startChild(tx, "browser.bridge_inject", "JS bridge injected");
+        span.finish(SpanStatus.OK, span.getStartDate());
 
-        Breadcrumb bc = new Breadcrumb("Bridge injected");
+        Breadcrumb bc = breadcrumb("Bridge injected");
         bc.setCategory("formfiller.bridge");
         bc.setLevel(SentryLevel.INFO);
-        Sentry.addBreadcrumb(bc);
+        scopes.addBreadcrumb(bc);
     }
 
     @Override
-    public void traceMessageSent(String messageType, String messageId, String json) {
+    public void traceMessageSent(String messageType, String messageId, int length) {
         ITransaction tx = this.transaction;
         if (tx == null) return;
 
-        ISpan span = tx.startChild("message.send", messageType);
+        ISpan span = startChild(tx, "message.send", messageType);
         span.setData("message_id", messageId);
         span.setData("message_type", messageType);
-        span.setData("message_json", json);
-        span.finish(SpanStatus.OK);
+        span.setData("message_length", length);
+        span.finish(SpanStatus.OK, span.getStartDate());
 
-        Breadcrumb bc = new Breadcrumb("Message sent: " + messageType);
+        Breadcrumb bc = breadcrumb("Message sent: " + messageType);
         bc.setCategory("formfiller.message.outbound");
         bc.setLevel(SentryLevel.INFO);
         bc.setData("message_id", messageId);
         bc.setData("message_type", messageType);
-        bc.setData("message_json", json);
-        Sentry.addBreadcrumb(bc);
+        bc.setData("message_length", length);
+        scopes.addBreadcrumb(bc);
     }
 
     @Override
-    public void traceMessageReceived(String messageType, String messageId, String json) {
+    public void traceMessageReceived(String messageType, String messageId, int length) {
         ITransaction tx = this.transaction;
         if (tx == null) return;
 
-        ISpan span = tx.startChild("message.receive", messageType);
+        ISpan span = startChild(tx, "message.receive", messageType);
         span.setData("message_id", messageId);
         span.setData("message_type", messageType);
-        span.setData("message_json", json);
-        span.finish(SpanStatus.OK);
+        span.setData("message_length", length);
+        span.finish(SpanStatus.OK, span.getStartDate());
 
-        Breadcrumb bc = new Breadcrumb("Message received: " + messageType);
+        Breadcrumb bc = breadcrumb("Message received: " + messageType);
         bc.setCategory("formfiller.message.inbound");
         bc.setLevel(SentryLevel.INFO);
         bc.setData("message_id", messageId);
         bc.setData("message_type", messageType);
-        bc.setData("message_json", json);
-        Sentry.addBreadcrumb(bc);
+        bc.setData("message_length", length);
+        scopes.addBreadcrumb(bc);
     }
 
     @Override
@@ -99,13 +120,13 @@ final class SentryFormFillerTracer implements FormFillerTracer {
         ITransaction tx = this.transaction;
         if (tx == null) return;
 
-        ISpan span = tx.startChild("handshake.received", "SMART Web Messaging handshake");
-        span.finish(SpanStatus.OK);
+        ISpan span = startChild(tx, "handshake.received", "SMART Web Messaging handshake");
+        span.finish(SpanStatus.OK, span.getStartDate());
 
-        Breadcrumb bc = new Breadcrumb("Handshake received");
+        Breadcrumb bc = breadcrumb("Handshake received");
         bc.setCategory("formfiller.handshake");
         bc.setLevel(SentryLevel.INFO);
-        Sentry.addBreadcrumb(bc);
+        scopes.addBreadcrumb(bc);
     }
 
     @Override
@@ -113,20 +134,47 @@ final class SentryFormFillerTracer implements FormFillerTracer {
         ITransaction tx = this.transaction;
         if (tx == null) return;
 
-        ISpan span = tx.startChild("form.submitted", "Form submitted by user");
-        span.finish(SpanStatus.OK);
+        ISpan span = startChild(tx, "form.submitted", "Form submitted by user");
+        span.finish(SpanStatus.OK, span.getStartDate());
 
-        Breadcrumb bc = new Breadcrumb("Form submitted");
+        Breadcrumb bc = breadcrumb("Form submitted");
         bc.setCategory("formfiller.form");
         bc.setLevel(SentryLevel.INFO);
-        Sentry.addBreadcrumb(bc);
+        scopes.addBreadcrumb(bc);
+    }
+
+    @Override
+    public void traceStartupPhase(String phase, long startEpochNanos, long durationNanos) {
+        ITransaction tx = this.transaction;
+        if (tx == null) return;
+
+        ISpan span = tx.startChild("startup." + phase, "FormFiller startup: " + phase,
+            date(startEpochNanos), Instrumenter.SENTRY);
+        span.finish(SpanStatus.OK, date(startEpochNanos + durationNanos));
     }
 
     @Override
     public void finishSession() {
         ITransaction tx = this.transaction;
         if (tx == null) return;
-        tx.finish(SpanStatus.OK);
+        tx.finish(SpanStatus.OK, date(TraceClock.eventEpochNanos()));
         this.transaction = null;
     }
+
+    /**
+     * A child span starting at the time of the event being traced.
+     */
+    private static ISpan startChild(ITransaction tx, String operation, String description) {
+        return tx.startChild(operation, description, date(TraceClock.eventEpochNanos()), Instrumenter.SENTRY);
+    }
+
+    private static Breadcrumb breadcrumb(String message) {
+        Breadcrumb bc = new Breadcrumb(new Date(TimeUnit.NANOSECONDS.toMillis(TraceClock.eventEpochNanos())));
+        bc.setMessage(message);
+        return bc;
+    }
+
+    private static SentryDate date(long epochNanos) {
+        return new SentryInstantDate(Instant.ofEpochSecond(0, epochNanos));
+    }
 }
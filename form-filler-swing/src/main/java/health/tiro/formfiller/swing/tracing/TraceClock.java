@@ -0,0 +1,46 @@
+package health.tiro.formfiller.swing.tracing;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wall-clock timestamps for trace events, in nanoseconds since the epoch.
+ * <p>
+ * Derived from {@link System#nanoTime()} against a base taken once, so taking one costs no more
+ * than {@code nanoTime()}. Events delivered later by {@link AsyncFormFillerTracer} carry the
+ * time they happened; tracers read it with {@link #eventEpochNanos()}.
+ */
+final class TraceClock {
+
+    private static final long BASE_EPOCH_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private static final long BASE_NANO_TIME = System.nanoTime();
+
+    /**
+     * Time of the event being delivered on this thread, or 0 outside of a delivery.
+     */
+    private static final ThreadLocal<long[]> eventTime = ThreadLocal.withInitial(() -> new long[1]);
+
+    private TraceClock() {}
+
+    /**
+     * The current time in nanoseconds since the epoch.
+     */
+    static long epochNanos() {
+        return BASE_EPOCH_NANOS + (System.nanoTime() - BASE_NANO_TIME);
+    }
+
+    /**
+     * The time of the event being delivered on this thread, or the current time if the tracer
+     * is called directly.
+     */
+    static long eventEpochNanos() {
+        long time = eventTime.get()[0];
+        return time != 0 ? time : epochNanos();
+    }
+
+    /**
+     * Set the time of the event about to be delivered on this thread, or 0 when done.
+     */
+    static void setEventEpochNanos(long epochNanos) {
+        eventTime.get()[0] = epochNanos;
+    }
+}
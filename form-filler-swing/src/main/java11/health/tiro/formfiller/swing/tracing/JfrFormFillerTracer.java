@@ -0,0 +1,231 @@
+package health.tiro.formfiller.swing.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import jdk.jfr.Timestamp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracer that emits custom Java Flight Recorder events, so SMART Web Messaging traffic can be
+ * correlated with GC, allocation and thread activity in a recording:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=formfiller.jfr ...
+ * jfr print --categories "SMART Web Messaging" formfiller.jfr
+ * </pre>
+ *
+ * Events are only built when they are enabled in the running recording; without a recording
+ * each call is a field read. Every event carries the number of its FormFiller session.
+ * <p>
+ * Compiled for Java 11 into {@code META-INF/versions/11} of the multi-release JAR and created
+ * by {@link FormFillerTracerFactory} by name, so the JAR still runs on Java 8.
+ */
+final class JfrFormFillerTracer implements FormFillerTracer {
+
+    private static final AtomicLong sessionNumber = new AtomicLong();
+
+    /**
+     * Receive events begun on the handling thread, committed when the message has been handled.
+     */
+    private static final ThreadLocal<MessageReceivedEvent> receiving = new ThreadLocal<>();
+
+    private volatile long session;
+
+    JfrFormFillerTracer() {
+        if (!FlightRecorder.isAvailable()) {
+            throw new IllegalStateException("Java Flight Recorder is not available");
+        }
+    }
+
+    @Override
+    public void startSession(String targetUrl, String browserType) {
+        session = sessionNumber.incrementAndGet();
+        SessionStartedEvent event = new SessionStartedEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.targetUrl = targetUrl;
+            event.browserAdapter = browserType;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void traceBridgeInjected() {
+        BridgeInjectedEvent event = new BridgeInjectedEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void traceMessageSent(String messageType, String messageId, String json) {
+        MessageSentEvent event = new MessageSentEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.messageType = messageType;
+            event.messageId = messageId;
+            event.length = json.length();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void traceMessageReceived(String messageType, String messageId, String json) {
+        MessageReceivedEvent event = new MessageReceivedEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.messageType = messageType;
+            event.messageId = messageId;
+            event.length = json.length();
+            event.begin();
+            receiving.set(event);
+        }
+    }
+
+    @Override
+    public void traceMessageHandled(String messageType, String messageId, long durationNanos) {
+        MessageReceivedEvent event = receiving.get();
+        if (event == null) {
+            return;
+        }
+        receiving.remove();
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    @Override
+    public void traceHandshakeReceived() {
+        HandshakeReceivedEvent event = new HandshakeReceivedEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void traceFormSubmitted() {
+        FormSubmittedEvent event = new FormSubmittedEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void traceStartupPhase(String phase, long startEpochNanos, long durationNanos) {
+        StartupPhaseEvent event = new StartupPhaseEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.phase = phase;
+            event.phaseStart = TimeUnit.NANOSECONDS.toMillis(startEpochNanos);
+            event.phaseDuration = durationNanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void finishSession() {
+        SessionFinishedEvent event = new SessionFinishedEvent();
+        if (event.isEnabled()) {
+            event.session = session;
+            event.commit();
+        }
+    }
+
+    // ========== Events ==========
+
+    @Category({"SMART Web Messaging", "FormFiller"})
+    @StackTrace(false)
+    abstract static class FormFillerEvent extends Event {
+        @Label("Session")
+        @Description("Number of the FormFiller session in this JVM")
+        long session;
+    }
+
+    @Name("health.tiro.formfiller.SessionStarted")
+    @Label("FormFiller Session Started")
+    static final class SessionStartedEvent extends FormFillerEvent {
+        @Label("Target URL")
+        String targetUrl;
+
+        @Label("Browser Adapter")
+        String browserAdapter;
+    }
+
+    @Name("health.tiro.formfiller.SessionFinished")
+    @Label("FormFiller Session Finished")
+    static final class SessionFinishedEvent extends FormFillerEvent {
+    }
+
+    @Name("health.tiro.formfiller.BridgeInjected")
+    @Label("JS Bridge Injected")
+    static final class BridgeInjectedEvent extends FormFillerEvent {
+    }
+
+    @Name("health.tiro.formfiller.MessageSent")
+    @Label("Message Sent")
+    @Description("Outbound message (Java to JS) handed to the outbound queue")
+    static final class MessageSentEvent extends FormFillerEvent {
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Message ID")
+        String messageId;
+
+        @Label("Length")
+        @Description("Length of the message JSON in characters")
+        int length;
+    }
+
+    @Name("health.tiro.formfiller.MessageReceived")
+    @Label("Message Received")
+    @Description("Inbound message (JS to Java); the duration is the time taken to handle it")
+    static final class MessageReceivedEvent extends FormFillerEvent {
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Message ID")
+        String messageId;
+
+        @Label("Length")
+        @Description("Length of the message JSON in characters")
+        int length;
+    }
+
+    @Name("health.tiro.formfiller.HandshakeReceived")
+    @Label("Handshake Received")
+    static final class HandshakeReceivedEvent extends FormFillerEvent {
+    }
+
+    @Name("health.tiro.formfiller.FormSubmitted")
+    @Label("Form Submitted")
+    static final class FormSubmittedEvent extends FormFillerEvent {
+    }
+
+    @Name("health.tiro.formfiller.StartupPhase")
+    @Label("Startup Phase")
+    @Description("A phase of the FormFiller startup, reported when it ends")
+    static final class StartupPhaseEvent extends FormFillerEvent {
+        @Label("Phase")
+        String phase;
+
+        @Label("Phase Start")
+        @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH)
+        long phaseStart;
+
+        @Label("Phase Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long phaseDuration;
+    }
+}
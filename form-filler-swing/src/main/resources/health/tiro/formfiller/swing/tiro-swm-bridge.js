@@ -21,6 +21,7 @@
 
   var pendingRequests = new Map();
   var context = null;
+  var pendingDisplay = null;
 
   // ===========================================
   // Transport
@@ -128,16 +129,22 @@
         break;
 
       case "sdc.configureContext":
-        context = message.payload;
+        context = mergeContext(context, message.payload);
         applyLaunchContext(formFiller, context);
         console.log("[SWM] Context updated");
         break;
 
       case "sdc.displayQuestionnaire":
-        displayQuestionnaire(formFiller, message.payload);
+        // Acknowledged once rendered, or with an error if dropped (see flushDisplay)
+        scheduleDisplay(formFiller, message);
+        return;
+
+      case "sdc.cancelDisplayQuestionnaire":
+        cancelDisplay(message.payload && message.payload.messageId);
         break;
 
       case "ui.form.requestSubmit":
+        flushDisplay();
         if (formFiller && formFiller.questionnaire) {
           formFiller.submit();
         }
@@ -165,6 +172,28 @@
   // Questionnaire display
   // ===========================================
 
+  // A payload flagged launchContextDelta only carries the launch context entries that
+  // changed; merge them by name into the ones received before.
+  function mergeContext(previous, payload) {
+    if (!payload || !payload.launchContextDelta) return payload;
+    var merged = Object.assign({}, payload);
+    delete merged.launchContextDelta;
+    var entries = (previous && Array.isArray(previous.launchContext))
+      ? previous.launchContext.slice()
+      : [];
+    (payload.launchContext || []).forEach(function (item) {
+      for (var i = 0; i < entries.length; i++) {
+        if (entries[i].name === item.name) {
+          entries[i] = item;
+          return;
+        }
+      }
+      entries.push(item);
+    });
+    merged.launchContext = entries;
+    return merged;
+  }
+
   function applyLaunchContext(formFiller, ctx) {
     if (!formFiller || !ctx || !Array.isArray(ctx.launchContext)) return;
     var launchContext = {};
@@ -181,17 +210,68 @@
     }
   }
 
-  function displayQuestionnaire(formFiller, payload) {
-    var questionnaire = payload.questionnaire;
-    var questionnaireResponse = payload.questionnaireResponse;
-
+  // Rendering is deferred to a task of its own, so a newer displayQuestionnaire or a
+  // cancelDisplayQuestionnaire arriving first (e.g. in the same batch) replaces it
+  // before the form filler does any work. Its context is merged right away, in message
+  // order, so a configureContext that follows it in the same batch still wins.
+  function scheduleDisplay(formFiller, message) {
+    var payload = message.payload || {};
     if (payload.context) {
       context = Object.assign({}, context, payload.context);
     }
+    if (pendingDisplay) {
+      dropDisplay(pendingDisplay, "Superseded by a newer questionnaire");
+    } else {
+      setTimeout(flushDisplay, 0);
+    }
+    pendingDisplay = {
+      messageId: message.messageId,
+      formFiller: formFiller,
+      payload: payload,
+    };
+  }
+
+  // Drop the pending display with the given messageId, or any pending display without one.
+  function cancelDisplay(messageId) {
+    if (pendingDisplay && (!messageId || pendingDisplay.messageId === messageId)) {
+      dropDisplay(pendingDisplay, "Cancelled by the host");
+      pendingDisplay = null;
+    }
+  }
+
+  function dropDisplay(display, reason) {
+    console.log("[SWM] Dropping questionnaire:", display.messageId, reason);
+    sendResponse(display.messageId, {
+      $type: "error",
+      errorMessage: reason,
+      errorType: "CancellationException",
+    });
+  }
+
+  // Render the pending display and only then acknowledge it, so the host knows it is shown.
+  function flushDisplay() {
+    var display = pendingDisplay;
+    pendingDisplay = null;
+    if (display) {
+      if (displayQuestionnaire(display.formFiller, display.payload)) {
+        sendResponse(display.messageId, { $type: "base" });
+      } else {
+        sendResponse(display.messageId, {
+          $type: "error",
+          errorMessage: "No questionnaire in payload",
+          errorType: "InvalidPayloadException",
+        });
+      }
+    }
+  }
+
+  function displayQuestionnaire(formFiller, payload) {
+    var questionnaire = payload.questionnaire;
+    var questionnaireResponse = payload.questionnaireResponse;
 
     if (!questionnaire) {
       console.error("[SWM] No questionnaire in payload");
-      return;
+      return false;
     }
 
     // Set launch context from host context
@@ -212,6 +292,7 @@
         ? questionnaire
         : JSON.stringify(questionnaire)
     );
+    return true;
   }
 
   // ===========================================
@@ -380,6 +461,29 @@
     handleMessage(jsonStr);
   };
 
+  // Batched Java→JS messages: a JSON array (or its text) of messages, handled in order.
+  window.swmReceiveMessages = function (batch) {
+    if (typeof batch === "string") {
+      try {
+        batch = JSON.parse(batch);
+      } catch (e) {
+        console.error("[SWM] Failed to parse message batch:", e);
+        return;
+      }
+    }
+    if (!Array.isArray(batch)) {
+      console.error("[SWM] Message batch is not an array");
+      return;
+    }
+    batch.forEach(function (message) {
+      try {
+        handleMessage(message);
+      } catch (e) {
+        console.error("[SWM] Failed to handle batched message:", e);
+      }
+    });
+  };
+
   // Expose API globally so the host adapter can call init(sendFn)
   // and HTML buttons can trigger save/submit.
   window.SmartWebMessaging = {
@@ -0,0 +1,62 @@
+package health.tiro.swm.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import health.tiro.swm.message.SmartMessageCodec;
+import health.tiro.swm.message.SmartMessageEnvelope;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two ways of getting a FHIR resource out of a {@code form.submitted} message:
+ * binding the message to a Jackson tree and printing the payload field back to a String
+ * (the previous handler path), versus handing HAPI a reader over the field's slice of the
+ * original message text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FhirPayloadParsingBenchmark {
+
+    @Param({"cardiology", "internal-medicine"})
+    public String questionnaire;
+
+    private ObjectMapper objectMapper;
+    private SmartMessageCodec codec;
+    private IParser parser;
+    private String message;
+
+    @Setup
+    public void setUp() {
+        objectMapper = new ObjectMapper();
+        codec = SmartMessageCodec.jackson(objectMapper);
+        parser = FhirContext.forR5Cached().newJsonParser()
+            .setPrettyPrint(false)
+            .setParserErrorHandler(new LenientErrorHandler().setErrorOnInvalidValue(false));
+        message = Payloads.formSubmitted("bench-1", Payloads.questionnaireResponse(questionnaire, 1));
+    }
+
+    @Benchmark
+    public IBaseResource treeToString() throws IOException {
+        JsonNode payload = objectMapper.readTree(message).get("payload");
+        return parser.parseResource(payload.get("response").toString());
+    }
+
+    @Benchmark
+    public IBaseResource sliceReader() throws IOException {
+        SmartMessageEnvelope envelope = SmartMessageEnvelope.decode(codec, message);
+        try (Reader reader = envelope.getPayloadField("response").openReader()) {
+            return parser.parseResource(reader);
+        }
+    }
+}
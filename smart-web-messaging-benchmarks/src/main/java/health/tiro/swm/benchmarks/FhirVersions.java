@@ -0,0 +1,59 @@
+package health.tiro.swm.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+import health.tiro.swm.AbstractSmartMessageHandler;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * Creates handlers and FHIR values for the {@code fhirVersion} benchmark parameter
+ * ({@code R4} or {@code R5}), so one benchmark compares both handler modules.
+ */
+final class FhirVersions {
+
+    private FhirVersions() {}
+
+    static AbstractSmartMessageHandler handler(String fhirVersion) {
+        switch (fhirVersion) {
+            case "R4":
+                return new health.tiro.swm.r4.SmartMessageHandler();
+            case "R5":
+                return new health.tiro.swm.r5.SmartMessageHandler();
+            default:
+                throw new IllegalArgumentException("Unsupported FHIR version: " + fhirVersion);
+        }
+    }
+
+    static FhirContext fhirContext(String fhirVersion) {
+        switch (fhirVersion) {
+            case "R4":
+                return FhirContext.forR4Cached();
+            case "R5":
+                return FhirContext.forR5Cached();
+            default:
+                throw new IllegalArgumentException("Unsupported FHIR version: " + fhirVersion);
+        }
+    }
+
+    /**
+     * Parse a resource with the lenient settings the handlers use.
+     */
+    static IBaseResource parse(String fhirVersion, String json) {
+        IParser parser = fhirContext(fhirVersion).newJsonParser()
+            .setParserErrorHandler(new LenientErrorHandler().setErrorOnInvalidValue(false));
+        return parser.parseResource(json);
+    }
+
+    static IBaseReference reference(String fhirVersion, String reference, String display) {
+        switch (fhirVersion) {
+            case "R4":
+                return new org.hl7.fhir.r4.model.Reference(reference).setDisplay(display);
+            case "R5":
+                return new org.hl7.fhir.r5.model.Reference(reference).setDisplay(display);
+            default:
+                throw new IllegalArgumentException("Unsupported FHIR version: " + fhirVersion);
+        }
+    }
+}
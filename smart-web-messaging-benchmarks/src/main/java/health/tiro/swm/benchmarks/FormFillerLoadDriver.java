@@ -0,0 +1,263 @@
+package health.tiro.swm.benchmarks;
+
+import health.tiro.formfiller.swing.FormFiller;
+import health.tiro.formfiller.swing.FormFillerConfig;
+import health.tiro.swm.AbstractSmartMessageHandler;
+import health.tiro.swm.SmartMessagingRuntime;
+import health.tiro.swm.metrics.Histogram;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many concurrent {@link FormFiller} sessions against {@link SimulatedBrowser}s and reports
+ * throughput, round-trip latencies and allocation per message. Each session completes the
+ * handshake, then repeatedly displays a questionnaire and submits a QuestionnaireResponse.
+ *
+ * <pre>
+ * java -cp smart-web-messaging-benchmarks/target/benchmarks.jar health.tiro.swm.benchmarks.FormFillerLoadDriver \
+ *     sessions=500 seconds=30 fhirVersion=R5 runtime=true responseItems=100 thinkMin=0 thinkMax=5
+ * </pre>
+ *
+ * Options (all {@code key=value}):
+ * <ul>
+ *   <li>{@code sessions} concurrent FormFillers (default 200)</li>
+ *   <li>{@code warmupSeconds} unmeasured duration after all handshakes, to warm up the JIT (default 10)</li>
+ *   <li>{@code seconds} measured duration after the warmup (default 30)</li>
+ *   <li>{@code fhirVersion} {@code R4} or {@code R5} (default R5)</li>
+ *   <li>{@code questionnaire} example questionnaire to display (default cardiology)</li>
+ *   <li>{@code scale} copies of the questionnaire's items (default 1)</li>
+ *   <li>{@code runtime} share one {@link SmartMessagingRuntime} between sessions instead of standalone handlers (default true)</li>
+ *   <li>{@code workerThreads} runtime worker threads (default: runtime default)</li>
+ *   <li>{@code responseItems} answered items per submitted QuestionnaireResponse (default 20)</li>
+ *   <li>{@code thinkMin}, {@code thinkMax} page think time range in milliseconds (default 0)</li>
+ *   <li>{@code pageLoad} page load time in milliseconds (default 0)</li>
+ *   <li>{@code lostHandshakes} handshake attempts per page that are lost (default 0)</li>
+ * </ul>
+ */
+public final class FormFillerLoadDriver {
+
+    private final Map<String, String> options;
+    private final Histogram handshakes = new Histogram();
+
+    private FormFillerLoadDriver(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new FormFillerLoadDriver(options).run();
+    }
+
+    private void run() throws Exception {
+        int sessions = intOption("sessions", 200);
+        long seconds = intOption("seconds", 30);
+        String fhirVersion = option("fhirVersion", "R5");
+        boolean useRuntime = Boolean.parseBoolean(option("runtime", "true"));
+        IBaseResource questionnaire = FhirVersions.parse(fhirVersion,
+            Payloads.questionnaire(option("questionnaire", "cardiology"), intOption("scale", 1)));
+
+        SimulatedBrowserConfig browserConfig = SimulatedBrowserConfig.builder()
+            .pageLoadMillis(intOption("pageLoad", 0))
+            .lostHandshakes(intOption("lostHandshakes", 0))
+            .thinkTimeMillis(intOption("thinkMin", 0), intOption("thinkMax", intOption("thinkMin", 0)))
+            .responseItems(intOption("responseItems", 20))
+            .build();
+        FormFillerConfig formFillerConfig = FormFillerConfig.builder()
+            .targetUrl("about:blank#simulated")
+            .build();
+
+        SmartMessagingRuntime<? extends AbstractSmartMessageHandler> runtime = useRuntime ? runtime(fhirVersion) : null;
+        List<FormFiller> formFillers = new ArrayList<>(sessions);
+        List<SimulatedBrowser> browsers = new ArrayList<>(sessions);
+        List<CompletableFuture<Void>> connected = new ArrayList<>(sessions);
+
+        System.out.printf("Starting %d %s sessions (%s)%n", sessions, fhirVersion,
+            useRuntime ? "shared runtime" : "standalone handlers");
+        for (int i = 0; i < sessions; i++) {
+            AbstractSmartMessageHandler handler = runtime != null
+                ? runtime.openSession("session-" + i)
+                : FhirVersions.handler(fhirVersion);
+            SimulatedBrowser browser = new SimulatedBrowser(browserConfig);
+            long start = System.nanoTime();
+            FormFiller formFiller = new FormFiller(formFillerConfig, browser, handler);
+            connected.add(formFiller.waitForHandshake().thenRun(() -> handshakes.record(System.nanoTime() - start)));
+            formFillers.add(formFiller);
+            browsers.add(browser);
+        }
+        CompletableFuture.allOf(connected.toArray(new CompletableFuture<?>[0])).get();
+        System.out.println("handshake " + summary(handshakes));
+
+        runPhase(formFillers, browsers, questionnaire, intOption("warmupSeconds", 10));
+
+        long messagesBefore = countMessages(browsers);
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        Phase measured = runPhase(formFillers, browsers, questionnaire, seconds);
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long messages = countMessages(browsers) - messagesBefore;
+
+        double elapsedSeconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        System.out.printf("messages %d in %.1fs: %.0f msg/s, %.0f submissions/s, %d failures%n",
+            messages, elapsedSeconds, messages / elapsedSeconds, measured.submits.getCount() / elapsedSeconds,
+            measured.failures.get());
+        System.out.println("display round trip " + summary(measured.displays));
+        System.out.println("submit round trip  " + summary(measured.submits));
+        if (allocated >= 0 && messages > 0) {
+            System.out.printf("allocated %.1f KiB/message (host and simulated pages, live threads only)%n", allocated / 1024.0 / messages);
+        }
+
+        for (FormFiller formFiller : formFillers) {
+            formFiller.close();
+        }
+        if (runtime != null) {
+            runtime.close();
+        }
+    }
+
+    /**
+     * Run every session's loop until {@code seconds} have passed and wait for them to finish.
+     */
+    private Phase runPhase(List<FormFiller> formFillers, List<SimulatedBrowser> browsers, IBaseResource questionnaire,
+                           long seconds) throws Exception {
+        Phase phase = new Phase(System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        List<CompletableFuture<Void>> done = new ArrayList<>(formFillers.size());
+        for (int i = 0; i < formFillers.size(); i++) {
+            CompletableFuture<Void> sessionDone = new CompletableFuture<>();
+            iterate(phase, formFillers.get(i).getMessageHandler(), browsers.get(i), questionnaire, sessionDone);
+            done.add(sessionDone);
+        }
+        CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).get();
+        return phase;
+    }
+
+    /**
+     * One session's loop: display the questionnaire, wait for the page's acknowledgement, submit,
+     * wait for the host's acknowledgement, repeat until the deadline.
+     */
+    private void iterate(Phase phase, AbstractSmartMessageHandler handler, SimulatedBrowser browser,
+                         IBaseResource questionnaire, CompletableFuture<Void> done) {
+        if (System.nanoTime() >= phase.deadline) {
+            done.complete(null);
+            return;
+        }
+        long displayStart = System.nanoTime();
+        CompletableFuture<Void> displayed = new CompletableFuture<>();
+        handler.sendSdcDisplayQuestionnaireAsync(questionnaire, null, null, null, null, null, response -> {
+            phase.displays.record(System.nanoTime() - displayStart);
+            displayed.complete(null);
+        }).whenComplete((result, error) -> {
+            if (error != null) {
+                displayed.completeExceptionally(error);
+            }
+        });
+        displayed
+            .thenCompose(v -> {
+                long submitStart = System.nanoTime();
+                return browser.submit().thenRun(() -> phase.submits.record(System.nanoTime() - submitStart));
+            })
+            .whenComplete((result, error) -> {
+                if (error != null) {
+                    phase.failures.incrementAndGet();
+                }
+                iterate(phase, handler, browser, questionnaire, done);
+            });
+    }
+
+    private SmartMessagingRuntime<? extends AbstractSmartMessageHandler> runtime(String fhirVersion) {
+        String workerThreads = options.get("workerThreads");
+        if ("R4".equals(fhirVersion)) {
+            SmartMessagingRuntime.Builder<health.tiro.swm.r4.SmartMessageHandler> builder =
+                health.tiro.swm.r4.SmartMessageHandler.runtimeBuilder();
+            if (workerThreads != null) {
+                builder.workerThreads(Integer.parseInt(workerThreads));
+            }
+            return builder.build();
+        }
+        SmartMessagingRuntime.Builder<health.tiro.swm.r5.SmartMessageHandler> builder =
+            health.tiro.swm.r5.SmartMessageHandler.runtimeBuilder();
+        if (workerThreads != null) {
+            builder.workerThreads(Integer.parseInt(workerThreads));
+        }
+        return builder.build();
+    }
+
+    private static long countMessages(List<SimulatedBrowser> browsers) {
+        long messages = 0;
+        for (SimulatedBrowser browser : browsers) {
+            messages += browser.getMessagesSent() + browser.getMessagesReceived();
+        }
+        return messages;
+    }
+
+    /**
+     * Bytes allocated so far by the live threads, or -1 if the JVM does not report it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds());
+        long total = 0;
+        for (long bytes : allocated) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Latencies and failures of one run of the session loops.
+     */
+    private static final class Phase {
+        final long deadline;
+        final Histogram displays = new Histogram();
+        final Histogram submits = new Histogram();
+        final AtomicLong failures = new AtomicLong();
+
+        Phase(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * One line with the count and p50, p99 and max in milliseconds.
+     */
+    private static String summary(Histogram latencies) {
+        return String.format("n=%d p50=%.3fms p99=%.3fms max=%.3fms", latencies.getCount(),
+            millis(latencies.getValueAtPercentile(50)), millis(latencies.getValueAtPercentile(99)),
+            millis(latencies.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,54 @@
+package health.tiro.swm.benchmarks;
+
+import health.tiro.swm.AbstractSmartMessageHandler;
+import health.tiro.swm.events.FormSubmittedEvent;
+import health.tiro.swm.events.SmartMessageListener;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling a {@code form.submitted} message with a listener that uses the parsed resource,
+ * for both FHIR versions, the example questionnaires and synthetic forms {@code scale} times
+ * their size. Run with {@code -prof gc} to see how allocations grow with the form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormSubmittedBenchmark {
+
+    @Param({"R4", "R5"})
+    public String fhirVersion;
+
+    @Param({"cardiology", "internal-medicine"})
+    public String questionnaire;
+
+    @Param({"1", "10"})
+    public int scale;
+
+    private AbstractSmartMessageHandler handler;
+    private String message;
+    private IBaseResource submitted;
+
+    @Setup
+    public void setUp() {
+        message = Payloads.formSubmitted("bench-1", Payloads.questionnaireResponse(questionnaire, scale));
+        handler = FhirVersions.handler(fhirVersion);
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onFormSubmitted(FormSubmittedEvent event) {
+                submitted = event.getResponse();
+            }
+        });
+    }
+
+    @Benchmark
+    public IBaseResource formSubmitted() {
+        handler.handleMessage(message);
+        return submitted;
+    }
+}
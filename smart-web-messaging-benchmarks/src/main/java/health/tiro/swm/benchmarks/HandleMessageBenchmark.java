@@ -0,0 +1,65 @@
+package health.tiro.swm.benchmarks;
+
+import health.tiro.swm.AbstractSmartMessageHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of small inbound messages that do not carry a FHIR resource: the handshake, a
+ * response to an outbound request, and malformed input that is answered with an error.
+ * Run with {@code -prof gc} to see the allocations per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandleMessageBenchmark {
+
+    private static final String OUTBOUND_ID = "bench-out-1";
+
+    @Param({"R4", "R5"})
+    public String fhirVersion;
+
+    private AbstractSmartMessageHandler handler;
+    private String handshake;
+    private String response;
+    private Object lastResponse;
+
+    @Setup
+    public void setUp() {
+        handler = FhirVersions.handler(fhirVersion);
+        handshake = Payloads.handshake("bench-hs-1");
+        response = Payloads.response("bench-in-1", OUTBOUND_ID);
+    }
+
+    @Benchmark
+    public String handshake() {
+        return handler.handleMessage(handshake);
+    }
+
+    @Benchmark
+    public Object response() {
+        handler.registerResponseListener(OUTBOUND_ID, r -> lastResponse = r);
+        handler.handleMessage(response);
+        return lastResponse;
+    }
+
+    @Benchmark
+    public String notJson() {
+        return handler.handleMessage("this is not a message");
+    }
+
+    @Benchmark
+    public String truncated() {
+        return handler.handleMessage("{\"messageId\":\"bench-1\",\"messageType\":\"status.hand");
+    }
+
+    @Benchmark
+    public String unknownMessageType() {
+        return handler.handleMessage("{\"messageId\":\"bench-1\",\"messagingHandle\":\"smart-web-messaging\","
+            + "\"messageType\":\"bench.unknown\",\"payload\":{}}");
+    }
+}
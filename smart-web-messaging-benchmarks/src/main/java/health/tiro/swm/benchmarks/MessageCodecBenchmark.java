@@ -0,0 +1,85 @@
+package health.tiro.swm.benchmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import health.tiro.swm.message.SmartMessageCodec;
+import health.tiro.swm.message.payload.ErrorResponse;
+import health.tiro.swm.message.payload.ResponsePayload;
+import health.tiro.swm.message.payload.SdcConfigure;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Payload encoding and decoding: a plain {@link ObjectMapper} call per value (the previous
+ * behavior) against {@link SmartMessageCodec#jackson(ObjectMapper)} with prebuilt readers and
+ * writers, and {@link SmartMessageCodec#jacksonWithEnvelopeWriters(ObjectMapper)} which writes
+ * the base payload types by hand.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageCodecBenchmark {
+
+    private static final String ERROR_JSON = "{\"errorMessage\":\"Unknown messageType\",\"errorType\":\"UnknownMessageTypeException\"}";
+
+    @Param({"objectMapper", "jackson", "envelopeWriters"})
+    public String codec;
+
+    private ObjectMapper objectMapper;
+    private SmartMessageCodec messageCodec;
+    private ErrorResponse error;
+    private ResponsePayload empty;
+    private SdcConfigure configure;
+
+    @Setup
+    public void setup() {
+        objectMapper = new ObjectMapper();
+        messageCodec = "envelopeWriters".equals(codec)
+                ? SmartMessageCodec.jacksonWithEnvelopeWriters(objectMapper)
+                : SmartMessageCodec.jackson(objectMapper);
+        error = new ErrorResponse("Unknown messageType", "UnknownMessageTypeException");
+        empty = new ResponsePayload();
+        configure = new SdcConfigure("terminology-server", null, null);
+    }
+
+    @Benchmark
+    public String writeErrorResponse() throws IOException {
+        return write(error);
+    }
+
+    @Benchmark
+    public String writeEmptyResponse() throws IOException {
+        return write(empty);
+    }
+
+    @Benchmark
+    public String writeSdcConfigure() throws IOException {
+        return write(configure);
+    }
+
+    @Benchmark
+    public ResponsePayload readErrorResponse() throws IOException {
+        if ("objectMapper".equals(codec)) {
+            return objectMapper.readValue(ERROR_JSON, ResponsePayload.class);
+        }
+        return messageCodec.readResponsePayload(new StringReader(ERROR_JSON));
+    }
+
+    private String write(Object payload) throws IOException {
+        if ("objectMapper".equals(codec)) {
+            return objectMapper.writeValueAsString(payload);
+        }
+        StringWriter out = new StringWriter();
+        try (JsonGenerator gen = messageCodec.getFactory().createGenerator(out)) {
+            messageCodec.writePayload(gen, payload);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package health.tiro.swm.benchmarks;
+
+import health.tiro.swm.message.MessageIdGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message id generation with many sessions sending at once: {@link java.util.UUID#randomUUID()}
+ * (the previous behavior, contending on a shared SecureRandom) against the
+ * {@link MessageIdGenerator} implementations. The prefixed counter is shared by all threads,
+ * as it would be by the sessions of one handler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class MessageIdBenchmark {
+
+    private final MessageIdGenerator secureRandomUuid = MessageIdGenerator.secureRandomUuid();
+    private final MessageIdGenerator randomUuid = MessageIdGenerator.randomUuid();
+    private final MessageIdGenerator prefixedCounter = MessageIdGenerator.prefixedCounter();
+
+    @Benchmark
+    public String secureRandomUuid() {
+        return secureRandomUuid.nextId();
+    }
+
+    @Benchmark
+    public String randomUuid() {
+        return randomUuid.nextId();
+    }
+
+    @Benchmark
+    public String prefixedCounter() {
+        return prefixedCounter.nextId();
+    }
+}
@@ -0,0 +1,84 @@
+package health.tiro.swm.benchmarks;
+
+import health.tiro.swm.AbstractSmartMessageHandler;
+import health.tiro.swm.message.payload.LaunchContext;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing {@code sdc.displayQuestionnaire} messages: with the Questionnaire resource,
+ * with only its canonical URL, and with a canonical URL plus subject, author and encounter
+ * references and launch context. The sender keeps the last message and completes at once, and
+ * every message reuses one ID, so each display's acknowledgement listener replaces the previous
+ * one instead of piling up, and only the serializer is measured. Run with {@code -prof gc} to see the allocations per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutboundSerializerBenchmark {
+
+    private static final String CANONICAL_URL = "http://templates.tiro.health/templates/benchmark|1.0.0";
+
+    @Param({"R4", "R5"})
+    public String fhirVersion;
+
+    @Param({"cardiology", "internal-medicine"})
+    public String questionnaire;
+
+    @Param({"1", "10"})
+    public int scale;
+
+    private AbstractSmartMessageHandler handler;
+    private IBaseResource questionnaireResource;
+    private IBaseReference subject;
+    private IBaseReference author;
+    private IBaseReference encounter;
+    private List<LaunchContext> launchContext;
+    private String lastMessage;
+
+    @Setup
+    public void setUp() {
+        questionnaireResource = FhirVersions.parse(fhirVersion, Payloads.questionnaire(questionnaire, scale));
+        subject = FhirVersions.reference(fhirVersion, "Patient/bench-patient", "Jane Doe");
+        author = FhirVersions.reference(fhirVersion, "Practitioner/bench-practitioner", "Dr. John Smith");
+        encounter = FhirVersions.reference(fhirVersion, "Encounter/bench-encounter", null);
+        launchContext = Arrays.asList(
+            new LaunchContext("patient", subject, null),
+            new LaunchContext("user", author, null),
+            new LaunchContext("encounter", encounter, null));
+
+        handler = FhirVersions.handler(fhirVersion);
+        handler.setMessageIdGenerator(() -> "bench-display");
+        handler.setMessageSender(message -> {
+            lastMessage = message;
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    @Benchmark
+    public String questionnaireResource() {
+        handler.sendSdcDisplayQuestionnaireAsync(questionnaireResource, null, null, null, null, null, null);
+        return lastMessage;
+    }
+
+    @Benchmark
+    public String canonicalUrl() {
+        handler.sendSdcDisplayQuestionnaireAsync(CANONICAL_URL, null, null, null, null, null, null);
+        return lastMessage;
+    }
+
+    @Benchmark
+    public String canonicalUrlWithReferences() {
+        handler.sendSdcDisplayQuestionnaireAsync(CANONICAL_URL, null, subject, author, encounter, launchContext, null);
+        return lastMessage;
+    }
+}
@@ -0,0 +1,202 @@
+package health.tiro.swm.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds benchmark messages from the example questionnaires bundled on the classpath.
+ */
+final class Payloads {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private Payloads() {}
+
+    /**
+     * Load an example questionnaire ({@code cardiology} or {@code internal-medicine}) as JSON text.
+     */
+    static String questionnaire(String name) {
+        String path = "questionnaires/" + name + ".json";
+        try (InputStream is = Payloads.class.getClassLoader().getResourceAsStream(path)) {
+            if (is == null) {
+                throw new IllegalStateException("Benchmark payload not found on classpath: " + path);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load benchmark payload " + path, e);
+        }
+    }
+
+    /**
+     * Wrap a QuestionnaireResponse as the {@code response} of a {@code form.submitted} request,
+     * with a small OperationOutcome as {@code outcome}.
+     */
+    static String formSubmitted(String messageId, String responseJson) {
+        return "{"
+            + "\"messageId\":\"" + messageId + "\","
+            + "\"messagingHandle\":\"smart-web-messaging\","
+            + "\"messageType\":\"form.submitted\","
+            + "\"payload\":{"
+            + "\"response\":" + responseJson + ","
+            + "\"outcome\":{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"information\","
+            + "\"code\":\"informational\",\"diagnostics\":\"Form submitted successfully\"}]}"
+            + "}}";
+    }
+
+    /**
+     * An example questionnaire scaled up to {@code scale} copies of its items, with unique
+     * {@code linkId}s, to measure how costs grow with the size of a form. A scale of 1
+     * returns the questionnaire unchanged.
+     */
+    static String questionnaire(String name, int scale) {
+        String json = questionnaire(name);
+        if (scale <= 1) {
+            return json;
+        }
+        try {
+            ObjectNode questionnaire = (ObjectNode) objectMapper.readTree(json);
+            JsonNode items = questionnaire.path("item");
+            ArrayNode scaled = objectMapper.createArrayNode();
+            for (int copy = 0; copy < scale; copy++) {
+                for (JsonNode item : items) {
+                    JsonNode clone = item.deepCopy();
+                    suffixLinkIds(clone, "-" + copy);
+                    scaled.add(clone);
+                }
+            }
+            questionnaire.set("item", scaled);
+            return objectMapper.writeValueAsString(questionnaire);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to scale benchmark payload " + name, e);
+        }
+    }
+
+    /**
+     * A completed QuestionnaireResponse to an example questionnaire scaled by {@code scale}
+     * (see {@link #questionnaire(String, int)}), as JSON text: every question is answered once
+     * with a value of its type, and groups are nested as in the questionnaire. This is what
+     * the page submits in {@code form.submitted}.
+     */
+    static String questionnaireResponse(String name, int scale) {
+        try {
+            JsonNode questionnaire = objectMapper.readTree(questionnaire(name, scale));
+            ObjectNode response = objectMapper.createObjectNode();
+            response.put("resourceType", "QuestionnaireResponse");
+            response.put("status", "completed");
+            response.put("questionnaire", questionnaire.path("url").asText());
+            response.put("authored", "2024-01-01T12:00:00Z");
+            response.set("item", answerItems(questionnaire.path("item")));
+            return objectMapper.writeValueAsString(response);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to build benchmark response for " + name, e);
+        }
+    }
+
+    /**
+     * A {@code status.handshake} request.
+     */
+    static String handshake(String messageId) {
+        return "{"
+            + "\"messageId\":\"" + messageId + "\","
+            + "\"messagingHandle\":\"smart-web-messaging\","
+            + "\"messageType\":\"status.handshake\","
+            + "\"payload\":{}"
+            + "}";
+    }
+
+    /**
+     * The page's response to an outbound request, with a few extra payload fields.
+     */
+    static String response(String messageId, String responseToMessageId) {
+        return "{"
+            + "\"messageId\":\"" + messageId + "\","
+            + "\"responseToMessageId\":\"" + responseToMessageId + "\","
+            + "\"additionalResponsesExpected\":false,"
+            + "\"payload\":{\"status\":\"success\",\"statusDetail\":{\"text\":\"Questionnaire displayed\"}}"
+            + "}";
+    }
+
+    private static ArrayNode answerItems(JsonNode questions) {
+        ArrayNode items = objectMapper.createArrayNode();
+        for (JsonNode question : questions) {
+            String type = question.path("type").asText();
+            if ("display".equals(type)) {
+                continue;
+            }
+            ObjectNode item = items.addObject();
+            item.put("linkId", question.path("linkId").asText());
+            if (question.has("text")) {
+                item.put("text", question.get("text").asText());
+            }
+            if ("group".equals(type)) {
+                item.set("item", answerItems(question.path("item")));
+            } else {
+                answer(item.putArray("answer").addObject(), type, question);
+            }
+        }
+        return items;
+    }
+
+    private static void answer(ObjectNode answer, String type, JsonNode question) {
+        switch (type) {
+            case "boolean":
+                answer.put("valueBoolean", true);
+                break;
+            case "decimal":
+                answer.put("valueDecimal", 72.5);
+                break;
+            case "integer":
+                answer.put("valueInteger", 3);
+                break;
+            case "date":
+                answer.put("valueDate", "2024-01-01");
+                break;
+            case "dateTime":
+                answer.put("valueDateTime", "2024-01-01T12:00:00Z");
+                break;
+            case "choice":
+            case "coding":
+                JsonNode option = question.path("answerOption").path(0).path("valueCoding");
+                if (option.isMissingNode()) {
+                    answer.putObject("valueCoding")
+                        .put("system", "http://snomed.info/sct")
+                        .put("code", "49601007")
+                        .put("display", "Disorder of cardiovascular system");
+                } else {
+                    answer.set("valueCoding", option.deepCopy());
+                }
+                break;
+            case "reference":
+                answer.putObject("valueReference")
+                    .put("reference", "Practitioner/bench-practitioner")
+                    .put("display", "Dr. John Smith");
+                break;
+            default:
+                answer.put("valueString", "Answer to " + question.path("linkId").asText());
+                break;
+        }
+    }
+
+    private static void suffixLinkIds(JsonNode item, String suffix) {
+        if (item.has("linkId")) {
+            ((ObjectNode) item).put("linkId", item.get("linkId").asText() + suffix);
+        }
+        for (JsonNode child : item.path("item")) {
+            suffixLinkIds(child, suffix);
+        }
+    }
+}
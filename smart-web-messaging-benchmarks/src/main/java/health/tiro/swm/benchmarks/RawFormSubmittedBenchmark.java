@@ -0,0 +1,66 @@
+package health.tiro.swm.benchmarks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import health.tiro.swm.events.FormSubmittedEvent;
+import health.tiro.swm.events.SmartMessageListener;
+import health.tiro.swm.r5.SmartMessageHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling a {@code form.submitted} message for an application that forwards the submission
+ * as UTF-8 JSON: a regular listener that gets the parsed resource and encodes it again, versus a
+ * raw listener that gets the bytes of the original JSON, for the example questionnaires and
+ * synthetic forms {@code scale} times their size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RawFormSubmittedBenchmark {
+
+    @Param({"cardiology", "internal-medicine"})
+    public String questionnaire;
+
+    @Param({"1", "10"})
+    public int scale;
+
+    private String message;
+    private SmartMessageHandler modelHandler;
+    private SmartMessageHandler rawHandler;
+    private byte[] forwarded;
+
+    @Setup
+    public void setUp() {
+        message = Payloads.formSubmitted("bench-1", Payloads.questionnaireResponse(questionnaire, scale));
+        IParser encoder = FhirContext.forR5Cached().newJsonParser();
+
+        modelHandler = new SmartMessageHandler();
+        modelHandler.addListener(new SmartMessageListener() {
+            @Override
+            public void onFormSubmitted(FormSubmittedEvent event) {
+                forwarded = encoder.encodeResourceToString(event.getResponse()).getBytes(StandardCharsets.UTF_8);
+            }
+        });
+
+        rawHandler = new SmartMessageHandler();
+        rawHandler.addRawListener(event -> forwarded = event.getResponseBytes());
+    }
+
+    @Benchmark
+    public byte[] parseAndEncode() {
+        modelHandler.handleMessage(message);
+        return forwarded;
+    }
+
+    @Benchmark
+    public byte[] raw() {
+        rawHandler.handleMessage(message);
+        return forwarded;
+    }
+}
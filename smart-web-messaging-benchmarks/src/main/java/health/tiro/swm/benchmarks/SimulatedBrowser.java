@@ -0,0 +1,580 @@
+package health.tiro.swm.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import health.tiro.formfiller.swing.EmbeddedBrowser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.swing.JPanel;
+import java.awt.Component;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In-memory {@link EmbeddedBrowser} whose page behaves like {@code tiro-swm-bridge.js} with a
+ * form filler, without a browser engine. Use it to load-test {@link health.tiro.formfiller.swing.FormFiller}
+ * and the message handler on a headless machine.
+ *
+ * <p>After {@code loadUrl} the page retries the handshake until the host answers, acknowledges
+ * host messages like the bridge does, renders the latest {@code sdc.displayQuestionnaire}, and
+ * sends {@code form.submitted} with a generated QuestionnaireResponse on {@code ui.form.requestSubmit}
+ * or {@link #submit()}. Each page runs its events one at a time, like a JS event loop, on a
+ * scheduler shared by all simulated browsers. {@link #executeJavaScript(String)} is ignored.
+ *
+ * <pre>{@code
+ * SimulatedBrowser browser = new SimulatedBrowser(SimulatedBrowserConfig.builder()
+ *     .thinkTimeMillis(5, 50)
+ *     .build());
+ * FormFiller filler = new FormFiller(config, browser, handler);
+ * browser.whenConnected().get();
+ * browser.submit().get();
+ * }</pre>
+ */
+public class SimulatedBrowser implements EmbeddedBrowser, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimulatedBrowser.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final AtomicInteger browserNumber = new AtomicInteger();
+    private static final String MESSAGING_HANDLE = "smart-web-messaging";
+    private static final long REQUEST_TIMEOUT_MILLIS = 30000;
+
+    private final SimulatedBrowserConfig config;
+    private final ScheduledExecutorService scheduler;
+    private final EventLoop eventLoop = new EventLoop();
+    private final String idPrefix = "page-" + browserNumber.incrementAndGet() + "-";
+    private final AtomicLong idCounter = new AtomicLong();
+    private final String submittedPayload;
+    private final List<Runnable> pageLoadListeners = new CopyOnWriteArrayList<>();
+    private final List<Runnable> beforeBridgeInjectionListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong displays = new AtomicLong();
+    private volatile Executor messageExecutor;
+    private ExecutorService ownedExecutor;
+    private volatile Function<String, String> incomingMessageHandler;
+    private volatile Page page;
+    private volatile boolean closed;
+
+    public SimulatedBrowser() {
+        this(new SimulatedBrowserConfig());
+    }
+
+    public SimulatedBrowser(SimulatedBrowserConfig config) {
+        this.config = config;
+        this.scheduler = config.getScheduler() != null ? config.getScheduler() : DefaultScheduler.INSTANCE;
+        this.submittedPayload = createSubmittedPayload(config.getResponseItems(), config.getAnswerLength());
+    }
+
+    // ========== EmbeddedBrowser ==========
+
+    @Override
+    public Component createComponent() {
+        return new JPanel();
+    }
+
+    @Override
+    public void loadUrl(String url) {
+        Page previous = page;
+        Page next = new Page();
+        page = next;
+        if (previous != null) {
+            eventLoop.execute(() -> previous.unload(new CancellationException("Page was reloaded")));
+        }
+        logger.debug("Simulated page loading: {}", url);
+        schedule(config.getPageLoadMillis(), () -> onLoad(next));
+    }
+
+    /**
+     * Ignored: the simulated page has no JS engine. Messages must be sent with
+     * {@link #sendMessage(String)} or {@link #sendMessages(List)}.
+     */
+    @Override
+    public void executeJavaScript(String script) {
+        logger.debug("Ignoring script in simulated browser ({} chars)", script.length());
+    }
+
+    @Override
+    public void sendMessage(String json) {
+        messagesReceived.incrementAndGet();
+        Page target = page;
+        eventLoop.execute(() -> onHostMessage(target, json));
+    }
+
+    @Override
+    public void sendMessages(List<String> jsonMessages) {
+        for (String json : jsonMessages) {
+            sendMessage(json);
+        }
+    }
+
+    @Override
+    public void setIncomingMessageHandler(Function<String, String> handler) {
+        this.incomingMessageHandler = handler;
+    }
+
+    @Override
+    public void setMessageExecutor(Executor executor) {
+        this.messageExecutor = executor;
+    }
+
+    @Override
+    public void addPageLoadListener(Runnable callback) {
+        pageLoadListeners.add(callback);
+    }
+
+    @Override
+    public void addBeforeBridgeInjectionListener(Runnable callback) {
+        beforeBridgeInjectionListeners.add(callback);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Page current = page;
+        if (current != null) {
+            eventLoop.execute(() -> current.unload(new CancellationException("Browser was closed")));
+        }
+        synchronized (this) {
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdownNow();
+            }
+        }
+    }
+
+    // ========== Simulation ==========
+
+    /**
+     * A future that completes when the current page has received the host's handshake response,
+     * or fails when the page gives up retrying.
+     */
+    public CompletableFuture<Void> whenConnected() {
+        Page current = page;
+        if (current == null) {
+            CompletableFuture<Void> notLoaded = new CompletableFuture<>();
+            notLoaded.completeExceptionally(new IllegalStateException("No page loaded"));
+            return notLoaded;
+        }
+        return current.connected;
+    }
+
+    /**
+     * Submit the form as if the user pressed submit: after a think time the page sends
+     * {@code form.submitted}. The future completes when the host acknowledges it.
+     */
+    public CompletableFuture<Void> submit() {
+        CompletableFuture<Void> acknowledged = new CompletableFuture<>();
+        Page target = page;
+        if (target == null) {
+            acknowledged.completeExceptionally(new IllegalStateException("No page loaded"));
+            return acknowledged;
+        }
+        schedule(thinkTimeMillis(), () -> sendRequest(target, "form.submitted", submittedPayload)
+            .whenComplete((payload, error) -> {
+                if (error != null) {
+                    acknowledged.completeExceptionally(error);
+                } else {
+                    acknowledged.complete(null);
+                }
+            }));
+        return acknowledged;
+    }
+
+    /**
+     * Number of messages the page has sent to the host, including lost handshake attempts.
+     */
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    /**
+     * Number of messages the host has sent to the page.
+     */
+    public long getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    /**
+     * Number of questionnaires rendered; superseded and cancelled displays are not counted.
+     */
+    public long getDisplayCount() {
+        return displays.get();
+    }
+
+    // ========== Page (runs on the event loop) ==========
+
+    private void onLoad(Page target) {
+        if (target != page || closed) {
+            return;
+        }
+        // No bridge to inject: the simulated page speaks the protocol itself
+        runListeners(beforeBridgeInjectionListeners);
+        runListeners(pageLoadListeners);
+        target.loaded = true;
+        target.handshakeStarted = System.currentTimeMillis();
+        attemptHandshake(target);
+    }
+
+    private static void runListeners(List<Runnable> listeners) {
+        for (Runnable listener : listeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error("Error in page load listener", e);
+            }
+        }
+    }
+
+    private void attemptHandshake(Page target) {
+        if (target.connected.isDone() || target != page) {
+            return;
+        }
+        if (System.currentTimeMillis() - target.handshakeStarted >= config.getHandshakeTimeoutMillis()) {
+            target.handshakeIds.forEach(target.pendingRequests::remove);
+            target.connected.completeExceptionally(new TimeoutException("Handshake timeout"));
+            return;
+        }
+        String messageId = nextId();
+        target.handshakeIds.add(messageId);
+        CompletableFuture<JsonNode> response = new CompletableFuture<>();
+        target.pendingRequests.put(messageId, response);
+        response.thenRun(() -> {
+            target.handshakeIds.forEach(target.pendingRequests::remove);
+            target.connected.complete(null);
+        });
+
+        String message = request(messageId, "status.handshake", "{}");
+        if (target.handshakeAttempts++ < config.getLostHandshakes()) {
+            messagesSent.incrementAndGet();
+            logger.debug("Dropping simulated handshake attempt {}", messageId);
+        } else {
+            sendToHost(message);
+        }
+        schedule(config.getHandshakeRetryMillis(), () -> attemptHandshake(target));
+    }
+
+    private void onHostMessage(Page target, String json) {
+        if (target == null || target != page || !target.loaded) {
+            // Like swmReceiveMessage before the bridge is injected
+            logger.debug("Simulated page not ready, dropping message");
+            return;
+        }
+        JsonNode message;
+        try {
+            message = objectMapper.readTree(json);
+        } catch (IOException e) {
+            logger.error("Simulated page failed to parse message", e);
+            return;
+        }
+
+        String responseTo = message.path("responseToMessageId").asText(null);
+        if (responseTo != null) {
+            CompletableFuture<JsonNode> pending = target.pendingRequests.get(responseTo);
+            if (pending != null) {
+                if (!message.path("additionalResponsesExpected").asBoolean(false)) {
+                    target.pendingRequests.remove(responseTo);
+                }
+                JsonNode payload = message.path("payload");
+                if ("error".equals(payload.path("$type").asText())) {
+                    pending.completeExceptionally(new IllegalStateException(payload.path("errorMessage").asText()));
+                } else {
+                    pending.complete(payload);
+                }
+            }
+            return;
+        }
+
+        String messageType = message.path("messageType").asText(null);
+        if (messageType == null) {
+            return;
+        }
+        String messageId = message.path("messageId").asText();
+        switch (messageType) {
+            case "sdc.configure":
+            case "sdc.configureContext":
+            case "ui.form.persist":
+                break;
+            case "sdc.displayQuestionnaire":
+                // Acknowledged once rendered, or with an error if dropped, like the bridge
+                if (target.pendingDisplay == null) {
+                    eventLoop.execute(() -> flushDisplay(target));
+                } else {
+                    dropDisplay(target.pendingDisplay, "Superseded by a newer questionnaire");
+                }
+                target.pendingDisplay = messageId;
+                return;
+            case "sdc.cancelDisplayQuestionnaire":
+                String cancelled = message.path("payload").path("messageId").asText(null);
+                if (target.pendingDisplay != null && (cancelled == null || cancelled.equals(target.pendingDisplay))) {
+                    dropDisplay(target.pendingDisplay, "Cancelled by the host");
+                    target.pendingDisplay = null;
+                }
+                break;
+            case "ui.form.requestSubmit":
+                flushDisplay(target);
+                if (target.questionnaireDisplayed) {
+                    submit();
+                }
+                break;
+            default:
+                respond(messageId, "{\"$type\":\"error\",\"errorMessage\":\"Unknown message type: " + messageType
+                    + "\",\"errorType\":\"UnknownMessageTypeException\"}");
+                return;
+        }
+        respond(messageId, "{\"$type\":\"base\"}");
+    }
+
+    private void flushDisplay(Page target) {
+        String messageId = target.pendingDisplay;
+        if (messageId != null) {
+            target.pendingDisplay = null;
+            target.questionnaireDisplayed = true;
+            displays.incrementAndGet();
+            respond(messageId, "{\"$type\":\"base\"}");
+        }
+    }
+
+    private void dropDisplay(String messageId, String reason) {
+        respond(messageId, "{\"$type\":\"error\",\"errorMessage\":\"" + reason
+            + "\",\"errorType\":\"CancellationException\"}");
+    }
+
+    private CompletableFuture<JsonNode> sendRequest(Page target, String messageType, String payloadJson) {
+        CompletableFuture<JsonNode> response = new CompletableFuture<>();
+        eventLoop.execute(() -> {
+            if (target != page) {
+                response.completeExceptionally(new CancellationException("Page was reloaded"));
+                return;
+            }
+            String messageId = nextId();
+            target.pendingRequests.put(messageId, response);
+            ScheduledFuture<?> timeout = schedule(REQUEST_TIMEOUT_MILLIS, () -> {
+                if (target.pendingRequests.remove(messageId) != null) {
+                    response.completeExceptionally(new TimeoutException("Request timeout: " + messageType));
+                }
+            });
+            response.whenComplete((payload, error) -> timeout.cancel(false));
+            sendToHost(request(messageId, messageType, payloadJson));
+        });
+        return response;
+    }
+
+    private void respond(String responseToMessageId, String payloadJson) {
+        String response = "{\"messageId\":\"" + nextId() + "\",\"responseToMessageId\":\"" + responseToMessageId
+            + "\",\"additionalResponsesExpected\":false,\"payload\":" + payloadJson + "}";
+        long thinkTime = thinkTimeMillis();
+        if (thinkTime == 0) {
+            sendToHost(response);
+        } else {
+            schedule(thinkTime, () -> sendToHost(response));
+        }
+    }
+
+    // ========== Transport ==========
+
+    /**
+     * Deliver a page message to the host, like the adapters' JS→Java transport.
+     */
+    private void sendToHost(String json) {
+        messagesSent.incrementAndGet();
+        Function<String, String> handler = incomingMessageHandler;
+        if (handler == null || closed) {
+            return;
+        }
+        messageExecutor().execute(() -> {
+            try {
+                String responseJson = handler.apply(json);
+                if (responseJson != null) {
+                    sendMessage(responseJson);
+                }
+            } catch (Exception e) {
+                logger.error("Error processing message", e);
+            }
+        });
+    }
+
+    /**
+     * The executor set with {@link #setMessageExecutor(Executor)}, or a thread of our own.
+     */
+    private Executor messageExecutor() {
+        Executor executor = messageExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (this) {
+            if (ownedExecutor == null) {
+                ownedExecutor = Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "swm-message-handler");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return ownedExecutor;
+        }
+    }
+
+    /**
+     * Run a task on the event loop after a delay.
+     *
+     * @return the scheduled task, or null if the delay is 0 and the task was queued at once
+     */
+    private ScheduledFuture<?> schedule(long delayMillis, Runnable task) {
+        if (delayMillis <= 0) {
+            eventLoop.execute(task);
+            return null;
+        }
+        return scheduler.schedule(() -> eventLoop.execute(task), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long thinkTimeMillis() {
+        long min = config.getMinThinkTimeMillis();
+        long max = config.getMaxThinkTimeMillis();
+        return min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    private String nextId() {
+        return idPrefix + idCounter.incrementAndGet();
+    }
+
+    private static String request(String messageId, String messageType, String payloadJson) {
+        return "{\"messageId\":\"" + messageId + "\",\"messagingHandle\":\"" + MESSAGING_HANDLE
+            + "\",\"messageType\":\"" + messageType + "\",\"payload\":" + payloadJson + "}";
+    }
+
+    /**
+     * The {@code form.submitted} payload: a completed QuestionnaireResponse with {@code items}
+     * string answers and the bridge's OperationOutcome. Built once per browser.
+     */
+    private static String createSubmittedPayload(int items, int answerLength) {
+        ObjectNode response = objectMapper.createObjectNode();
+        response.put("resourceType", "QuestionnaireResponse");
+        response.put("status", "completed");
+        response.put("questionnaire", "http://templates.tiro.health/templates/simulated");
+        ArrayNode item = response.putArray("item");
+        StringBuilder answer = new StringBuilder(answerLength);
+        for (int i = 0; i < answerLength; i++) {
+            answer.append((char) ('a' + i % 26));
+        }
+        for (int i = 0; i < items; i++) {
+            ObjectNode entry = item.addObject();
+            entry.put("linkId", "item-" + i);
+            entry.put("text", "Question " + i);
+            entry.putArray("answer").addObject().put("valueString", answer.toString());
+        }
+
+        ObjectNode payload = objectMapper.createObjectNode();
+        payload.set("response", response);
+        ObjectNode outcome = payload.putObject("outcome");
+        outcome.put("resourceType", "OperationOutcome");
+        outcome.putArray("issue").addObject()
+            .put("severity", "information")
+            .put("code", "informational")
+            .put("diagnostics", "Form submitted successfully");
+        return payload.toString();
+    }
+
+    /**
+     * State of one loaded page, only touched on the event loop.
+     */
+    private static final class Page {
+        final CompletableFuture<Void> connected = new CompletableFuture<>();
+        final Map<String, CompletableFuture<JsonNode>> pendingRequests = new HashMap<>();
+        final Set<String> handshakeIds = new HashSet<>();
+        boolean loaded;
+        long handshakeStarted;
+        int handshakeAttempts;
+        String pendingDisplay;
+        boolean questionnaireDisplayed;
+
+        void unload(Exception reason) {
+            connected.completeExceptionally(reason);
+            for (CompletableFuture<JsonNode> pending : pendingRequests.values()) {
+                pending.completeExceptionally(reason);
+            }
+            pendingRequests.clear();
+        }
+    }
+
+    /**
+     * Runs the page's tasks one at a time, in order, on the shared scheduler.
+     */
+    private final class EventLoop implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    scheduler.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    logger.warn("Simulated page scheduler rejected a task");
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Error in simulated page", e);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    scheduler.execute(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * One scheduler for the pages of all simulated browsers without a configured scheduler.
+     */
+    private static final class DefaultScheduler {
+        static final ScheduledExecutorService INSTANCE = create();
+
+        private static ScheduledExecutorService create() {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread t = new Thread(r, "swm-simulated-page-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package health.tiro.swm.benchmarks;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Configuration for {@link SimulatedBrowser}.
+ * Use {@link #builder()} to create instances.
+ *
+ * <pre>{@code
+ * SimulatedBrowserConfig config = SimulatedBrowserConfig.builder()
+ *     .pageLoadMillis(200)
+ *     .thinkTimeMillis(5, 50)
+ *     .responseItems(100)
+ *     .build();
+ * }</pre>
+ */
+public class SimulatedBrowserConfig {
+
+    private final long pageLoadMillis;
+    private final long handshakeRetryMillis;
+    private final long handshakeTimeoutMillis;
+    private final int lostHandshakes;
+    private final long minThinkTimeMillis;
+    private final long maxThinkTimeMillis;
+    private final int responseItems;
+    private final int answerLength;
+    private final ScheduledExecutorService scheduler;
+
+    private SimulatedBrowserConfig(Builder builder) {
+        this.pageLoadMillis = builder.pageLoadMillis;
+        this.handshakeRetryMillis = builder.handshakeRetryMillis;
+        this.handshakeTimeoutMillis = builder.handshakeTimeoutMillis;
+        this.lostHandshakes = builder.lostHandshakes;
+        this.minThinkTimeMillis = builder.minThinkTimeMillis;
+        this.maxThinkTimeMillis = builder.maxThinkTimeMillis;
+        this.responseItems = builder.responseItems;
+        this.answerLength = builder.answerLength;
+        this.scheduler = builder.scheduler;
+    }
+
+    public SimulatedBrowserConfig() {
+        this(new Builder());
+    }
+
+    public long getPageLoadMillis() {
+        return pageLoadMillis;
+    }
+
+    public long getHandshakeRetryMillis() {
+        return handshakeRetryMillis;
+    }
+
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getLostHandshakes() {
+        return lostHandshakes;
+    }
+
+    public long getMinThinkTimeMillis() {
+        return minThinkTimeMillis;
+    }
+
+    public long getMaxThinkTimeMillis() {
+        return maxThinkTimeMillis;
+    }
+
+    public int getResponseItems() {
+        return responseItems;
+    }
+
+    public int getAnswerLength() {
+        return answerLength;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long pageLoadMillis;
+        private long handshakeRetryMillis = 1000;
+        private long handshakeTimeoutMillis = 30000;
+        private int lostHandshakes;
+        private long minThinkTimeMillis;
+        private long maxThinkTimeMillis;
+        private int responseItems = 20;
+        private int answerLength = 32;
+        private ScheduledExecutorService scheduler;
+
+        private Builder() {}
+
+        /**
+         * Set the time between {@code loadUrl} and the bridge starting its handshake (default: 0).
+         */
+        public Builder pageLoadMillis(long pageLoadMillis) {
+            this.pageLoadMillis = pageLoadMillis;
+            return this;
+        }
+
+        /**
+         * Set the interval between handshake attempts (default: 1000, as in the JS bridge).
+         */
+        public Builder handshakeRetryMillis(long handshakeRetryMillis) {
+            this.handshakeRetryMillis = handshakeRetryMillis;
+            return this;
+        }
+
+        /**
+         * Set the time after which the page stops retrying the handshake (default: 30000, as in the JS bridge).
+         */
+        public Builder handshakeTimeoutMillis(long handshakeTimeoutMillis) {
+            this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Set the number of handshake attempts per page load that never reach the host (default: 0),
+         * e.g. to exercise the retries.
+         */
+        public Builder lostHandshakes(int lostHandshakes) {
+            this.lostHandshakes = lostHandshakes;
+            return this;
+        }
+
+        /**
+         * Set the range of the random delay before the page answers a message or submits the
+         * form (default: 0, answer at once).
+         */
+        public Builder thinkTimeMillis(long minThinkTimeMillis, long maxThinkTimeMillis) {
+            this.minThinkTimeMillis = minThinkTimeMillis;
+            this.maxThinkTimeMillis = maxThinkTimeMillis;
+            return this;
+        }
+
+        /**
+         * Set the number of answered items in submitted QuestionnaireResponses (default: 20).
+         */
+        public Builder responseItems(int responseItems) {
+            this.responseItems = responseItems;
+            return this;
+        }
+
+        /**
+         * Set the length of each answer text in submitted QuestionnaireResponses (default: 32).
+         */
+        public Builder answerLength(int answerLength) {
+            this.answerLength = answerLength;
+            return this;
+        }
+
+        /**
+         * Set the scheduler that runs the pages, shared by all browsers using this configuration.
+         * Defaults to one daemon scheduler with a thread per processor for all simulated browsers.
+         */
+        public Builder scheduler(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public SimulatedBrowserConfig build() {
+            if (pageLoadMillis < 0 || handshakeRetryMillis <= 0 || handshakeTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("pageLoadMillis must not be negative, handshake times must be positive");
+            }
+            if (minThinkTimeMillis < 0 || maxThinkTimeMillis < minThinkTimeMillis) {
+                throw new IllegalArgumentException("thinkTimeMillis must be a range of non-negative values");
+            }
+            if (lostHandshakes < 0 || responseItems < 0 || answerLength < 0) {
+                throw new IllegalArgumentException("lostHandshakes, responseItems and answerLength must not be negative");
+            }
+            return new SimulatedBrowserConfig(this);
+        }
+    }
+}
@@ -2,26 +2,44 @@ package health.tiro.swm;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
-import com.fasterxml.jackson.core.JsonProcessingException;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
 import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.PropertyNamingStrategies;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import health.tiro.swm.events.*;
+import health.tiro.swm.message.JsonSlice;
+import health.tiro.swm.message.MalformedMessageException;
+import health.tiro.swm.message.MessageIdGenerator;
+import health.tiro.swm.message.SmartMessageCodec;
+import health.tiro.swm.message.SmartMessageEnvelope;
 import health.tiro.swm.message.SmartMessageRequest;
 import health.tiro.swm.message.SmartMessageResponse;
 import health.tiro.swm.message.payload.*;
+import health.tiro.swm.metrics.NoOpSmartMessagingMetrics;
+import health.tiro.swm.metrics.SmartMessagingMetrics;
+import health.tiro.swm.metrics.SmartMessagingMetricsFactory;
 import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -33,14 +51,32 @@ import java.util.regex.Pattern;
 public abstract class AbstractSmartMessageHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(AbstractSmartMessageHandler.class);
+    private static final long DEFAULT_RESPONSE_TIMEOUT_MILLIS = 60_000;
     private static final Pattern MESSAGE_ID_PATTERN = Pattern.compile("\"messageId\"\\s*:\\s*\"([^\"]+)\"", Pattern.CASE_INSENSITIVE);
 
     private final ObjectMapper objectMapper;
-    private final IParser fhirJsonParser;
+    private final SmartMessageCodec defaultCodec;
+    private final FhirParserPool fhirParsers;
+    private final FhirTerser fhirTerser;
+    private final String fhirVersion;
     private final List<SmartMessageListener> listeners = new CopyOnWriteArrayList<>();
-    private final Map<String, Consumer<SmartMessageResponse>> responseListeners = new ConcurrentHashMap<>();
+    private final List<RawSmartMessageListener> rawListeners = new CopyOnWriteArrayList<>();
+    private final PendingResponses responseListeners = new PendingResponses(HashedWheelTimer.shared(),
+            task -> callbackExecutor().execute(task));
+    private final LaunchContextTracker launchContextTracker = new LaunchContextTracker();
+    private final MessageTypeRegistry messageTypeHandlers = new MessageTypeRegistry();
+    private final ListenerDispatcher listenerDispatcher = new ListenerDispatcher();
+    private final ThreadLocal<MessageBatch> currentBatch = new ThreadLocal<>();
+    private final SmartMessagingRuntime<?> runtime;
 
     private volatile MessageSender messageSender;
+    private volatile SmartMessageCodec messageCodec;
+    private volatile QuestionnaireCache questionnaireCache;
+    private volatile boolean launchContextDeltaEnabled;
+    private volatile long responseTimeoutMillis = DEFAULT_RESPONSE_TIMEOUT_MILLIS;
+    private volatile MessageIdGenerator messageIdGenerator = MessageIdGenerator.randomUuid();
+    private volatile SmartMessagingMetrics metrics = NoOpSmartMessagingMetrics.INSTANCE;
+    private volatile InboundMessageObserver inboundMessageObserver;
 
     /**
      * Functional interface for sending messages back to the WebView.
@@ -48,6 +84,69 @@ public abstract class AbstractSmartMessageHandler {
     @FunctionalInterface
     public interface MessageSender {
         CompletableFuture<String> sendMessage(String jsonMessage);
+
+        /**
+         * Send several messages, to be processed in order, in as few transport calls as possible.
+         * The default implementation sends them one by one.
+         */
+        default CompletableFuture<String> sendMessages(List<String> jsonMessages) {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[jsonMessages.size()];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = sendMessage(jsonMessages.get(i));
+            }
+            return CompletableFuture.allOf(futures).thenApply(v -> null);
+        }
+
+        /**
+         * Send a request the handler has just serialized, with its type and ID so the sender
+         * does not need to read them from the JSON. The default implementation calls
+         * {@link #sendMessage(String)}.
+         */
+        default CompletableFuture<String> sendRequest(String messageType, String messageId, String jsonMessage) {
+            return sendMessage(jsonMessage);
+        }
+
+        /**
+         * Send a batch of requests, with the type and ID of each. The default implementation calls
+         * {@link #sendMessages(List)}.
+         */
+        default CompletableFuture<String> sendRequests(List<String> messageTypes, List<String> messageIds,
+                                                       List<String> jsonMessages) {
+            return sendMessages(jsonMessages);
+        }
+
+        /**
+         * Take back a request that has not been handed to the page yet, e.g. one held until the
+         * handshake, so it is never delivered. Its future then fails with a
+         * {@link CancellationException}. The default implementation holds nothing back and
+         * returns false.
+         *
+         * @return whether the request was still pending and is now withdrawn
+         */
+        default boolean withdrawRequest(String messageId) {
+            return false;
+        }
+    }
+
+    /**
+     * Observer of every inbound message, called on the handling thread with the envelope fields
+     * the handler has already decoded, e.g. for tracing without parsing the JSON again.
+     */
+    public interface InboundMessageObserver {
+
+        /**
+         * Called once the message has been decoded, before it is handled. Messages that cannot be
+         * decoded have the type {@code unknown} and the ID found by the codec, if any.
+         *
+         * @param responseToMessageId the request answered by a response, otherwise null
+         */
+        void onMessageReceived(String messageType, String messageId, String responseToMessageId, String jsonMessage);
+
+        /**
+         * Called when handling has finished, including the handler's own error response, if
+         * {@link #onMessageReceived} was called for the message.
+         */
+        void onMessageHandled(String messageType, String messageId, long durationNanos);
     }
 
     /**
@@ -57,10 +156,36 @@ public abstract class AbstractSmartMessageHandler {
      * @param customObjectMapper  Custom ObjectMapper to use, or null for the default
      */
     protected AbstractSmartMessageHandler(FhirContext fhirContext, ObjectMapper customObjectMapper) {
-        this.fhirJsonParser = fhirContext.newJsonParser()
-                .setPrettyPrint(false)
-                .setParserErrorHandler(new ca.uhn.fhir.parser.LenientErrorHandler().setErrorOnInvalidValue(false));
+        this(fhirContext, customObjectMapper, null);
+    }
+
+    /**
+     * Creates a session handler that uses the FhirContext and ObjectMapper of the given runtime.
+     *
+     * @see SmartMessagingRuntime#openSession(String)
+     */
+    protected AbstractSmartMessageHandler(SmartMessagingRuntime<?> runtime) {
+        this(runtime.getFhirContext(), runtime.getObjectMapper(), runtime);
+    }
+
+    private AbstractSmartMessageHandler(FhirContext fhirContext, ObjectMapper customObjectMapper,
+                                        SmartMessagingRuntime<?> runtime) {
+        this.runtime = runtime;
+        // Parsers are not thread-safe: take one from the pool for each use
+        this.fhirParsers = runtime != null
+                ? runtime.getParserPool()
+                : new FhirParserPool(fhirContext, Math.max(2, Runtime.getRuntime().availableProcessors()));
+        this.fhirTerser = fhirContext.newTerser();
+        this.fhirVersion = fhirContext.getVersion().getVersion().name();
         this.objectMapper = customObjectMapper != null ? customObjectMapper : createDefaultObjectMapper();
+        this.defaultCodec = runtime != null
+                ? runtime.getMessageCodec()
+                : defaultMessageCodec(objectMapper, customObjectMapper == null);
+        this.messageCodec = defaultCodec;
+        applyMetrics(runtime != null ? runtime.getMetrics() : SmartMessagingMetricsFactory.getDefault());
+        messageTypeHandlers.register("status.handshake", this::handleHandshake);
+        messageTypeHandlers.register("form.submitted", this::handleFormSubmit);
+        messageTypeHandlers.register("ui.done", this::handleUiDone);
         logger.info("SmartMessageHandler initialized.");
     }
 
@@ -73,7 +198,17 @@ public abstract class AbstractSmartMessageHandler {
 
     // ========== ObjectMapper ==========
 
-    private ObjectMapper createDefaultObjectMapper() {
+    /**
+     * Envelope payloads are written by hand only when the mapper has the default settings,
+     * which the hand-written serializers reproduce.
+     */
+    static SmartMessageCodec defaultMessageCodec(ObjectMapper objectMapper, boolean defaultMapper) {
+        return defaultMapper
+                ? SmartMessageCodec.jacksonWithEnvelopeWriters(objectMapper)
+                : SmartMessageCodec.jackson(objectMapper);
+    }
+
+    static ObjectMapper createDefaultObjectMapper() {
         ObjectMapper mapper = new ObjectMapper();
         mapper.setPropertyNamingStrategy(PropertyNamingStrategies.LOWER_CAMEL_CASE);
         mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
@@ -82,16 +217,229 @@ public abstract class AbstractSmartMessageHandler {
 
     // ========== Configuration ==========
 
+    /**
+     * The runtime this handler is a session of, or null for a standalone handler.
+     */
+    public SmartMessagingRuntime<?> getRuntime() {
+        return runtime;
+    }
+
     public void setMessageSender(MessageSender messageSender) {
         this.messageSender = messageSender;
     }
 
+    /**
+     * Set the observer of inbound messages, or null for none.
+     */
+    public void setInboundMessageObserver(InboundMessageObserver inboundMessageObserver) {
+        this.inboundMessageObserver = inboundMessageObserver;
+    }
+
+    public InboundMessageObserver getInboundMessageObserver() {
+        return inboundMessageObserver;
+    }
+
+    /**
+     * Set the codec for message JSON, or null for the default, which uses prebuilt readers and
+     * writers of the handler's ObjectMapper.
+     */
+    public void setMessageCodec(SmartMessageCodec messageCodec) {
+        this.messageCodec = messageCodec != null ? messageCodec : defaultCodec;
+    }
+
+    public SmartMessageCodec getMessageCodec() {
+        return messageCodec;
+    }
+
+    /**
+     * Set the generator for the messageId of outbound requests and responses.
+     * Defaults to {@link MessageIdGenerator#randomUuid()}.
+     */
+    public void setMessageIdGenerator(MessageIdGenerator messageIdGenerator) {
+        this.messageIdGenerator = Objects.requireNonNull(messageIdGenerator, "messageIdGenerator");
+    }
+
+    public MessageIdGenerator getMessageIdGenerator() {
+        return messageIdGenerator;
+    }
+
+    /**
+     * Set where the handler reports latencies, message sizes and errors, or null for the default:
+     * the runtime's metrics for a session, otherwise {@link SmartMessagingMetricsFactory#getDefault()}.
+     */
+    public void setMetrics(SmartMessagingMetrics metrics) {
+        if (metrics != null) {
+            applyMetrics(metrics);
+        } else {
+            applyMetrics(runtime != null ? runtime.getMetrics() : SmartMessagingMetricsFactory.getDefault());
+        }
+    }
+
+    public SmartMessagingMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void applyMetrics(SmartMessagingMetrics next) {
+        synchronized (responseListeners) {
+            SmartMessagingMetrics previous = this.metrics;
+            if (previous == next) {
+                return;
+            }
+            // Hand the listeners already counted over to the new metrics
+            int pending = responseListeners.size();
+            previous.responseListenersChanged(-pending);
+            this.metrics = next;
+            listenerDispatcher.setMetrics(next);
+            responseListeners.setSizeListener(next::responseListenersChanged);
+            next.responseListenersChanged(pending);
+        }
+    }
+
+    /**
+     * Enable caching of encoded Questionnaires sent with {@code sdc.displayQuestionnaire},
+     * or pass null to disable it (the default).
+     *
+     * @see QuestionnaireCache
+     */
+    public void setQuestionnaireCache(QuestionnaireCache questionnaireCache) {
+        this.questionnaireCache = questionnaireCache;
+    }
+
+    public QuestionnaireCache getQuestionnaireCache() {
+        return questionnaireCache;
+    }
+
+    /**
+     * When enabled, {@code sdc.configureContext} only carries the launch context entries that
+     * changed since the last one sent to the current page, flagged with
+     * {@code "launchContextDelta": true} so the bridge merges them into its context.
+     * Entries are compared by {@code meta.versionId} when present, otherwise by a SHA-256 hash
+     * of their JSON. A full context is sent after a handshake or {@link #resetSession()}, when
+     * an entry is removed, and whenever a displayQuestionnaire replaced the page's launch context.
+     * Disabled by default; requires the bundled bridge script.
+     */
+    public void setLaunchContextDeltaEnabled(boolean launchContextDeltaEnabled) {
+        this.launchContextDeltaEnabled = launchContextDeltaEnabled;
+    }
+
+    public boolean isLaunchContextDeltaEnabled() {
+        return launchContextDeltaEnabled;
+    }
+
+    /**
+     * Register a handler for inbound requests of the given message type (matched ignoring case),
+     * replacing any handler registered for it, including the built-in ones.
+     *
+     * @return the handler previously registered for the type, or null
+     */
+    public MessageTypeHandler registerMessageTypeHandler(String messageType, MessageTypeHandler handler) {
+        return messageTypeHandlers.register(
+                Objects.requireNonNull(messageType, "messageType"), Objects.requireNonNull(handler, "handler"));
+    }
+
+    /**
+     * Remove the handler for the given message type. Requests of that type are then answered
+     * with an {@code UnknownMessageTypeException} error.
+     *
+     * @return the removed handler, or null if none was registered
+     */
+    public MessageTypeHandler unregisterMessageTypeHandler(String messageType) {
+        return messageTypeHandlers.unregister(messageType);
+    }
+
+    /**
+     * Deliver listener events on the given executor instead of the thread handling the message,
+     * so the response is returned without waiting for listeners. Each listener still receives
+     * its events one at a time, in order. Up to 1024 events wait for each listener; beyond that,
+     * the thread handling the message waits for the listener to catch up. Exceptions thrown by
+     * listeners are then logged instead of producing an error response. Pass null to deliver
+     * synchronously again (the default).
+     *
+     * @see ListenerExecutors#newBoundedPool(int, int)
+     */
+    public void setListenerExecutor(Executor listenerExecutor) {
+        listenerDispatcher.setExecutor(listenerExecutor);
+    }
+
+    public Executor getListenerExecutor() {
+        return listenerDispatcher.getExecutor();
+    }
+
+    /**
+     * Delivery counts and latencies of listener events.
+     */
+    public ListenerDispatchStats getListenerDispatchStats() {
+        return listenerDispatcher.getStats();
+    }
+
+    /**
+     * How long a response listener waits for an answer before it is removed and receives an
+     * error response of type {@code TimeoutException}. Defaults to 60 seconds; 0 waits
+     * indefinitely, as all listeners did before timeouts were introduced. Applies to listeners
+     * registered afterwards.
+     * <p>
+     * Listeners of expired requests, and the dependents of futures from
+     * {@link #sendRequestAsync(String, RequestPayload, long, TimeUnit)} that time out, run on the
+     * listener executor if one is set, otherwise on the runtime's worker pool or, for a
+     * standalone handler, on daemon threads created as needed.
+     */
+    public void setResponseTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        this.responseTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public long getResponseTimeoutMillis() {
+        return responseTimeoutMillis;
+    }
+
+    private Executor callbackExecutor() {
+        Executor listenerExecutor = listenerDispatcher.getExecutor();
+        if (listenerExecutor != null) {
+            return listenerExecutor;
+        }
+        return runtime != null ? runtime.getWorkerPool() : PendingResponses.sharedCallbackExecutor();
+    }
+
+    /**
+     * Pending, expired and late response counts.
+     */
+    public ResponseListenerStats getResponseListenerStats() {
+        return responseListeners.getStats();
+    }
+
     public void addListener(SmartMessageListener listener) {
         listeners.add(listener);
     }
 
     public void removeListener(SmartMessageListener listener) {
         listeners.remove(listener);
+        listenerDispatcher.removeListener(listener);
+    }
+
+    /**
+     * Add a listener that receives form submissions as raw UTF-8 JSON, without FHIR parsing.
+     */
+    public void addRawListener(RawSmartMessageListener listener) {
+        rawListeners.add(listener);
+    }
+
+    public void removeRawListener(RawSmartMessageListener listener) {
+        rawListeners.remove(listener);
+        listenerDispatcher.removeListener(listener);
+    }
+
+    /**
+     * Remove all listeners and raw listeners.
+     */
+    public void removeAllListeners() {
+        for (SmartMessageListener listener : listeners) {
+            removeListener(listener);
+        }
+        for (RawSmartMessageListener listener : rawListeners) {
+            removeRawListener(listener);
+        }
     }
 
     // ========== Inbound message handling ==========
@@ -105,187 +453,237 @@ public abstract class AbstractSmartMessageHandler {
     public String handleMessage(String jsonMessage) {
         logger.debug("Received message for handling: {}", jsonMessage);
 
+        long start = System.nanoTime();
+        InboundMessageObserver observer = this.inboundMessageObserver;
+        String messageType = "unknown";
+        String observedMessageId = null;
+        boolean observed = false;
+        SmartMessageEnvelope envelope = null;
         try {
-            if (jsonMessage.contains("\"responseToMessageId\"")) {
+            envelope = SmartMessageEnvelope.decode(messageCodec, jsonMessage);
+            observedMessageId = envelope.getMessageId();
+            if (envelope.isResponse()) {
                 logger.debug("Message identified as SmartMessageResponse.");
-                SmartMessageResponse response = parseResponse(jsonMessage);
-                handleResponseMessage(response);
+                messageType = "response";
+                if (observer != null) {
+                    observer.onMessageReceived(messageType, observedMessageId, envelope.getResponseToMessageId(), jsonMessage);
+                    observed = true;
+                }
+                handleResponseMessage(envelope);
                 return null;
             } else {
                 logger.debug("Message identified as SmartMessageRequest.");
-                SmartMessageRequest request = objectMapper.readValue(jsonMessage, SmartMessageRequest.class);
-                logger.info("Handling message of type: {}", request.getMessageType());
-                return handleRequestMessage(request);
+                logger.info("Handling message of type: {}", envelope.getMessageType());
+                if (envelope.getMessageType() != null) {
+                    messageType = envelope.getMessageType();
+                }
+                if (observer != null) {
+                    observer.onMessageReceived(messageType, observedMessageId, null, jsonMessage);
+                    observed = true;
+                }
+                return handleRequestMessage(envelope);
             }
-        } catch (JsonProcessingException e) {
+        } catch (MalformedMessageException e) {
             logger.error("Failed to deserialize message. JSON: {}", jsonMessage, e);
-            String messageId = getMessageIdFromJson(jsonMessage);
-            SmartMessageResponse response = SmartMessageResponse.createErrorResponse(messageId, new ErrorResponse(e));
-            return serializeResponse(response);
+            String messageId = e.getMessageId() != null ? e.getMessageId() : getMessageIdFromJson(jsonMessage);
+            if (observer != null && !observed) {
+                observedMessageId = messageId;
+                observer.onMessageReceived(messageType, messageId, null, jsonMessage);
+                observed = true;
+            }
+            SmartMessageResponse response = errorResponse(messageId, new ErrorResponse(e));
+            return serializeResponse(messageType, response);
         } catch (Exception e) {
             logger.error("An unhandled exception occurred during message handling. JSON: {}", jsonMessage, e);
             try {
-                String messageId = getMessageIdFromJson(jsonMessage);
-                SmartMessageResponse response = SmartMessageResponse.createErrorResponse(messageId, new ErrorResponse(e));
-                return serializeResponse(response);
+                String messageId = envelope != null ? envelope.getMessageId() : getMessageIdFromJson(jsonMessage);
+                SmartMessageResponse response = errorResponse(messageId, new ErrorResponse(e));
+                return serializeResponse(messageType, response);
             } catch (Exception ex) {
-                SmartMessageResponse response = SmartMessageResponse.createErrorResponse(null, new ErrorResponse(e));
-                return serializeResponse(response);
+                SmartMessageResponse response = errorResponse(null, new ErrorResponse(e));
+                return serializeResponse(messageType, response);
+            }
+        } finally {
+            SmartMessagingMetrics metrics = this.metrics;
+            if (metrics != NoOpSmartMessagingMetrics.INSTANCE) {
+                metrics.recordInbound(messageType, System.nanoTime() - start, utf8Length(jsonMessage));
+            }
+            if (observed) {
+                observer.onMessageHandled(messageType, observedMessageId, System.nanoTime() - start);
             }
         }
     }
 
-    private SmartMessageResponse parseResponse(String jsonMessage) throws JsonProcessingException {
-        return objectMapper.readValue(jsonMessage, SmartMessageResponse.class);
-    }
-
-    private String handleRequestMessage(SmartMessageRequest message) {
+    private String handleRequestMessage(SmartMessageEnvelope message) {
         SmartMessageResponse response;
 
+        String messageType = message.getMessageType();
         try {
-            String messageType = message.getMessageType();
             if (messageType == null) {
-                return serializeResponse(SmartMessageResponse.createErrorResponse(
+                return serializeResponse("unknown", errorResponse(
                     message.getMessageId(),
                     new ErrorResponse("messageType is required", "MissingFieldException")
                 ));
             }
-            JsonNode payload = message.getPayload();
-
-            switch (message.getMessageType().toLowerCase(java.util.Locale.ROOT)) {
-
-                case "status.handshake":
-                    logger.debug("Handling status.handshake request.");
-                    response = handleHandshake(message);
-                    break;
-
-                case "form.submitted":
-                    logger.debug("Handling form.submitted request.");
-                    response = handleFormSubmit(message, payload);
-                    break;
-
-                case "ui.done":
-                    logger.debug("Handling ui.done request.");
-                    response = handleUiDone(message);
-                    break;
-
-                default:
-                    response = SmartMessageResponse.createErrorResponse(
-                        message.getMessageId(),
-                        new ErrorResponse("Unknown messageType: " + messageType, "UnknownMessageTypeException")
-                    );
-                    break;
+
+            MessageTypeHandler messageTypeHandler = messageTypeHandlers.lookup(messageType);
+            if (messageTypeHandler != null) {
+                logger.debug("Handling {} request.", messageType);
+                response = messageTypeHandler.handle(message);
+                if (response == null) {
+                    response = acknowledge(message);
+                }
+            } else {
+                response = errorResponse(
+                    message.getMessageId(),
+                    new ErrorResponse("Unknown messageType: " + messageType, "UnknownMessageTypeException")
+                );
             }
         } catch (Exception e) {
             logger.error("Exception while handling request message: MessageId={}, MessageType={}",
                 message.getMessageId(), message.getMessageType(), e);
-            response = SmartMessageResponse.createErrorResponse(message.getMessageId(), new ErrorResponse(e));
+            response = errorResponse(message.getMessageId(), new ErrorResponse(e));
         }
 
-        String responseJson = serializeResponse(response);
+        String responseJson = serializeResponse(messageType != null ? messageType : "unknown", response);
         logger.debug("Created response={}", responseJson);
         return responseJson;
     }
 
-    private void handleResponseMessage(SmartMessageResponse response) {
-        logger.info("Handling response message for ResponseToMessageId: {}", response.getResponseToMessageId());
+    private void handleResponseMessage(SmartMessageEnvelope message) throws IOException {
+        String responseToMessageId = message.getResponseToMessageId();
+        logger.info("Handling response message for ResponseToMessageId: {}", responseToMessageId);
 
-        Consumer<SmartMessageResponse> listener = responseListeners.get(response.getResponseToMessageId());
+        Consumer<SmartMessageResponse> listener = responseToMessageId != null ? responseListeners.get(responseToMessageId) : null;
         if (listener != null) {
-            logger.debug("Found listener for ResponseToMessageId: {}", response.getResponseToMessageId());
+            logger.debug("Found listener for ResponseToMessageId: {}", responseToMessageId);
+            // The payload is only bound when someone is waiting for it
+            SmartMessageResponse response = message.toResponse();
             try {
                 listener.accept(response);
             } catch (Exception e) {
                 logger.error("Exception occurred while executing response listener for ResponseToMessageId: {}",
-                    response.getResponseToMessageId(), e);
+                    responseToMessageId, e);
             } finally {
                 if (!response.isAdditionalResponsesExpected()) {
-                    responseListeners.remove(response.getResponseToMessageId());
+                    responseListeners.remove(responseToMessageId);
                     logger.debug("Removed listener for ResponseToMessageId: {} as no additional responses expected.",
-                        response.getResponseToMessageId());
+                        responseToMessageId);
+                } else {
+                    responseListeners.extend(responseToMessageId);
                 }
             }
         } else {
             logger.debug("No listener found for response message with ResponseToMessageId: {}",
-                response.getResponseToMessageId());
+                responseToMessageId);
         }
     }
 
-    private IBaseResource parseResourcePayload(JsonNode payload, String fieldName) {
-        JsonNode resourceNode = payload.get(fieldName);
-        if (resourceNode == null) {
-            throw new IllegalArgumentException(fieldName + " is required in payload");
+    /**
+     * Parse a FHIR resource directly from its slice of the original message text,
+     * without building or printing an intermediate Jackson tree.
+     */
+    private IBaseResource parseResource(JsonSlice slice) {
+        long start = System.nanoTime();
+        IParser parser = fhirParsers.acquire();
+        try (Reader reader = slice.openReader()) {
+            IBaseResource resource = parser.parseResource(reader);
+            metrics.recordFhirParse(resource.fhirType(), System.nanoTime() - start);
+            return resource;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read FHIR resource", e);
+        } finally {
+            fhirParsers.release(parser);
         }
-        return fhirJsonParser.parseResource(resourceNode.toString());
     }
 
-    private SmartMessageResponse handleHandshake(SmartMessageRequest message) {
-        logger.debug("Invoking HandshakeReceived event for MessageId: {}", message.getMessageId());
-
-        HandshakeReceivedEvent event = new HandshakeReceivedEvent(this, message, message.getPayload());
-        listeners.forEach(l -> l.onHandshakeReceived(event));
-        logger.debug("HandshakeReceived event invoked for MessageId: {}", message.getMessageId());
+    private SmartMessageResponse errorResponse(String responseToMessageId, ErrorResponse errorPayload) {
+        return new SmartMessageResponse(messageIdGenerator.nextId(), responseToMessageId, false, errorPayload);
+    }
 
+    private SmartMessageResponse acknowledge(SmartMessageEnvelope message) {
         return new SmartMessageResponse(
-            UUID.randomUUID().toString(),
+            messageIdGenerator.nextId(),
             message.getMessageId(),
             false,
             new ResponsePayload()
         );
     }
 
-    private SmartMessageResponse handleFormSubmit(SmartMessageRequest message, JsonNode payload) {
-        logger.debug("Invoking FormSubmit for MessageId: {}", message.getMessageId());
+    private SmartMessageResponse handleHandshake(SmartMessageEnvelope message) {
+        logger.debug("Invoking HandshakeReceived event for MessageId: {}", message.getMessageId());
+
+        // A handshake means a fresh page: it has no launch context yet
+        launchContextTracker.reset(true);
 
-        IBaseResource qr = parseResourcePayload(payload, "response");
-        IBaseResource outcome = payload.has("outcome") && !payload.get("outcome").isNull()
-            ? fhirJsonParser.parseResource(payload.get("outcome").toString())
-            : null;
+        SmartMessageRequest request = message.toRequest();
+        HandshakeReceivedEvent event = new HandshakeReceivedEvent(this, request, request.getPayload());
+        listenerDispatcher.dispatch(listeners, "handshakeReceived", l -> l.onHandshakeReceived(event));
+        logger.debug("HandshakeReceived event invoked for MessageId: {}", message.getMessageId());
+
+        return acknowledge(message);
+    }
+
+    private SmartMessageResponse handleFormSubmit(SmartMessageEnvelope message) {
+        logger.debug("Invoking FormSubmit for MessageId: {}", message.getMessageId());
 
-        FormSubmittedEvent event = new FormSubmittedEvent(this, qr, outcome);
-        listeners.forEach(l -> l.onFormSubmitted(event));
+        JsonSlice response = message.getPayloadField("response");
+        if (response == null) {
+            throw new IllegalArgumentException("response is required in payload");
+        }
+        // Resources are only parsed if a listener asks for them
+        JsonSlice outcome = message.getPayloadField("outcome");
+        if (!listeners.isEmpty()) {
+            FormSubmittedEvent event = new FormSubmittedEvent(this, response, outcome, this::parseResource);
+            listenerDispatcher.dispatch(listeners, "formSubmitted", l -> l.onFormSubmitted(event));
+        }
+        if (!rawListeners.isEmpty()) {
+            RawFormSubmittedEvent rawEvent = new RawFormSubmittedEvent(this, message.getMessageId(), response, outcome);
+            listenerDispatcher.dispatch(rawListeners, "formSubmitted", l -> l.onFormSubmitted(rawEvent));
+        }
         logger.debug("FormSubmit event invoked for MessageId: {}", message.getMessageId());
 
-        return new SmartMessageResponse(
-            UUID.randomUUID().toString(),
-            message.getMessageId(),
-            false,
-            new ResponsePayload()
-        );
+        return acknowledge(message);
     }
 
-    private SmartMessageResponse handleUiDone(SmartMessageRequest message) {
+    private SmartMessageResponse handleUiDone(SmartMessageEnvelope message) {
         logger.debug("Invoking CloseApplication event for MessageId: {}", message.getMessageId());
 
         CloseApplicationEvent event = new CloseApplicationEvent(this);
-        listeners.forEach(l -> l.onCloseApplication(event));
+        listenerDispatcher.dispatch(listeners, "closeApplication", l -> l.onCloseApplication(event));
         logger.debug("CloseApplication event invoked for MessageId: {}", message.getMessageId());
 
-        return new SmartMessageResponse(
-            UUID.randomUUID().toString(),
-            message.getMessageId(),
-            false,
-            new ResponsePayload()
-        );
+        return acknowledge(message);
     }
 
     // ========== Serialization ==========
 
-    private String serializeResponse(SmartMessageResponse response) {
+    /**
+     * @param messageType the type of the request being answered, for metrics
+     */
+    private String serializeResponse(String messageType, SmartMessageResponse response) {
+        SmartMessageCodec codec = messageCodec;
+        long start = System.nanoTime();
+        if (response.getPayload() instanceof ErrorResponse) {
+            metrics.recordError(messageType, ((ErrorResponse) response.getPayload()).getErrorType());
+        }
         try {
-            ObjectNode node = objectMapper.createObjectNode();
-            node.put("messageId", response.getMessageId());
-            node.put("responseToMessageId", response.getResponseToMessageId());
-            node.put("additionalResponsesExpected", response.isAdditionalResponsesExpected());
-
-            ResponsePayload payload = response.getPayload();
-            if (payload != null) {
-                ObjectNode payloadNode = objectMapper.valueToTree(payload);
-                node.set("payload", payloadNode);
+            SegmentedStringWriter writer = new SegmentedStringWriter(codec.getFactory()._getBufferRecycler());
+            try (JsonGenerator gen = codec.getFactory().createGenerator(writer)) {
+                gen.writeStartObject();
+                gen.writeStringField("messageId", response.getMessageId());
+                gen.writeStringField("responseToMessageId", response.getResponseToMessageId());
+                gen.writeBooleanField("additionalResponsesExpected", response.isAdditionalResponsesExpected());
+
+                ResponsePayload payload = response.getPayload();
+                if (payload != null) {
+                    gen.writeFieldName("payload");
+                    codec.writePayload(gen, payload);
+                }
+                gen.writeEndObject();
             }
-
-            return objectMapper.writeValueAsString(node);
-        } catch (JsonProcessingException e) {
+            return recordOutbound("response", start, writer.getAndClear());
+        } catch (IOException e) {
             logger.error("Failed to serialize response", e);
             throw new RuntimeException("Failed to serialize response", e);
         }
@@ -301,23 +699,143 @@ public abstract class AbstractSmartMessageHandler {
     public CompletableFuture<String> sendMessageAsync(String messageType, RequestPayload payload, Consumer<SmartMessageResponse> responseHandler) {
         logger.info("Sending message async: MessageType={}", messageType);
 
-        MessageSender sender = this.messageSender;
-        if (sender == null) {
-            throw new IllegalStateException("MessageSender must be set before sending messages");
-        }
-
-        String messageId = UUID.randomUUID().toString();
+        MessageSender sender = requireMessageSender();
+        return sendMessageAsync(sender, messageIdGenerator.nextId(), messageType, payload, responseHandler);
+    }
 
+    private CompletableFuture<String> sendMessageAsync(MessageSender sender, String messageId, String messageType,
+                                                      RequestPayload payload, Consumer<SmartMessageResponse> responseHandler) {
         if (responseHandler != null) {
-            responseListeners.put(messageId, responseHandler);
+            responseListeners.register(messageId, responseHandler, responseTimeoutMillis);
             logger.debug("Registered response listener for MessageId: {}", messageId);
         }
 
+        CompletableFuture<String> future = sendRequest(sender, messageId, messageType, payload);
+        if (responseHandler != null) {
+            // A message that was never delivered (e.g. dropped by the sender) will not be answered
+            future.whenComplete((result, error) -> {
+                if (error != null) {
+                    responseListeners.remove(messageId);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Send a request and return a future of its response, using the handler's response timeout.
+     *
+     * @see #sendRequestAsync(String, RequestPayload, long, TimeUnit)
+     */
+    public CompletableFuture<SmartMessageResponse> sendRequestAsync(String messageType, RequestPayload payload) {
+        return sendRequestAsync(messageType, payload, responseTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a request and return a future that completes with the first response to it.
+     * <p>
+     * The future completes exceptionally with a {@link TimeoutException} if no response
+     * arrives in time (0 waits indefinitely), with a {@link CancellationException} if the session
+     * is reset first, or with the sender's exception if the message could not be delivered. Cancelling the future stops waiting for the response.
+     * Non-async dependent stages run on the thread handling the response message.
+     */
+    public CompletableFuture<SmartMessageResponse> sendRequestAsync(String messageType, RequestPayload payload,
+                                                                    long timeout, TimeUnit unit) {
+        logger.info("Sending request async: MessageType={}", messageType);
+
+        MessageSender sender = requireMessageSender();
+        String messageId = messageIdGenerator.nextId();
+        long timeoutMillis = unit.toMillis(timeout);
+
+        CompletableFuture<SmartMessageResponse> result = new CompletableFuture<>();
+        responseListeners.register(messageId, result::complete, timeoutMillis, reason -> result.completeExceptionally(
+                reason instanceof TimeoutException
+                        ? new TimeoutException("No response to " + messageType + " within " + timeoutMillis + " ms")
+                        : reason));
+        // Covers cancellation and failures as well as the normal response
+        result.whenComplete((response, error) -> responseListeners.remove(messageId));
+
+        sendRequest(sender, messageId, messageType, payload).whenComplete((sent, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Send all requests made by {@code requests} on the current thread in one transport call,
+     * e.g. an {@code sdc.configureContext} followed by an {@code sdc.displayQuestionnaire}.
+     * The requests are delivered in order; each individual future completes when the batch
+     * has been sent, except that of a display, which waits for its acknowledgement as usual.
+     * If {@code requests} throws, nothing is sent and the queued futures fail.
+     * Nested calls join the outer batch.
+     *
+     * <pre>{@code
+     * handler.sendBatchAsync(() -> {
+     *     handler.sendSdcConfigureContextAsync(patient, encounter, user, null);
+     *     handler.sendSdcDisplayQuestionnaireAsync(questionnaire, null, patient, encounter, user, null);
+     * });
+     * }</pre>
+     *
+     * @return a future that completes when the batch has been sent
+     */
+    public CompletableFuture<String> sendBatchAsync(Runnable requests) {
+        MessageSender sender = requireMessageSender();
+        MessageBatch outer = currentBatch.get();
+        if (outer != null) {
+            requests.run();
+            return outer.getSent();
+        }
+
+        MessageBatch batch = new MessageBatch();
+        currentBatch.set(batch);
+        try {
+            requests.run();
+        } catch (RuntimeException | Error e) {
+            batch.getMessageIds().forEach(responseListeners::remove);
+            batch.complete(null, e);
+            throw e;
+        } finally {
+            currentBatch.remove();
+        }
+
+        if (batch.isEmpty()) {
+            batch.complete(null, null);
+            return batch.getSent();
+        }
+        logger.info("Sending batch of {} messages", batch.getMessages().size());
+        CompletableFuture<String> transport;
+        try {
+            transport = sender.sendRequests(batch.getMessageTypes(), batch.getMessageIds(), batch.getMessages());
+        } catch (RuntimeException e) {
+            transport = new CompletableFuture<>();
+            transport.completeExceptionally(e);
+        }
+        transport.whenComplete(batch::complete);
+        return batch.getSent();
+    }
+
+    private MessageSender requireMessageSender() {
+        MessageSender sender = this.messageSender;
+        if (sender == null) {
+            throw new IllegalStateException("MessageSender must be set before sending messages");
+        }
+        return sender;
+    }
+
+    private CompletableFuture<String> sendRequest(MessageSender sender, String messageId, String messageType,
+                                                  RequestPayload payload) {
         try {
             String requestJson = serializeRequest(messageId, messageType, payload);
+            MessageBatch batch = currentBatch.get();
+            if (batch != null) {
+                logger.debug("Queueing JSON message in batch: {}", requestJson);
+                return batch.add(messageType, messageId, requestJson);
+            }
             logger.debug("Sending JSON message: {}", requestJson);
-            return sender.sendMessage(requestJson);
-        } catch (JsonProcessingException e) {
+            return sender.sendRequest(messageType, messageId, requestJson);
+        } catch (IOException e) {
             responseListeners.remove(messageId);
             logger.error("Failed to serialize request", e);
             CompletableFuture<String> future = new CompletableFuture<>();
@@ -326,109 +844,287 @@ public abstract class AbstractSmartMessageHandler {
         }
     }
 
-    private String serializeRequest(String messageId, String messageType, RequestPayload payload) throws JsonProcessingException {
-        ObjectNode node = objectMapper.createObjectNode();
-        node.put("messageId", messageId);
-        node.put("messagingHandle", "smart-web-messaging");
-        node.put("messageType", messageType);
+    /**
+     * Write the request envelope and payload into a single generator. FHIR resources are
+     * encoded by HAPI directly into the same output, so no intermediate String or tree is built.
+     */
+    private String serializeRequest(String messageId, String messageType, RequestPayload payload) throws IOException {
+        SmartMessageCodec codec = messageCodec;
+        long start = System.nanoTime();
+        SegmentedStringWriter writer = new SegmentedStringWriter(codec.getFactory()._getBufferRecycler());
+        try (JsonGenerator gen = codec.getFactory().createGenerator(writer)) {
+            gen.writeStartObject();
+            gen.writeStringField("messageId", messageId);
+            gen.writeStringField("messagingHandle", "smart-web-messaging");
+            gen.writeStringField("messageType", messageType);
+
+            gen.writeFieldName("payload");
+            if (payload == null) {
+                gen.writeStartObject();
+                gen.writeEndObject();
+            } else if (payload instanceof SdcDisplayQuestionnaire) {
+                writeSdcDisplayQuestionnaire(gen, writer, (SdcDisplayQuestionnaire) payload);
+            } else if (payload instanceof SdcConfigureContext) {
+                writeSdcConfigureContext(gen, writer, (SdcConfigureContext) payload);
+            } else {
+                codec.writePayload(gen, payload);
+            }
+            gen.writeEndObject();
+        }
+        return recordOutbound(messageType, start, writer.getAndClear());
+    }
 
-        if (payload == null) {
-            node.set("payload", objectMapper.createObjectNode());
-        } else if (payload instanceof SdcDisplayQuestionnaire) {
-            node.set("payload", serializeSdcDisplayQuestionnaire((SdcDisplayQuestionnaire) payload));
-        } else if (payload instanceof SdcConfigureContext) {
-            node.set("payload", serializeSdcConfigureContext((SdcConfigureContext) payload));
-        } else {
-            node.set("payload", objectMapper.valueToTree(payload));
+    private String recordOutbound(String messageType, long start, String json) {
+        SmartMessagingMetrics metrics = this.metrics;
+        if (metrics != NoOpSmartMessagingMetrics.INSTANCE) {
+            metrics.recordOutbound(messageType, System.nanoTime() - start, utf8Length(json));
         }
+        return json;
+    }
 
-        return objectMapper.writeValueAsString(node);
+    /**
+     * Number of bytes of {@code text} in UTF-8, without encoding it.
+     */
+    private static int utf8Length(String text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    // 4 bytes for the 2 chars of the pair
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
     }
 
-    private ObjectNode serializeSdcDisplayQuestionnaire(SdcDisplayQuestionnaire payload) throws JsonProcessingException {
-        ObjectNode node = objectMapper.createObjectNode();
+    private void writeSdcDisplayQuestionnaire(JsonGenerator gen, Writer out, SdcDisplayQuestionnaire payload) throws IOException {
+        gen.writeStartObject();
 
         Object questionnaire = payload.getQuestionnaire();
         if (questionnaire instanceof String) {
-            node.put("questionnaire", (String) questionnaire);
+            gen.writeStringField("questionnaire", (String) questionnaire);
         } else if (questionnaire instanceof IBaseResource) {
-            String json = fhirJsonParser.encodeResourceToString((IBaseResource) questionnaire);
-            node.set("questionnaire", objectMapper.readTree(json));
+            writeQuestionnaire(gen, out, (IBaseResource) questionnaire);
         } else if (questionnaire instanceof IBaseReference) {
-            node.set("questionnaire", serializeReference((IBaseReference) questionnaire));
+            writeReference(gen, "questionnaire", (IBaseReference) questionnaire);
         }
 
         if (payload.getQuestionnaireResponse() != null) {
-            String json = fhirJsonParser.encodeResourceToString(payload.getQuestionnaireResponse());
-            node.set("questionnaireResponse", objectMapper.readTree(json));
+            writeResource(gen, out, "questionnaireResponse", payload.getQuestionnaireResponse());
         }
 
-        if (payload.getContext() != null) {
-            node.set("context", serializeSdcDisplayQuestionnaireContext(payload.getContext()));
+        SdcDisplayQuestionnaire.SdcDisplayQuestionnaireContext context = payload.getContext();
+        if (context != null) {
+            if (context.getLaunchContext() != null && !context.getLaunchContext().isEmpty()) {
+                // The bridge replaces its launch context with this one
+                launchContextTracker.forget();
+            }
+            gen.writeFieldName("context");
+            gen.writeStartObject();
+            writeContext(gen, out, context.getSubject(), context.getAuthor(), context.getEncounter(), context.getLaunchContext());
+            gen.writeEndObject();
         }
 
-        return node;
+        gen.writeEndObject();
     }
 
-    private ObjectNode serializeSdcDisplayQuestionnaireContext(SdcDisplayQuestionnaire.SdcDisplayQuestionnaireContext context) throws JsonProcessingException {
-        ObjectNode node = objectMapper.createObjectNode();
-
-        if (context.getSubject() != null) {
-            node.set("subject", serializeReference(context.getSubject()));
+    private void writeQuestionnaire(JsonGenerator gen, Writer out, IBaseResource questionnaire) throws IOException {
+        QuestionnaireCache cache = this.questionnaireCache;
+        String key = cache != null ? questionnaireCacheKey(questionnaire) : null;
+        if (key == null) {
+            writeResource(gen, out, "questionnaire", questionnaire);
+            return;
+        }
+        String json = cache.get(key);
+        if (json == null) {
+            json = encodeResource(questionnaire);
+            cache.put(key, json);
         }
-        if (context.getAuthor() != null) {
-            node.set("author", serializeReference(context.getAuthor()));
+        gen.writeFieldName("questionnaire");
+        gen.writeRawValue(json);
+    }
+
+    /**
+     * The FHIR version and version identity of a Questionnaire: {@code url|version}, or
+     * {@code Questionnaire/id/_history/versionId}. Returns null when neither is available.
+     */
+    private String questionnaireCacheKey(IBaseResource questionnaire) {
+        String url = fhirTerser.getSinglePrimitiveValueOrNull(questionnaire, "url");
+        String version = fhirTerser.getSinglePrimitiveValueOrNull(questionnaire, "version");
+        if (url != null && version != null) {
+            return QuestionnaireCache.key(fhirVersion, url + "|" + version);
         }
-        if (context.getEncounter() != null) {
-            node.set("encounter", serializeReference(context.getEncounter()));
+        String versionKey = versionKey(questionnaire);
+        return versionKey != null ? QuestionnaireCache.key(fhirVersion, versionKey) : null;
+    }
+
+    private void writeSdcConfigureContext(JsonGenerator gen, Writer out, SdcConfigureContext payload) throws IOException {
+        gen.writeStartObject();
+        if (launchContextDeltaEnabled) {
+            writeReferences(gen, payload.getSubject(), payload.getAuthor(), payload.getEncounter());
+            writeLaunchContextDelta(gen, out, payload.getLaunchContext());
+        } else {
+            writeContext(gen, out, payload.getSubject(), payload.getAuthor(), payload.getEncounter(), payload.getLaunchContext());
         }
-        if (context.getLaunchContext() != null && !context.getLaunchContext().isEmpty()) {
-            ArrayNode launchContextArray = objectMapper.createArrayNode();
-            for (LaunchContext lc : context.getLaunchContext()) {
-                launchContextArray.add(serializeLaunchContext(lc));
+        gen.writeEndObject();
+    }
+
+    private void writeContext(JsonGenerator gen, Writer out, IBaseReference subject, IBaseReference author,
+                              IBaseReference encounter, List<LaunchContext> launchContext) throws IOException {
+        writeReferences(gen, subject, author, encounter);
+        if (launchContext != null && !launchContext.isEmpty()) {
+            gen.writeArrayFieldStart("launchContext");
+            for (LaunchContext lc : launchContext) {
+                writeLaunchContext(gen, out, lc, null);
             }
-            node.set("launchContext", launchContextArray);
+            gen.writeEndArray();
         }
+    }
 
-        return node;
+    private void writeReferences(JsonGenerator gen, IBaseReference subject, IBaseReference author,
+                                 IBaseReference encounter) throws IOException {
+        if (subject != null) {
+            writeReference(gen, "subject", subject);
+        }
+        if (author != null) {
+            writeReference(gen, "author", author);
+        }
+        if (encounter != null) {
+            writeReference(gen, "encounter", encounter);
+        }
     }
 
-    private ObjectNode serializeSdcConfigureContext(SdcConfigureContext payload) throws JsonProcessingException {
-        ObjectNode node = objectMapper.createObjectNode();
+    private void writeLaunchContextDelta(JsonGenerator gen, Writer out, List<LaunchContext> launchContext) throws IOException {
+        List<LaunchContext> entries = launchContext != null ? launchContext : Collections.<LaunchContext>emptyList();
+        List<String> names = new ArrayList<>(entries.size());
+        String[] fingerprints = new String[entries.size()];
+        String[] encodedResources = new String[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            LaunchContext lc = entries.get(i);
+            names.add(lc.getName());
+            IBaseResource resource = lc.getContentResource();
+            if (resource != null && versionKey(resource) == null) {
+                // No version to compare: the JSON has to be encoded to hash it, so keep it for writing
+                encodedResources[i] = encodeResource(resource);
+            }
+            fingerprints[i] = launchContextFingerprint(lc, encodedResources[i]);
+        }
 
-        if (payload.getSubject() != null) {
-            node.set("subject", serializeReference(payload.getSubject()));
+        synchronized (launchContextTracker) {
+            boolean delta = launchContextTracker.canSendDelta(names);
+            boolean arrayStarted = false;
+            for (int i = 0; i < entries.size(); i++) {
+                if (delta && !launchContextTracker.hasChanged(names.get(i), fingerprints[i])) {
+                    continue;
+                }
+                if (!arrayStarted) {
+                    gen.writeArrayFieldStart("launchContext");
+                    arrayStarted = true;
+                }
+                writeLaunchContext(gen, out, entries.get(i), encodedResources[i]);
+            }
+            if (arrayStarted) {
+                gen.writeEndArray();
+            }
+            if (delta) {
+                gen.writeBooleanField("launchContextDelta", true);
+            } else {
+                launchContextTracker.forget();
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                launchContextTracker.record(names.get(i), fingerprints[i]);
+            }
         }
-        if (payload.getAuthor() != null) {
-            node.set("author", serializeReference(payload.getAuthor()));
+    }
+
+    private String launchContextFingerprint(LaunchContext lc, String encodedResource) throws IOException {
+        StringBuilder fingerprint = new StringBuilder();
+        if (lc.getContentReference() != null) {
+            fingerprint.append("ref:").append(objectMapper.writeValueAsString(serializeReference(lc.getContentReference())));
         }
-        if (payload.getEncounter() != null) {
-            node.set("encounter", serializeReference(payload.getEncounter()));
+        IBaseResource resource = lc.getContentResource();
+        if (resource != null) {
+            fingerprint.append("|res:").append(encodedResource != null ? sha256(encodedResource) : versionKey(resource));
         }
-        if (payload.getLaunchContext() != null && !payload.getLaunchContext().isEmpty()) {
-            ArrayNode launchContextArray = objectMapper.createArrayNode();
-            for (LaunchContext lc : payload.getLaunchContext()) {
-                launchContextArray.add(serializeLaunchContext(lc));
-            }
-            node.set("launchContext", launchContextArray);
+        return fingerprint.toString();
+    }
+
+    /**
+     * {@code ResourceType/id/_history/versionId}, or null when the resource has no id or versionId.
+     */
+    private String versionKey(IBaseResource resource) {
+        String versionId = fhirTerser.getSinglePrimitiveValueOrNull(resource, "meta.versionId");
+        String id = resource.getIdElement().getIdPart();
+        if (versionId != null && id != null) {
+            return resource.fhirType() + "/" + id + "/_history/" + versionId;
         }
+        return null;
+    }
 
-        return node;
+    private static String sha256(String json) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(json.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 
-    private ObjectNode serializeLaunchContext(LaunchContext lc) throws JsonProcessingException {
-        ObjectNode node = objectMapper.createObjectNode();
-        node.put("name", lc.getName());
+    private void writeLaunchContext(JsonGenerator gen, Writer out, LaunchContext lc, String encodedResource) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("name", lc.getName());
 
         if (lc.getContentReference() != null) {
-            node.set("contentReference", serializeReference(lc.getContentReference()));
+            writeReference(gen, "contentReference", lc.getContentReference());
         }
-        if (lc.getContentResource() != null) {
-            String json = fhirJsonParser.encodeResourceToString(lc.getContentResource());
-            node.set("contentResource", objectMapper.readTree(json));
+        if (encodedResource != null) {
+            gen.writeFieldName("contentResource");
+            gen.writeRawValue(encodedResource);
+        } else if (lc.getContentResource() != null) {
+            writeResource(gen, out, "contentResource", lc.getContentResource());
+        }
+
+        gen.writeEndObject();
+    }
+
+    private void writeReference(JsonGenerator gen, String fieldName, IBaseReference ref) throws IOException {
+        gen.writeFieldName(fieldName);
+        objectMapper.writeTree(gen, serializeReference(ref));
+    }
+
+    /**
+     * Let HAPI encode a resource in place as the value of {@code fieldName}.
+     * An empty raw value makes the generator emit the separator and count the value as written;
+     * after flushing, HAPI appends the resource JSON to the same writer.
+     */
+    private void writeResource(JsonGenerator gen, Writer out, String fieldName, IBaseResource resource) throws IOException {
+        gen.writeFieldName(fieldName);
+        gen.writeRawValue("");
+        gen.flush();
+        // HAPI closes the writer it is given; SegmentedStringWriter ignores close()
+        IParser parser = fhirParsers.acquire();
+        try {
+            parser.encodeResourceToWriter(resource, out);
+        } finally {
+            fhirParsers.release(parser);
         }
+    }
 
-        return node;
+    private String encodeResource(IBaseResource resource) {
+        IParser parser = fhirParsers.acquire();
+        try {
+            return parser.encodeResourceToString(resource);
+        } finally {
+            fhirParsers.release(parser);
+        }
     }
 
     // ========== Non-typed outbound convenience methods ==========
@@ -465,9 +1161,36 @@ public abstract class AbstractSmartMessageHandler {
         logger.debug("Sending sdc.configureContext message.");
 
         SdcConfigureContext payload = new SdcConfigureContext(subject, author, encounter, launchContext);
-        return sendMessageAsync("sdc.configureContext", payload, responseHandler);
+        CompletableFuture<String> future = sendMessageAsync("sdc.configureContext", payload, responseHandler);
+        // If the page may not have received it, the next context must be sent in full
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                launchContextTracker.forget();
+            }
+        });
+        return future;
     }
 
+    /**
+     * Ask the page to display a questionnaire.
+     * <p>
+     * The returned future completes with the messageId of the display once the page has
+     * acknowledged it, which the bundled bridge does after rendering. It fails if the message
+     * could not be delivered, with a {@link CancellationException} if the page dropped the display
+     * for a newer one or if the session is {@linkplain #resetSession() reset} first, and with a
+     * {@link TimeoutException} if no acknowledgement arrives within the response timeout. {@code responseHandler}, if given, receives the acknowledgement too.
+     * <p>
+     * Cancelling the future before that withdraws the display if the sender still holds it (e.g.
+     * until the handshake), and otherwise sends an {@code sdc.cancelDisplayQuestionnaire} so the
+     * page drops it unless it has already rendered it.
+     * <p>
+     * <b>Behavior change:</b> the future used to complete as soon as the message was handed to the
+     * transport. It now waits for the page, can fail with a {@link TimeoutException}, and a
+     * response listener is registered even when {@code responseHandler} is null. Do not block on
+     * it ({@code join()}, {@code get()}) on a thread the page needs to render, such as the Swing
+     * EDT; chain dependent stages instead. To wait only for the hand-over, use the future of
+     * {@link #sendBatchAsync(Runnable)}.
+     */
     public CompletableFuture<String> sendSdcDisplayQuestionnaireAsync(
             Object questionnaire,
             IBaseResource questionnaireResponse,
@@ -483,18 +1206,104 @@ public abstract class AbstractSmartMessageHandler {
             new SdcDisplayQuestionnaire.SdcDisplayQuestionnaireContext(subject, author, encounter, launchContext);
 
         SdcDisplayQuestionnaire payload = new SdcDisplayQuestionnaire(questionnaire, questionnaireResponse, context);
-        return sendMessageAsync("sdc.displayQuestionnaire", payload, responseHandler);
+
+        logger.info("Sending message async: MessageType={}", "sdc.displayQuestionnaire");
+        MessageSender sender = requireMessageSender();
+        String messageId = messageIdGenerator.nextId();
+
+        // Pending until the page acknowledges the display, so it can be cancelled until it renders
+        CompletableFuture<String> result = new CompletableFuture<String>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                // Unlike super.cancel(), only true for the call that actually cancels
+                boolean cancelled = completeExceptionally(new CancellationException());
+                if (cancelled) {
+                    responseListeners.remove(messageId);
+                    if (!sender.withdrawRequest(messageId)) {
+                        // Already on its way: a cancel sent after it reaches the page before it renders
+                        sendSdcCancelDisplayQuestionnaireAsync(messageId);
+                    }
+                }
+                return cancelled || isCancelled();
+            }
+        };
+        Consumer<SmartMessageResponse> acknowledgement = response -> {
+            if (responseHandler != null) {
+                responseHandler.accept(response);
+            }
+            if (response.getPayload() instanceof ErrorResponse) {
+                result.completeExceptionally(displayError((ErrorResponse) response.getPayload()));
+            } else {
+                result.complete(messageId);
+            }
+        };
+        sendMessageAsync(sender, messageId, "sdc.displayQuestionnaire", payload, acknowledgement)
+            .whenComplete((sent, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                }
+            });
+        return result;
+    }
+
+    private static Throwable displayError(ErrorResponse error) {
+        String message = "sdc.displayQuestionnaire failed: " + error.getErrorMessage();
+        if ("CancellationException".equals(error.getErrorType())) {
+            return new CancellationException(message);
+        }
+        if ("TimeoutException".equals(error.getErrorType())) {
+            return new TimeoutException(message);
+        }
+        return new IllegalStateException(message + " (" + error.getErrorType() + ")");
+    }
+
+    /**
+     * Ask the page to drop an {@code sdc.displayQuestionnaire} it has received but not yet rendered.
+     * A newer display always supersedes a pending one, so this is only needed to cancel without
+     * a replacement. Cancelling the future of {@code sendSdcDisplayQuestionnaireAsync} sends it
+     * automatically when the display has already been handed to the page.
+     *
+     * @param messageId the messageId of the display to cancel, or null for any pending display
+     */
+    public CompletableFuture<String> sendSdcCancelDisplayQuestionnaireAsync(String messageId) {
+        logger.debug("Sending sdc.cancelDisplayQuestionnaire message.");
+        return sendMessageAsync("sdc.cancelDisplayQuestionnaire", new SdcCancelDisplayQuestionnaire(messageId), null);
+    }
+
+    // ========== Session state ==========
+
+    /**
+     * Forget all state tied to the current page: pending response listeners and the launch
+     * context already sent. Call this when the browser navigates away.
+     * <p>
+     * Requests still waiting for a response will not get one: their listeners receive an error
+     * response of type {@code CancellationException}, and their futures fail with a
+     * {@link CancellationException}.
+     */
+    public void resetSession() {
+        responseListeners.clear("Session reset");
+        logger.debug("All response listeners cleared.");
+        launchContextTracker.reset(false);
+        logger.debug("Session state reset.");
     }
 
     // ========== Response listener management ==========
 
     public void registerResponseListener(String messageId, Consumer<SmartMessageResponse> responseHandler) {
+        registerResponseListener(messageId, responseHandler, responseTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Register a response listener with its own timeout (0 waits indefinitely).
+     */
+    public void registerResponseListener(String messageId, Consumer<SmartMessageResponse> responseHandler,
+                                         long timeout, TimeUnit unit) {
         logger.debug("Registering response listener for MessageId: {}", messageId);
-        responseListeners.put(messageId, responseHandler);
+        responseListeners.register(messageId, responseHandler, unit.toMillis(timeout));
     }
 
     public void unregisterResponseListener(String messageId) {
-        if (responseListeners.remove(messageId) != null) {
+        if (responseListeners.remove(messageId)) {
             logger.debug("Unregistered response listener for MessageId: {}", messageId);
         } else {
             logger.warn("Attempted to unregister non-existent listener for MessageId: {}", messageId);
@@ -502,13 +1311,17 @@ public abstract class AbstractSmartMessageHandler {
     }
 
     public boolean hasPendingResponseListener(String messageId) {
-        boolean hasListener = responseListeners.containsKey(messageId);
+        boolean hasListener = responseListeners.contains(messageId);
         logger.debug("Checking for pending response listener for MessageId: {}. Result: {}", messageId, hasListener);
         return hasListener;
     }
 
+    /**
+     * Drop all pending response listeners. Like {@link #resetSession()}, each receives an error
+     * response of type {@code CancellationException} and the futures waiting on them fail.
+     */
     public void clearAllResponseListeners() {
-        responseListeners.clear();
+        responseListeners.clear("Response listeners cleared");
         logger.debug("All response listeners cleared.");
     }
 
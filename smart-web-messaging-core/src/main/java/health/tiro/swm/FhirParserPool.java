@@ -0,0 +1,63 @@
+package health.tiro.swm;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of configured JSON parsers for one {@link FhirContext}. HAPI parsers are not thread-safe,
+ * so each one is used by a single thread between {@link #acquire()} and {@link #release(IParser)}.
+ * Parsers are created on demand when the pool is empty, and at most {@code maxIdle} are kept
+ * for reuse, so the pool grows with the number of threads actually parsing at the same time.
+ */
+final class FhirParserPool {
+
+    private final FhirContext fhirContext;
+    private final int maxIdle;
+    private final Queue<IParser> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    FhirParserPool(FhirContext fhirContext, int maxIdle) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("maxIdle must be at least 1");
+        }
+        this.fhirContext = fhirContext;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Take a parser for exclusive use by the calling thread. Pair with {@link #release(IParser)}
+     * in a finally block.
+     */
+    IParser acquire() {
+        IParser parser = idle.poll();
+        if (parser != null) {
+            idleCount.decrementAndGet();
+            return parser;
+        }
+        created.incrementAndGet();
+        return fhirContext.newJsonParser()
+                .setPrettyPrint(false)
+                .setParserErrorHandler(new LenientErrorHandler().setErrorOnInvalidValue(false));
+    }
+
+    void release(IParser parser) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(parser);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of parsers created so far.
+     */
+    int getCreated() {
+        return created.get();
+    }
+}
@@ -0,0 +1,157 @@
+package health.tiro.swm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coarse-grained timer for large numbers of short-lived deadlines, such as response timeouts
+ * that almost always get cancelled before they fire.
+ * <p>
+ * Timeouts are hashed into a fixed ring of buckets by deadline; a single daemon thread advances
+ * one bucket per tick and expires the timeouts whose deadline has passed. Scheduling and
+ * cancelling are O(1) and take no lock. Deadlines are rounded up to the tick duration, and
+ * tasks run on the timer thread, so they must be short.
+ */
+final class HashedWheelTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    private static final class SharedHolder {
+        static final HashedWheelTimer INSTANCE = new HashedWheelTimer("swm-response-timer", 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    private final long tickNanos;
+    private final List<List<Timeout>> wheel;
+    private final int mask;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+
+    /**
+     * The timer shared by all handlers.
+     */
+    static HashedWheelTimer shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    HashedWheelTimer(String threadName, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (Integer.bitCount(ticksPerWheel) != 1) {
+            throw new IllegalArgumentException("ticksPerWheel must be a power of two");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new ArrayList<>(ticksPerWheel);
+        for (int i = 0; i < ticksPerWheel; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.mask = ticksPerWheel - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run the task once the delay has passed, unless the returned timeout is cancelled first.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (true) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    // Daemon thread for the lifetime of the JVM; keep ticking
+                    continue;
+                }
+            }
+            transferNewTimeouts(tick);
+            expire(wheel.get((int) (tick & mask)), System.nanoTime());
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts(long currentTick) {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long calculated = Math.max(0, timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+            timeout.remainingRounds = (calculated - currentTick) / wheel.size();
+            long ticks = Math.max(calculated, currentTick);
+            wheel.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket, long now) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+            if (timeout.isCancelled()) {
+                it.remove();
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline - now <= 0) {
+                it.remove();
+                timeout.expire();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * Handle to a scheduled task.
+     */
+    static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // Only touched by the timer thread
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. Returns false if it already ran or was cancelled.
+         */
+        boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        private void expire() {
+            if (state.compareAndSet(PENDING, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Timer task failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package health.tiro.swm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers which launch context entries the current page has received, by name and fingerprint,
+ * so {@code sdc.configureContext} can send only the entries that changed.
+ * <p>
+ * Nothing is recorded until the page has completed a handshake: messages sent while the page
+ * is loading may be queued or coalesced, so they are always sent in full.
+ */
+final class LaunchContextTracker {
+
+    private final Map<String, String> sent = new HashMap<>();
+    private boolean established;
+
+    /**
+     * Forget everything and mark whether a page is currently connected.
+     */
+    synchronized void reset(boolean established) {
+        this.established = established;
+        sent.clear();
+    }
+
+    /**
+     * Forget the recorded entries but keep the connection state, forcing the next send to be complete.
+     */
+    synchronized void forget() {
+        sent.clear();
+    }
+
+    synchronized boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * Whether a delta can be sent for the given entry names: the page is connected, something was
+     * sent before, and no previously sent entry is missing (removals need a full resend).
+     */
+    synchronized boolean canSendDelta(Collection<String> names) {
+        return established && !sent.isEmpty() && names.containsAll(sent.keySet());
+    }
+
+    /**
+     * Whether the entry differs from what was last sent.
+     */
+    synchronized boolean hasChanged(String name, String fingerprint) {
+        return !fingerprint.equals(sent.get(name));
+    }
+
+    /**
+     * Record an entry as sent. Ignored while no page is connected.
+     */
+    synchronized void record(String name, String fingerprint) {
+        if (established) {
+            sent.put(name, fingerprint);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package health.tiro.swm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of listener event delivery, see
+ * {@link AbstractSmartMessageHandler#getListenerDispatchStats()}.
+ * <p>
+ * Queue delay is the time an event waited before its listener started handling it (always
+ * zero for synchronous dispatch); listener time is the time the listener itself took.
+ */
+public class ListenerDispatchStats {
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalQueueDelayNanos = new AtomicLong();
+    private final AtomicLong maxQueueDelayNanos = new AtomicLong();
+    private final AtomicLong totalListenerNanos = new AtomicLong();
+    private final AtomicLong maxListenerNanos = new AtomicLong();
+
+    void recordQueued() {
+        pending.incrementAndGet();
+    }
+
+    void recordDelivery(long queueDelayNanos, long listenerNanos, boolean failure, boolean queued) {
+        if (queued) {
+            pending.decrementAndGet();
+        }
+        delivered.incrementAndGet();
+        if (failure) {
+            failed.incrementAndGet();
+        }
+        totalQueueDelayNanos.addAndGet(queueDelayNanos);
+        maxQueueDelayNanos.accumulateAndGet(queueDelayNanos, Math::max);
+        totalListenerNanos.addAndGet(listenerNanos);
+        maxListenerNanos.accumulateAndGet(listenerNanos, Math::max);
+    }
+
+    /**
+     * Number of events delivered to a listener, including failed deliveries.
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Number of deliveries in which the listener threw an exception.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Number of events handed to the executor that no listener has finished yet.
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getTotalQueueDelayNanos() {
+        return totalQueueDelayNanos.get();
+    }
+
+    public long getMaxQueueDelayNanos() {
+        return maxQueueDelayNanos.get();
+    }
+
+    public long getTotalListenerNanos() {
+        return totalListenerNanos.get();
+    }
+
+    public long getMaxListenerNanos() {
+        return maxListenerNanos.get();
+    }
+}
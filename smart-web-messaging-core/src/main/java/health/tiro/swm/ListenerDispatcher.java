@@ -0,0 +1,99 @@
+package health.tiro.swm;
+
+import health.tiro.swm.events.SmartMessageListener;
+import health.tiro.swm.metrics.NoOpSmartMessagingMetrics;
+import health.tiro.swm.metrics.SmartMessagingMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Delivers events to listeners ({@link SmartMessageListener}s and raw listeners), either on the calling thread or on an
+ * {@link Executor}.
+ * <p>
+ * With an executor, every listener gets its own serial queue on top of it: events reach one
+ * listener in the order they were dispatched, one at a time, while different listeners run
+ * concurrently. Each queue holds at most {@link #QUEUE_CAPACITY} events; when it is full, the
+ * dispatching thread waits for the listener to catch up, which slows down intake instead of
+ * buffering without limit. If the executor rejects a task, the events stay queued until it
+ * accepts one again.
+ */
+final class ListenerDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+    /**
+     * Maximum number of events waiting for one listener.
+     */
+    static final int QUEUE_CAPACITY = 1024;
+
+    private final Map<Object, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final ListenerDispatchStats stats = new ListenerDispatchStats();
+    private volatile Executor executor;
+    private volatile SmartMessagingMetrics metrics = NoOpSmartMessagingMetrics.INSTANCE;
+
+    void setMetrics(SmartMessagingMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    ListenerDispatchStats getStats() {
+        return stats;
+    }
+
+    void removeListener(Object listener) {
+        queues.remove(listener);
+    }
+
+    /**
+     * Deliver an event to all listeners. Without an executor, exceptions thrown by a listener
+     * propagate to the caller; with one, they are logged and counted.
+     */
+    <L> void dispatch(List<L> listeners, String eventName, Consumer<L> delivery) {
+        Executor current = executor;
+        for (L listener : listeners) {
+            if (current == null) {
+                long start = System.nanoTime();
+                try {
+                    delivery.accept(listener);
+                } finally {
+                    long elapsed = System.nanoTime() - start;
+                    stats.recordDelivery(0, elapsed, false, false);
+                    metrics.recordListener(eventName, elapsed);
+                }
+            } else {
+                long queuedAt = System.nanoTime();
+                stats.recordQueued();
+                queues.computeIfAbsent(listener, l -> new SerialQueue(QUEUE_CAPACITY))
+                        .execute(current, () -> deliver(listener, eventName, delivery, queuedAt));
+            }
+        }
+    }
+
+    private <L> void deliver(L listener, String eventName, Consumer<L> delivery, long queuedAt) {
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            delivery.accept(listener);
+        } catch (RuntimeException e) {
+            failed = true;
+            logger.error("Listener failed handling {}", eventName, e);
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            stats.recordDelivery(start - queuedAt, elapsed, failed, true);
+            metrics.recordListener(eventName, elapsed);
+        }
+    }
+}
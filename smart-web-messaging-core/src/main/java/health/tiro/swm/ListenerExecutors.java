@@ -0,0 +1,46 @@
+package health.tiro.swm;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for {@link AbstractSmartMessageHandler#setListenerExecutor(java.util.concurrent.Executor)}.
+ */
+public final class ListenerExecutors {
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    private ListenerExecutors() {
+    }
+
+    /**
+     * A fixed pool of daemon threads with a bounded task queue. The pool queues one task per
+     * listener with pending events, which delivers them in order; the events themselves wait in
+     * the listener's own queue, which is bounded too (see
+     * {@link AbstractSmartMessageHandler#setListenerExecutor(java.util.concurrent.Executor)}).
+     * When the pool's queue is full, e.g. with many handlers sharing the pool, the handler
+     * delivers the events on the thread handling the message, slowing down intake instead of
+     * buffering without limit.
+     *
+     * @param threads       number of listener threads
+     * @param queueCapacity maximum number of listeners waiting for a thread
+     */
+    public static ExecutorService newBoundedPool(int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("threads and queueCapacity must be at least 1");
+        }
+        int pool = poolNumber.incrementAndGet();
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "swm-listener-" + pool + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+    }
+}
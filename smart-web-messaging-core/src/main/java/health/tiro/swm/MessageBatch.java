@@ -0,0 +1,68 @@
+package health.tiro.swm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Requests collected by {@link AbstractSmartMessageHandler#sendBatchAsync(Runnable)} on the
+ * current thread, to be handed to the transport in a single call.
+ */
+final class MessageBatch {
+
+    private final List<String> messageTypes = new ArrayList<>();
+    private final List<String> messageIds = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    private final List<CompletableFuture<String>> futures = new ArrayList<>();
+    private final CompletableFuture<String> sent = new CompletableFuture<>();
+
+    /**
+     * Queue a serialized request. The returned future completes when the batch is sent.
+     */
+    CompletableFuture<String> add(String messageType, String messageId, String json) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        messageTypes.add(messageType);
+        messageIds.add(messageId);
+        messages.add(json);
+        futures.add(future);
+        return future;
+    }
+
+    List<String> getMessageTypes() {
+        return messageTypes;
+    }
+
+    List<String> getMessageIds() {
+        return messageIds;
+    }
+
+    List<String> getMessages() {
+        return messages;
+    }
+
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    /**
+     * Completes when the whole batch has been sent, or failed.
+     */
+    CompletableFuture<String> getSent() {
+        return sent;
+    }
+
+    void complete(String result, Throwable error) {
+        for (CompletableFuture<String> future : futures) {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        }
+        if (error != null) {
+            sent.completeExceptionally(error);
+        } else {
+            sent.complete(result);
+        }
+    }
+}
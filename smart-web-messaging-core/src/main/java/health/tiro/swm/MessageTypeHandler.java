@@ -0,0 +1,30 @@
+package health.tiro.swm;
+
+import health.tiro.swm.message.SmartMessageEnvelope;
+import health.tiro.swm.message.SmartMessageResponse;
+
+/**
+ * Handles inbound requests of one SMART Web Messaging message type.
+ * Register with {@link AbstractSmartMessageHandler#registerMessageTypeHandler(String, MessageTypeHandler)}
+ * to support types beyond {@code status.handshake}, {@code form.submitted} and {@code ui.done}
+ * (e.g. {@code scratchpad.read} or {@code fhir.http}), or to replace a built-in one.
+ *
+ * <pre>{@code
+ * handler.registerMessageTypeHandler("scratchpad.read", message -> {
+ *     JsonNode payload = message.getPayload();
+ *     ...
+ *     return null; // acknowledge with an empty response
+ * });
+ * }</pre>
+ */
+@FunctionalInterface
+public interface MessageTypeHandler {
+
+    /**
+     * Handle a request. Exceptions are turned into an error response.
+     *
+     * @param message the decoded request
+     * @return the response to send back, or null to acknowledge with an empty response
+     */
+    SmartMessageResponse handle(SmartMessageEnvelope message) throws Exception;
+}
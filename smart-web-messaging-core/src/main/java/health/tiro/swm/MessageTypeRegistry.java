@@ -0,0 +1,104 @@
+package health.tiro.swm;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Case-insensitive map of message types to their {@link MessageTypeHandler}.
+ * <p>
+ * Lookups run against an immutable open-addressing table that is rebuilt on every change,
+ * so they take no lock and allocate nothing: the hash folds case character by character and
+ * candidates are compared with {@link String#regionMatches(boolean, int, String, int, int)}.
+ * Registrations are expected to be rare compared to lookups.
+ */
+final class MessageTypeRegistry {
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private volatile Table table = Table.EMPTY;
+
+    /**
+     * Register a handler, replacing and returning any handler registered for the same type.
+     */
+    synchronized MessageTypeHandler register(String messageType, MessageTypeHandler handler) {
+        Entry previous = entries.put(messageType.toLowerCase(Locale.ROOT), new Entry(messageType, handler));
+        table = Table.of(entries);
+        return previous != null ? previous.handler : null;
+    }
+
+    synchronized MessageTypeHandler unregister(String messageType) {
+        Entry previous = entries.remove(messageType.toLowerCase(Locale.ROOT));
+        if (previous != null) {
+            table = Table.of(entries);
+            return previous.handler;
+        }
+        return null;
+    }
+
+    /**
+     * The handler for the given message type, ignoring case, or null if none is registered.
+     */
+    MessageTypeHandler lookup(String messageType) {
+        return table.get(messageType);
+    }
+
+    private static int hash(String s) {
+        int h = 0;
+        for (int i = 0; i < s.length(); i++) {
+            h = 31 * h + Character.toLowerCase(Character.toUpperCase(s.charAt(i)));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final String messageType;
+        final MessageTypeHandler handler;
+
+        Entry(String messageType, MessageTypeHandler handler) {
+            this.messageType = messageType;
+            this.handler = handler;
+        }
+    }
+
+    private static final class Table {
+        static final Table EMPTY = new Table(new String[1], new MessageTypeHandler[1]);
+
+        final String[] keys;
+        final MessageTypeHandler[] handlers;
+        final int mask;
+
+        private Table(String[] keys, MessageTypeHandler[] handlers) {
+            this.keys = keys;
+            this.handlers = handlers;
+            this.mask = keys.length - 1;
+        }
+
+        static Table of(Map<String, Entry> entries) {
+            // Keep the load factor at or below one half so probe sequences stay short
+            int capacity = Integer.highestOneBit(Math.max(1, entries.size()) * 2 - 1) << 1;
+            Table table = new Table(new String[capacity], new MessageTypeHandler[capacity]);
+            for (Entry entry : entries.values()) {
+                int i = hash(entry.messageType) & table.mask;
+                while (table.keys[i] != null) {
+                    i = (i + 1) & table.mask;
+                }
+                table.keys[i] = entry.messageType;
+                table.handlers[i] = entry.handler;
+            }
+            return table;
+        }
+
+        MessageTypeHandler get(String messageType) {
+            int i = hash(messageType) & mask;
+            String key;
+            while ((key = keys[i]) != null) {
+                if (key.length() == messageType.length()
+                        && key.regionMatches(true, 0, messageType, 0, messageType.length())) {
+                    return handlers[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
+}
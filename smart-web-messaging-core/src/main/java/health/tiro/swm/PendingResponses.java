@@ -0,0 +1,244 @@
+package health.tiro.swm;
+
+import health.tiro.swm.message.SmartMessageResponse;
+import health.tiro.swm.message.payload.ErrorResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Response listeners waiting for an answer to an outbound request, each with a deadline
+ * enforced by the shared {@link HashedWheelTimer}.
+ * <p>
+ * When the deadline passes, the entry is removed and its listener receives an error response
+ * of type {@code TimeoutException}; when the entries are {@linkplain #clear(String) cleared},
+ * e.g. because the page went away, each listener receives one of type {@code CancellationException},
+ * so nothing waits for a response that can no longer come. The listener is called on the callback
+ * executor, so a slow one does not hold up the timer thread and every other deadline in the JVM.
+ * The ids of recently expired requests are remembered so a response that arrives afterwards can be
+ * counted as late.
+ */
+final class PendingResponses {
+
+    private static final Logger logger = LoggerFactory.getLogger(PendingResponses.class);
+    private static final int RECENTLY_EXPIRED_CAPACITY = 1024;
+
+    private static final class SharedCallbackPool {
+        private static final AtomicInteger threadNumber = new AtomicInteger();
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "swm-response-callback-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> recentlyExpired = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENTLY_EXPIRED_CAPACITY;
+        }
+    });
+    private final ResponseListenerStats stats = new ResponseListenerStats(entries::size);
+    private final HashedWheelTimer timer;
+    private final Executor callbackExecutor;
+    private volatile IntConsumer sizeListener = delta -> {};
+
+    /**
+     * @param callbackExecutor runs the listeners of expired and cleared requests
+     */
+    PendingResponses(HashedWheelTimer timer, Executor callbackExecutor) {
+        this.timer = timer;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Daemon threads for the listeners of expired and cleared requests of standalone handlers without a
+     * listener executor. Threads are created as needed, so one slow listener never delays another.
+     */
+    static Executor sharedCallbackExecutor() {
+        return SharedCallbackPool.INSTANCE;
+    }
+
+    /**
+     * Report every change in the number of pending listeners to {@code sizeListener}.
+     */
+    void setSizeListener(IntConsumer sizeListener) {
+        this.sizeListener = sizeListener;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    ResponseListenerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Register a listener, replacing any listener for the same id.
+     *
+     * @param timeoutMillis deadline from now, or 0 to wait indefinitely
+     */
+    void register(String messageId, Consumer<SmartMessageResponse> listener, long timeoutMillis) {
+        register(messageId, listener, timeoutMillis, null);
+    }
+
+    /**
+     * Register a listener whose request is failed by {@code onAbandon} instead of delivering an
+     * error response when it expires or is cleared, with a {@link TimeoutException} or a
+     * {@link CancellationException} respectively.
+     */
+    void register(String messageId, Consumer<SmartMessageResponse> listener, long timeoutMillis,
+                  Consumer<Exception> onAbandon) {
+        Entry entry = new Entry(messageId, listener, timeoutMillis, onAbandon);
+        Entry previous = entries.put(messageId, entry);
+        if (previous != null) {
+            previous.disarm();
+        } else {
+            sizeListener.accept(1);
+        }
+        entry.arm();
+    }
+
+    /**
+     * The listener for the given id, or null if none is pending. Counts a late response if
+     * the id expired recently.
+     */
+    Consumer<SmartMessageResponse> get(String messageId) {
+        Entry entry = entries.get(messageId);
+        if (entry != null) {
+            return entry.listener;
+        }
+        boolean late;
+        synchronized (recentlyExpired) {
+            late = recentlyExpired.remove(messageId);
+        }
+        if (late) {
+            stats.recordLate();
+            logger.warn("Response for MessageId: {} arrived after its listener timed out", messageId);
+        }
+        return null;
+    }
+
+    /**
+     * A response arrived and more are expected: restart the deadline.
+     */
+    void extend(String messageId) {
+        Entry entry = entries.get(messageId);
+        if (entry != null) {
+            entry.disarm();
+            entry.arm();
+        }
+    }
+
+    boolean remove(String messageId) {
+        Entry entry = entries.remove(messageId);
+        if (entry != null) {
+            entry.disarm();
+            sizeListener.accept(-1);
+            return true;
+        }
+        return false;
+    }
+
+    boolean contains(String messageId) {
+        return entries.containsKey(messageId);
+    }
+
+    /**
+     * Remove all entries, failing each listener with a {@link CancellationException}.
+     *
+     * @param reason why the responses will not come, e.g. {@code "Session reset"}
+     */
+    void clear(String reason) {
+        for (Entry entry : entries.values()) {
+            if (entries.remove(entry.messageId, entry)) {
+                entry.disarm();
+                sizeListener.accept(-1);
+                abandon(entry, new CancellationException(reason + " before MessageId: " + entry.messageId
+                        + " was answered"));
+            }
+        }
+    }
+
+    private void expire(Entry entry) {
+        if (!entries.remove(entry.messageId, entry)) {
+            return;
+        }
+        sizeListener.accept(-1);
+        synchronized (recentlyExpired) {
+            recentlyExpired.add(entry.messageId);
+        }
+        stats.recordExpired();
+        logger.warn("No response for MessageId: {} within {} ms", entry.messageId, entry.timeoutMillis);
+        abandon(entry, new TimeoutException("No response within " + entry.timeoutMillis + " ms"));
+    }
+
+    private void abandon(Entry entry, Exception reason) {
+        Runnable callback = () -> notifyAbandoned(entry, reason);
+        try {
+            callbackExecutor.execute(callback);
+        } catch (RejectedExecutionException e) {
+            callback.run();
+        }
+    }
+
+    private static void notifyAbandoned(Entry entry, Exception reason) {
+        try {
+            if (entry.onAbandon != null) {
+                entry.onAbandon.accept(reason);
+            } else {
+                entry.listener.accept(SmartMessageResponse.createErrorResponse(entry.messageId,
+                        new ErrorResponse(reason.getMessage(), reason.getClass().getSimpleName())));
+            }
+        } catch (Exception e) {
+            logger.error("Exception occurred while executing response listener for unanswered MessageId: {}",
+                    entry.messageId, e);
+        }
+    }
+
+    private final class Entry {
+        final String messageId;
+        final Consumer<SmartMessageResponse> listener;
+        final long timeoutMillis;
+        final Consumer<Exception> onAbandon;
+        volatile HashedWheelTimer.Timeout timeout;
+
+        Entry(String messageId, Consumer<SmartMessageResponse> listener, long timeoutMillis,
+              Consumer<Exception> onAbandon) {
+            this.messageId = messageId;
+            this.listener = listener;
+            this.timeoutMillis = timeoutMillis;
+            this.onAbandon = onAbandon;
+        }
+
+        void arm() {
+            if (timeoutMillis > 0) {
+                timeout = timer.schedule(() -> expire(this), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void disarm() {
+            HashedWheelTimer.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package health.tiro.swm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of encoded Questionnaire JSON, used by
+ * {@link AbstractSmartMessageHandler#setQuestionnaireCache(QuestionnaireCache)}.
+ * <p>
+ * Entries are keyed by the FHIR version and the Questionnaire's version identity
+ * ({@code url|version}, or the resource id with {@code meta.versionId}), so a cached entry is
+ * reused for as long as the Questionnaire keeps that version. Questionnaires without any version
+ * information are never cached. A Questionnaire changed in place without a new version must be
+ * removed with {@link #invalidate(String)}. Hit, miss and eviction counters are exposed to help
+ * size the cache.
+ *
+ * <pre>{@code
+ * handler.setQuestionnaireCache(new QuestionnaireCache(16));
+ * }</pre>
+ */
+public class QuestionnaireCache {
+
+    private final int maxEntries;
+    private final Map<String, String> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of encoded Questionnaires to keep
+     */
+    public QuestionnaireCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > QuestionnaireCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The key of a Questionnaire with the given version identity, encoded for the given FHIR version.
+     */
+    static String key(String fhirVersion, String identity) {
+        return fhirVersion + " " + identity;
+    }
+
+    /**
+     * Returns the encoded JSON for the given key, or null on a miss.
+     */
+    String get(String key) {
+        String json;
+        synchronized (entries) {
+            json = entries.get(key);
+        }
+        if (json != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return json;
+    }
+
+    void put(String key, String json) {
+        synchronized (entries) {
+            entries.put(key, json);
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Remove every cached encoding of a Questionnaire, e.g. after it was changed in memory
+     * without a new version.
+     *
+     * @param canonicalUrlOrId the Questionnaire's canonical URL (all its versions are removed),
+     *                         or its id as {@code Questionnaire/[id]}
+     * @return the number of entries removed
+     */
+    public int invalidate(String canonicalUrlOrId) {
+        String versioned = canonicalUrlOrId + "|";
+        String historic = canonicalUrlOrId + "/_history/";
+        int removed = 0;
+        synchronized (entries) {
+            for (Iterator<String> keys = entries.keySet().iterator(); keys.hasNext(); ) {
+                String key = keys.next();
+                String identity = key.substring(key.indexOf(' ') + 1);
+                if (identity.startsWith(versioned) || identity.startsWith(historic)) {
+                    keys.remove();
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Remove all entries. Counters are kept.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package health.tiro.swm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters of response listeners, see {@link AbstractSmartMessageHandler#getResponseListenerStats()}.
+ */
+public class ResponseListenerStats {
+
+    private final IntSupplier pending;
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+
+    ResponseListenerStats(IntSupplier pending) {
+        this.pending = pending;
+    }
+
+    void recordExpired() {
+        expired.incrementAndGet();
+    }
+
+    void recordLate() {
+        late.incrementAndGet();
+    }
+
+    /**
+     * Number of listeners currently waiting for a response.
+     */
+    public int getPending() {
+        return pending.getAsInt();
+    }
+
+    /**
+     * Number of listeners that timed out without a response.
+     */
+    public long getExpired() {
+        return expired.get();
+    }
+
+    /**
+     * Number of responses that arrived after their listener had timed out.
+     */
+    public long getLate() {
+        return late.get();
+    }
+}
@@ -0,0 +1,100 @@
+package health.tiro.swm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in submission order, on top of a shared {@link Executor}.
+ * At most one task of the queue occupies an executor thread at any time. If the executor
+ * rejects a task, e.g. because a shared pool is saturated, the tasks stay in this queue and
+ * scheduling is retried on the {@linkplain HashedWheelTimer#shared() shared timer}, so they never
+ * run on the submitting thread. Only an executor that has been shut down is drained on the
+ * calling thread, as nothing else will run the tasks.
+ * <p>
+ * A bounded queue also applies back-pressure when it is full: the submitting thread waits
+ * for room, except a task submitted by the queue's own task, which runs immediately.
+ */
+final class SerialQueue implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SerialQueue.class);
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private final BlockingQueue<Runnable> tasks;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile Executor executor;
+    private volatile Thread runner;
+
+    SerialQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity maximum number of tasks waiting to run
+     */
+    SerialQueue(int capacity) {
+        this.tasks = new LinkedBlockingQueue<>(capacity);
+    }
+
+    void execute(Executor executor, Runnable task) {
+        if (!tasks.offer(task)) {
+            if (Thread.currentThread() == runner) {
+                // Waiting for our own queue would never end
+                task.run();
+                return;
+            }
+            try {
+                tasks.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
+            }
+        }
+        schedule(executor);
+    }
+
+    private void schedule(Executor executor) {
+        if (scheduled.compareAndSet(false, true)) {
+            this.executor = executor;
+            submit(executor);
+        }
+    }
+
+    private void submit(Executor executor) {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            if (executor instanceof ExecutorService && ((ExecutorService) executor).isShutdown()) {
+                logger.warn("Executor is shut down, running queued tasks on the calling thread");
+                run();
+            } else {
+                logger.debug("Executor rejected a task, retrying in {} ms", RETRY_DELAY_MILLIS);
+                HashedWheelTimer.shared().schedule(() -> submit(executor), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        runner = Thread.currentThread();
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        } finally {
+            runner = null;
+            scheduled.set(false);
+            if (!tasks.isEmpty()) {
+                schedule(executor);
+            }
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package health.tiro.swm;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import health.tiro.swm.message.SmartMessageCodec;
+import health.tiro.swm.metrics.SmartMessagingMetrics;
+import health.tiro.swm.metrics.SmartMessagingMetricsFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Resources shared by many SMART Web Messaging sessions, e.g. one per open form: a single
+ * {@link FhirContext}, {@link ObjectMapper}, metrics and pool of FHIR parsers, and one worker pool sized
+ * independently of the number of sessions. Handlers created with {@link #openSession(String)} only hold per-session
+ * state (listeners, pending responses, launch context) on top of these.
+ * <p>
+ * Version-specific handlers provide a preconfigured builder:
+ *
+ * <pre>{@code
+ * SmartMessagingRuntime<SmartMessageHandler> runtime = SmartMessageHandler.runtimeBuilder()
+ *     .workerThreads(4)
+ *     .build();
+ *
+ * SmartMessageHandler handler = runtime.openSession("chart-42");
+ * // ...
+ * runtime.closeSession("chart-42");
+ * }</pre>
+ *
+ * @param <H> the handler type created for each session
+ */
+public final class SmartMessagingRuntime<H extends AbstractSmartMessageHandler> implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmartMessagingRuntime.class);
+    private static final AtomicInteger runtimeNumber = new AtomicInteger();
+
+    private final FhirContext fhirContext;
+    private final ObjectMapper objectMapper;
+    private final SmartMessageCodec messageCodec;
+    private final SmartMessagingMetrics metrics;
+    private final FhirParserPool parserPool;
+    private final ExecutorService workerPool;
+    private final boolean ownsWorkerPool;
+    private final ExecutorService listenerPool;
+    private final Function<SmartMessagingRuntime<H>, H> handlerFactory;
+    private final ConcurrentMap<String, H> sessions = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private SmartMessagingRuntime(Builder<H> builder) {
+        this.fhirContext = builder.fhirContext;
+        this.objectMapper = builder.objectMapper != null
+                ? builder.objectMapper
+                : AbstractSmartMessageHandler.createDefaultObjectMapper();
+        this.messageCodec = builder.messageCodec != null
+                ? builder.messageCodec
+                : AbstractSmartMessageHandler.defaultMessageCodec(objectMapper, builder.objectMapper == null);
+        this.metrics = builder.metrics != null ? builder.metrics : SmartMessagingMetricsFactory.getDefault();
+        this.parserPool = new FhirParserPool(fhirContext, Math.max(2, builder.workerThreads));
+        int number = runtimeNumber.incrementAndGet();
+        this.ownsWorkerPool = builder.workerPool == null;
+        this.workerPool = ownsWorkerPool
+                ? newPool("swm-worker-" + number, builder.workerThreads, builder.workerQueueCapacity)
+                : builder.workerPool;
+        this.listenerPool = builder.listenersOnWorkers
+                ? newPool("swm-listener-" + number, builder.workerThreads, builder.workerQueueCapacity)
+                : null;
+        this.handlerFactory = builder.handlerFactory;
+    }
+
+    /**
+     * @param fhirContext    the FhirContext for the target FHIR version, shared by all sessions
+     * @param handlerFactory creates a handler using this runtime, e.g. {@code SmartMessageHandler::new}
+     */
+    public static <H extends AbstractSmartMessageHandler> Builder<H> builder(
+            FhirContext fhirContext, Function<SmartMessagingRuntime<H>, H> handlerFactory) {
+        return new Builder<>(fhirContext, handlerFactory);
+    }
+
+    // ========== Sessions ==========
+
+    /**
+     * Return the handler of the given session, creating it on first use.
+     *
+     * @throws IllegalStateException if the runtime is closed
+     */
+    public H openSession(String sessionId) {
+        Objects.requireNonNull(sessionId, "sessionId");
+        if (closed) {
+            throw new IllegalStateException("SmartMessagingRuntime is closed");
+        }
+        return sessions.computeIfAbsent(sessionId, id -> {
+            logger.debug("Opening session {}", id);
+            H handler = handlerFactory.apply(this);
+            if (listenerPool != null) {
+                handler.setListenerExecutor(listenerPool);
+            }
+            return handler;
+        });
+    }
+
+    /**
+     * The handler of the given session, or null if it is not open.
+     */
+    public H getSession(String sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    /**
+     * Release the state of a session and remove it. Its pending requests fail with a
+     * {@link CancellationException} (see
+     * {@link AbstractSmartMessageHandler#resetSession()}) before its listeners are removed.
+     *
+     * @return the removed handler, or null if the session was not open
+     */
+    public H closeSession(String sessionId) {
+        H handler = sessions.get(sessionId);
+        if (handler == null) {
+            return null;
+        }
+        logger.debug("Closing session {}", sessionId);
+        handler.resetSession();
+        handler.removeAllListeners();
+        return sessions.remove(sessionId, handler) ? handler : null;
+    }
+
+    /**
+     * Close the session of the given handler, for owners that do not keep its session ID.
+     *
+     * @return whether the handler was an open session of this runtime
+     * @see #closeSession(String)
+     */
+    public boolean closeSession(AbstractSmartMessageHandler handler) {
+        for (Map.Entry<String, H> session : sessions.entrySet()) {
+            if (session.getValue() == handler) {
+                return closeSession(session.getKey()) != null;
+            }
+        }
+        return false;
+    }
+
+    public Set<String> getSessionIds() {
+        return Collections.unmodifiableSet(new HashSet<>(sessions.keySet()));
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    // ========== Shared resources ==========
+
+    public FhirContext getFhirContext() {
+        return fhirContext;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
+    public SmartMessageCodec getMessageCodec() {
+        return messageCodec;
+    }
+
+    public SmartMessagingMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ExecutorService getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * The pool delivering listener events of every session, or null unless
+     * {@link Builder#listenersOnWorkers(boolean)} is set.
+     */
+    public ExecutorService getListenerPool() {
+        return listenerPool;
+    }
+
+    /**
+     * JSON parsers shared by all sessions.
+     */
+    FhirParserPool getParserPool() {
+        return parserPool;
+    }
+
+    /**
+     * An executor that runs its tasks one at a time, in order, on the worker pool. Browser
+     * adapters use one per session to handle incoming messages instead of a thread of their own.
+     * While the pool is saturated, the tasks wait in the session's own queue.
+     */
+    public Executor newSessionExecutor() {
+        SerialQueue queue = new SerialQueue();
+        return task -> queue.execute(workerPool, task);
+    }
+
+    /**
+     * Close all sessions and shut down the listener pool and the worker pool, unless the worker
+     * pool was provided by the caller.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (String sessionId : getSessionIds()) {
+            closeSession(sessionId);
+        }
+        if (listenerPool != null) {
+            listenerPool.shutdown();
+        }
+        if (ownsWorkerPool) {
+            workerPool.shutdown();
+        }
+    }
+
+    private static ExecutorService newPool(String name, int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        // Idle runtimes hold no threads
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public static final class Builder<H extends AbstractSmartMessageHandler> {
+        private final FhirContext fhirContext;
+        private final Function<SmartMessagingRuntime<H>, H> handlerFactory;
+        private ObjectMapper objectMapper;
+        private SmartMessageCodec messageCodec;
+        private SmartMessagingMetrics metrics;
+        private ExecutorService workerPool;
+        private int workerThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        private int workerQueueCapacity = 1024;
+        private boolean listenersOnWorkers;
+
+        private Builder(FhirContext fhirContext, Function<SmartMessagingRuntime<H>, H> handlerFactory) {
+            this.fhirContext = Objects.requireNonNull(fhirContext, "fhirContext");
+            this.handlerFactory = Objects.requireNonNull(handlerFactory, "handlerFactory");
+        }
+
+        /**
+         * Set the ObjectMapper shared by all sessions, or null for the default.
+         */
+        public Builder<H> objectMapper(ObjectMapper objectMapper) {
+            this.objectMapper = objectMapper;
+            return this;
+        }
+
+        /**
+         * Set the codec for message JSON shared by all sessions, or null for the default.
+         *
+         * @see AbstractSmartMessageHandler#setMessageCodec(SmartMessageCodec)
+         */
+        public Builder<H> messageCodec(SmartMessageCodec messageCodec) {
+            this.messageCodec = messageCodec;
+            return this;
+        }
+
+        /**
+         * Set the metrics shared by all sessions, or null for
+         * {@link SmartMessagingMetricsFactory#getDefault()}.
+         */
+        public Builder<H> metrics(SmartMessagingMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Set the number of worker threads (default: the number of processors, at least 2).
+         */
+        public Builder<H> workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of queued worker tasks (default: 1024). When the queue is full,
+         * new tasks are rejected, never run on the submitting thread, which may be the browser's
+         * JavaScript callback thread. Session executors and listener queues keep their tasks
+         * queued per session and retry.
+         */
+        public Builder<H> workerQueueCapacity(int workerQueueCapacity) {
+            this.workerQueueCapacity = workerQueueCapacity;
+            return this;
+        }
+
+        /**
+         * Use an existing executor as the worker pool. It is not shut down by {@link #close()}.
+         */
+        public Builder<H> workerPool(ExecutorService workerPool) {
+            this.workerPool = workerPool;
+            return this;
+        }
+
+        /**
+         * Deliver listener events of every session on a pool of the runtime
+         * (see {@link AbstractSmartMessageHandler#setListenerExecutor(Executor)}). Off by default.
+         * <p>
+         * The listener pool has as many threads and as long a queue as the worker pool, but is
+         * separate from it: a worker handling a message waits when a listener has 1024 events
+         * queued, and that listener must be able to catch up on threads the waiting workers do
+         * not hold.
+         */
+        public Builder<H> listenersOnWorkers(boolean listenersOnWorkers) {
+            this.listenersOnWorkers = listenersOnWorkers;
+            return this;
+        }
+
+        public SmartMessagingRuntime<H> build() {
+            if (workerPool == null && (workerThreads < 1 || workerQueueCapacity < 1)) {
+                throw new IllegalArgumentException("workerThreads and workerQueueCapacity must be at least 1");
+            }
+            return new SmartMessagingRuntime<>(this);
+        }
+    }
+}
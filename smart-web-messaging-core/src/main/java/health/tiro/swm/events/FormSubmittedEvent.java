@@ -1,28 +1,108 @@
 package health.tiro.swm.events;
 
+import health.tiro.swm.message.JsonSlice;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import java.util.EventObject;
+import java.util.function.Function;
 
 /**
  * Event fired when a form is submitted with validation outcome.
+ * <p>
+ * Events created by the handler keep the submitted JSON and only parse it into FHIR models on
+ * the first call to {@link #getResponse()} or {@link #getOutcome()}; the parsed resource is
+ * then shared by all listeners. Listeners that only store the submission can use
+ * {@link #getResponseJson()} and skip parsing altogether.
  */
 public class FormSubmittedEvent extends EventObject {
 
-    private final IBaseResource response;
-    private final IBaseResource outcome;
+    private final LazyResource response;
+    private final LazyResource outcome;
 
     public FormSubmittedEvent(Object source, IBaseResource response, IBaseResource outcome) {
         super(source);
-        this.response = response;
-        this.outcome = outcome;
+        this.response = new LazyResource(response);
+        this.outcome = new LazyResource(outcome);
     }
 
+    /**
+     * Creates an event that parses the given JSON on demand.
+     *
+     * @param responseJson the QuestionnaireResponse JSON
+     * @param outcomeJson  the OperationOutcome JSON, or null
+     * @param parser       parses a JSON value into a FHIR resource
+     */
+    public FormSubmittedEvent(Object source, JsonSlice responseJson, JsonSlice outcomeJson,
+                              Function<JsonSlice, IBaseResource> parser) {
+        super(source);
+        this.response = new LazyResource(responseJson, parser);
+        this.outcome = new LazyResource(outcomeJson, parser);
+    }
+
+    /**
+     * The submitted QuestionnaireResponse, parsed on first call.
+     *
+     * @throws ca.uhn.fhir.parser.DataFormatException if the JSON is not a valid FHIR resource
+     */
     public IBaseResource getResponse() {
-        return response;
+        return response.get();
     }
 
+    /**
+     * The OperationOutcome, parsed on first call, or null if none was submitted.
+     */
     public IBaseResource getOutcome() {
-        return outcome;
+        return outcome.get();
+    }
+
+    /**
+     * The submitted QuestionnaireResponse as JSON, without parsing it.
+     * Returns null if the event was created from an already parsed resource.
+     */
+    public String getResponseJson() {
+        return response.json();
+    }
+
+    /**
+     * The OperationOutcome as JSON, or null if none was submitted or the event was
+     * created from an already parsed resource.
+     */
+    public String getOutcomeJson() {
+        return outcome.json();
+    }
+
+    private static final class LazyResource {
+        private final JsonSlice json;
+        private final Function<JsonSlice, IBaseResource> parser;
+        private volatile IBaseResource resource;
+
+        LazyResource(IBaseResource resource) {
+            this.json = null;
+            this.parser = null;
+            this.resource = resource;
+        }
+
+        LazyResource(JsonSlice json, Function<JsonSlice, IBaseResource> parser) {
+            this.json = json;
+            this.parser = parser;
+        }
+
+        IBaseResource get() {
+            IBaseResource result = resource;
+            if (result == null && json != null) {
+                synchronized (this) {
+                    result = resource;
+                    if (result == null) {
+                        result = parser.apply(json);
+                        resource = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        String json() {
+            return json != null ? json.toString() : null;
+        }
     }
 }
@@ -0,0 +1,79 @@
+package health.tiro.swm.events;
+
+import health.tiro.swm.message.JsonSlice;
+
+import java.nio.ByteBuffer;
+import java.util.EventObject;
+
+/**
+ * A form submission as UTF-8 encoded JSON, see {@link RawSmartMessageListener}.
+ * <p>
+ * The bytes are encoded directly from the received message text on first access and shared
+ * by all raw listeners; nothing is parsed into FHIR models.
+ */
+public class RawFormSubmittedEvent extends EventObject {
+
+    private final String messageId;
+    private final JsonSlice response;
+    private final JsonSlice outcome;
+    private volatile byte[] responseUtf8;
+    private volatile byte[] outcomeUtf8;
+
+    public RawFormSubmittedEvent(Object source, String messageId, JsonSlice response, JsonSlice outcome) {
+        super(source);
+        this.messageId = messageId;
+        this.response = response;
+        this.outcome = outcome;
+    }
+
+    /**
+     * The messageId of the {@code form.submitted} request.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * The QuestionnaireResponse as a read-only UTF-8 buffer.
+     */
+    public ByteBuffer getResponse() {
+        return ByteBuffer.wrap(getResponseBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * The QuestionnaireResponse as UTF-8 bytes. The array is shared with other listeners
+     * and must not be modified.
+     */
+    public byte[] getResponseBytes() {
+        byte[] result = responseUtf8;
+        if (result == null) {
+            result = response.toUtf8();
+            responseUtf8 = result;
+        }
+        return result;
+    }
+
+    /**
+     * The OperationOutcome as a read-only UTF-8 buffer, or null if none was submitted.
+     */
+    public ByteBuffer getOutcome() {
+        byte[] bytes = getOutcomeBytes();
+        return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * The OperationOutcome as UTF-8 bytes, or null if none was submitted. The array is shared
+     * with other listeners and must not be modified.
+     */
+    public byte[] getOutcomeBytes() {
+        if (outcome == null) {
+            return null;
+        }
+        byte[] result = outcomeUtf8;
+        if (result == null) {
+            result = outcome.toUtf8();
+            outcomeUtf8 = result;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,16 @@
+package health.tiro.swm.events;
+
+/**
+ * Listener for form submissions as raw UTF-8 JSON, for applications that forward the
+ * submission (to a document store, a message queue, ...) and never need FHIR models.
+ * Registered with {@code AbstractSmartMessageHandler.addRawListener}, alongside the
+ * regular {@link SmartMessageListener}s.
+ */
+@FunctionalInterface
+public interface RawSmartMessageListener {
+
+    /**
+     * Called when a form is submitted.
+     */
+    void onFormSubmitted(RawFormSubmittedEvent event);
+}
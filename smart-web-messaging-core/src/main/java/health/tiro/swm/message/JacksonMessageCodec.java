@@ -0,0 +1,95 @@
+package health.tiro.swm.message;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import health.tiro.swm.message.payload.ErrorResponse;
+import health.tiro.swm.message.payload.RequestPayload;
+import health.tiro.swm.message.payload.ResponsePayload;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link SmartMessageCodec} on top of an {@link ObjectMapper}. Readers are built once, and
+ * writers once per payload class, so no per-call configuration lookup remains.
+ */
+final class JacksonMessageCodec implements SmartMessageCodec {
+
+    private final ObjectMapper objectMapper;
+    private final ObjectReader treeReader;
+    private final ObjectReader responsePayloadReader;
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private final boolean envelopeWriters;
+
+    JacksonMessageCodec(ObjectMapper objectMapper, boolean envelopeWriters) {
+        this.objectMapper = objectMapper;
+        this.treeReader = objectMapper.readerFor(JsonNode.class);
+        this.responsePayloadReader = objectMapper.readerFor(ResponsePayload.class);
+        this.envelopeWriters = envelopeWriters;
+    }
+
+    @Override
+    public JsonFactory getFactory() {
+        return objectMapper.getFactory();
+    }
+
+    @Override
+    public JsonNode readTree(Reader reader) throws IOException {
+        return treeReader.readValue(reader);
+    }
+
+    @Override
+    public ResponsePayload readResponsePayload(Reader reader) throws IOException {
+        return responsePayloadReader.readValue(reader);
+    }
+
+    @Override
+    public void writePayload(JsonGenerator gen, Object payload) throws IOException {
+        if (payload == null) {
+            gen.writeNull();
+            return;
+        }
+        Class<?> type = payload.getClass();
+        if (envelopeWriters) {
+            if (type == ErrorResponse.class) {
+                ErrorResponse error = (ErrorResponse) payload;
+                gen.writeStartObject();
+                gen.writeStringField("errorMessage", error.getErrorMessage());
+                gen.writeStringField("errorType", error.getErrorType());
+                writeExtraFields(gen, error.getExtraFields());
+                gen.writeEndObject();
+                return;
+            }
+            if (type == ResponsePayload.class) {
+                gen.writeStartObject();
+                writeExtraFields(gen, ((ResponsePayload) payload).getExtraFields());
+                gen.writeEndObject();
+                return;
+            }
+            if (type == RequestPayload.class) {
+                gen.writeStartObject();
+                writeExtraFields(gen, ((RequestPayload) payload).getExtraFields());
+                gen.writeEndObject();
+                return;
+            }
+        }
+        writers.computeIfAbsent(type, objectMapper::writerFor).writeValue(gen, payload);
+    }
+
+    private void writeExtraFields(JsonGenerator gen, Map<String, JsonNode> extraFields) throws IOException {
+        for (Map.Entry<String, JsonNode> field : extraFields.entrySet()) {
+            gen.writeFieldName(field.getKey());
+            if (field.getValue() == null) {
+                gen.writeNull();
+            } else {
+                objectMapper.writeTree(gen, field.getValue());
+            }
+        }
+    }
+}
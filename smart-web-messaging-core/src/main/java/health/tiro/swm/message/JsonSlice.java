@@ -0,0 +1,145 @@
+package health.tiro.swm.message;
+
+import java.io.Reader;
+
+/**
+ * A JSON value located inside a larger message text.
+ * Holds only the bounds of the value; the text is copied out lazily by {@link #toString()}.
+ */
+public final class JsonSlice {
+
+    private final String source;
+    private final int start;
+    private final int end;
+    private volatile String text;
+
+    JsonSlice(String source, int start, int end) {
+        if (start < 0 || end < start || end > source.length()) {
+            throw new IndexOutOfBoundsException("Invalid slice [" + start + ", " + end + ") of " + source.length());
+        }
+        this.source = source;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Number of characters in this slice.
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * Opens a reader over the slice without copying the underlying text.
+     */
+    public Reader openReader() {
+        return new SliceReader(source, start, end);
+    }
+
+    /**
+     * Encodes the slice as UTF-8 straight from the message text, without creating a substring.
+     * Unpaired surrogates are encoded as {@code '?'}, as {@link String#getBytes} does.
+     */
+    public byte[] toUtf8() {
+        byte[] bytes = new byte[utf8Length()];
+        int n = 0;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < 0x80) {
+                bytes[n++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[n++] = (byte) (0xC0 | (c >> 6));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(source.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, source.charAt(++i));
+                bytes[n++] = (byte) (0xF0 | (cp >> 18));
+                bytes[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[n++] = (byte) '?';
+            } else {
+                bytes[n++] = (byte) (0xE0 | (c >> 12));
+                bytes[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    private int utf8Length() {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(source.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the JSON text of this slice. The substring is created on first call and reused.
+     */
+    @Override
+    public String toString() {
+        String result = text;
+        if (result == null) {
+            result = source.substring(start, end);
+            text = result;
+        }
+        return result;
+    }
+
+    private static final class SliceReader extends Reader {
+
+        private final String source;
+        private final int end;
+        private int pos;
+
+        SliceReader(String source, int start, int end) {
+            this.source = source;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            return pos < end ? source.charAt(pos++) : -1;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int count = Math.min(length, end - pos);
+            source.getChars(pos, pos + count, buffer, offset);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long count = Math.min(Math.max(n, 0), end - pos);
+            pos += (int) count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package health.tiro.swm.message;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Thrown when an inbound message cannot be decoded.
+ * Carries the {@code messageId} if it was read before decoding failed, so an error
+ * response can still be correlated without rescanning the message.
+ */
+public class MalformedMessageException extends JsonProcessingException {
+
+    private final String messageId;
+
+    public MalformedMessageException(String messageId, JsonProcessingException cause) {
+        super(cause.getOriginalMessage(), cause.getLocation(), cause);
+        this.messageId = messageId;
+    }
+
+    public MalformedMessageException(String messageId, String message, Throwable cause) {
+        super(message, cause);
+        this.messageId = messageId;
+    }
+
+    /**
+     * The messageId read before decoding failed, or null if it was not reached.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+}
@@ -0,0 +1,44 @@
+package health.tiro.swm.message;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the {@code messageId} of outbound requests and responses.
+ * <p>
+ * SMART Web Messaging only requires ids to be unique within a messaging session. The default,
+ * {@link #randomUuid()}, keeps the UUID format but draws from {@link ThreadLocalRandom}, so it
+ * never contends or blocks on {@link java.security.SecureRandom} the way
+ * {@link UUID#randomUUID()} can on entropy-starved hosts.
+ */
+@FunctionalInterface
+public interface MessageIdGenerator {
+
+    String nextId();
+
+    /**
+     * Random version 4 UUIDs from {@link ThreadLocalRandom}. Not suitable where ids must be unguessable.
+     */
+    static MessageIdGenerator randomUuid() {
+        return ThreadLocalRandomUuidGenerator.INSTANCE;
+    }
+
+    /**
+     * Version 4 UUIDs from {@link UUID#randomUUID()}, backed by {@link java.security.SecureRandom}.
+     */
+    static MessageIdGenerator secureRandomUuid() {
+        return () -> UUID.randomUUID().toString();
+    }
+
+    /**
+     * A random prefix chosen once per generator, followed by an increasing counter,
+     * e.g. {@code 3k9x0q7c1d2f-1b}. Gives the shortest ids, but all threads share one counter,
+     * so under heavy concurrency {@link #randomUuid()} is faster. Ids reveal their order.
+     */
+    static MessageIdGenerator prefixedCounter() {
+        String prefix = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36) + "-";
+        AtomicLong counter = new AtomicLong();
+        return () -> prefix + Long.toString(counter.incrementAndGet(), 36);
+    }
+}
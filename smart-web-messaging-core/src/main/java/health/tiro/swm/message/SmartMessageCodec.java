@@ -0,0 +1,59 @@
+package health.tiro.swm.message;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import health.tiro.swm.message.payload.ResponsePayload;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads and writes the JSON of SMART Web Messaging messages. The handler streams envelopes and
+ * FHIR resources through the {@link JsonFactory} itself; a codec decides how payload values are
+ * bound and written.
+ * <p>
+ * The wire format stays JSON text, since that is what the browser bridge exchanges, so
+ * implementations must produce and accept standard JSON.
+ */
+public interface SmartMessageCodec {
+
+    /**
+     * The factory for the parsers and generators of whole messages.
+     */
+    JsonFactory getFactory();
+
+    /**
+     * Read a payload as a tree, e.g. for {@link SmartMessageRequest#getPayload()}.
+     */
+    JsonNode readTree(Reader reader) throws IOException;
+
+    /**
+     * Bind the payload of a response message.
+     */
+    ResponsePayload readResponsePayload(Reader reader) throws IOException;
+
+    /**
+     * Write a request or response payload as the next value of {@code gen}.
+     */
+    void writePayload(JsonGenerator gen, Object payload) throws IOException;
+
+    /**
+     * A codec using prebuilt readers and writers of the given mapper. Payloads are written
+     * exactly as the mapper would write them.
+     */
+    static SmartMessageCodec jackson(ObjectMapper objectMapper) {
+        return new JacksonMessageCodec(objectMapper, false);
+    }
+
+    /**
+     * A codec for a mapper with default inclusion settings. The base payload types
+     * ({@link ResponsePayload}, {@link health.tiro.swm.message.payload.ErrorResponse},
+     * {@link health.tiro.swm.message.payload.RequestPayload}) are written by hand, with the same
+     * output; other payloads use prebuilt writers of the mapper.
+     */
+    static SmartMessageCodec jacksonWithEnvelopeWriters(ObjectMapper objectMapper) {
+        return new JacksonMessageCodec(objectMapper, true);
+    }
+}
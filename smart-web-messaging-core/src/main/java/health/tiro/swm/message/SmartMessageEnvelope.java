@@ -0,0 +1,230 @@
+package health.tiro.swm.message;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import health.tiro.swm.message.payload.ResponsePayload;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Top-level fields of an inbound SMART Web Messaging message, read in a single streaming pass.
+ * <p>
+ * A message is classified as a response when it has a top-level {@code responseToMessageId}
+ * field. The payload is not bound while decoding; it is kept as a {@link JsonSlice} of the
+ * original text and only materialized when {@link #getPayload()} or {@link #toResponse()} is called.
+ * The top-level fields of an object payload are recorded as slices too, so a single field
+ * (e.g. the QuestionnaireResponse of a {@code form.submitted}) can be handed to a parser
+ * without touching the rest of the message.
+ */
+public final class SmartMessageEnvelope {
+
+    private final SmartMessageCodec codec;
+    private final String source;
+
+    private String messageId;
+    private String messagingHandle;
+    private String messageType;
+    private String responseToMessageId;
+    private boolean response;
+    private boolean additionalResponsesExpected;
+    private JsonSlice payloadSlice;
+    private Map<String, JsonSlice> payloadFields = Collections.emptyMap();
+    private volatile JsonNode payload;
+
+    private SmartMessageEnvelope(SmartMessageCodec codec, String source) {
+        this.codec = codec;
+        this.source = source;
+    }
+
+    /**
+     * Decode the envelope of a JSON message.
+     *
+     * @param codec the codec used to create the parser and to bind the payload later
+     * @param json  the raw JSON message
+     * @return the decoded envelope
+     * @throws MalformedMessageException if the message is not a well-formed JSON object
+     */
+    public static SmartMessageEnvelope decode(SmartMessageCodec codec, String json) throws MalformedMessageException {
+        SmartMessageEnvelope envelope = new SmartMessageEnvelope(codec, json);
+        try (JsonParser parser = codec.getFactory().createParser(json)) {
+            envelope.read(parser);
+        } catch (JsonProcessingException e) {
+            throw new MalformedMessageException(envelope.messageId, e);
+        } catch (IOException e) {
+            throw new MalformedMessageException(envelope.messageId, "Failed to read message", e);
+        }
+        return envelope;
+    }
+
+    private void read(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a JSON object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (name) {
+                case "messageId":
+                    messageId = readText(parser, value, name);
+                    break;
+                case "messagingHandle":
+                    messagingHandle = readText(parser, value, name);
+                    break;
+                case "messageType":
+                    messageType = readText(parser, value, name);
+                    break;
+                case "responseToMessageId":
+                    responseToMessageId = readText(parser, value, name);
+                    response = true;
+                    break;
+                case "additionalResponsesExpected":
+                    additionalResponsesExpected = value == JsonToken.VALUE_TRUE;
+                    break;
+                case "payload":
+                    payloadSlice = value == JsonToken.VALUE_NULL ? null : readPayload(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+    }
+
+    private static String readText(JsonParser parser, JsonToken value, String name) throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!value.isScalarValue()) {
+            throw new JsonParseException(parser, "Expected a scalar value for '" + name + "'");
+        }
+        return parser.getText();
+    }
+
+    private JsonSlice readPayload(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            return readSlice(parser, value);
+        }
+        int start = (int) parser.getTokenLocation().getCharOffset();
+        Map<String, JsonSlice> fields = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken fieldValue = parser.nextToken();
+            if (fieldValue != JsonToken.VALUE_NULL) {
+                fields.put(name, readSlice(parser, fieldValue));
+            } else {
+                fields.remove(name);
+            }
+        }
+        int end = (int) parser.getCurrentLocation().getCharOffset();
+        payloadFields = fields;
+        return new JsonSlice(source, start, end);
+    }
+
+    private JsonSlice readSlice(JsonParser parser, JsonToken value) throws IOException {
+        int start = (int) parser.getTokenLocation().getCharOffset();
+        if (value.isStructStart()) {
+            parser.skipChildren();
+        } else {
+            parser.finishToken();
+        }
+        int end = (int) parser.getCurrentLocation().getCharOffset();
+        return new JsonSlice(source, start, end);
+    }
+
+    // ========== Accessors ==========
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public String getMessagingHandle() {
+        return messagingHandle;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getResponseToMessageId() {
+        return responseToMessageId;
+    }
+
+    public boolean isAdditionalResponsesExpected() {
+        return additionalResponsesExpected;
+    }
+
+    /**
+     * Whether this message is a response to an earlier request.
+     */
+    public boolean isResponse() {
+        return response;
+    }
+
+    /**
+     * The original JSON message text.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * The payload as a slice of the original text, or null if absent.
+     */
+    public JsonSlice getPayloadSlice() {
+        return payloadSlice;
+    }
+
+    /**
+     * A top-level field of the payload as a slice of the original text.
+     * Returns null if the payload is not an object, or the field is absent or JSON {@code null}.
+     */
+    public JsonSlice getPayloadField(String name) {
+        return payloadFields.get(name);
+    }
+
+    /**
+     * The payload as a Jackson tree, materialized on first call. Returns null if absent.
+     */
+    public JsonNode getPayload() {
+        JsonNode result = payload;
+        if (result == null && payloadSlice != null) {
+            try (Reader reader = payloadSlice.openReader()) {
+                result = codec.readTree(reader);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to materialize payload", e);
+            }
+            payload = result;
+        }
+        return result;
+    }
+
+    // ========== Conversion ==========
+
+    /**
+     * Build a {@link SmartMessageRequest}, materializing the payload tree.
+     */
+    public SmartMessageRequest toRequest() {
+        return new SmartMessageRequest(messageId, messagingHandle, messageType, getPayload());
+    }
+
+    /**
+     * Build a {@link SmartMessageResponse}, binding the payload to a {@link ResponsePayload}.
+     */
+    public SmartMessageResponse toResponse() throws IOException {
+        ResponsePayload responsePayload = null;
+        if (payloadSlice != null) {
+            try (Reader reader = payloadSlice.openReader()) {
+                responsePayload = codec.readResponsePayload(reader);
+            }
+        }
+        return new SmartMessageResponse(messageId, responseToMessageId, additionalResponsesExpected, responsePayload);
+    }
+}
@@ -4,8 +4,6 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import health.tiro.swm.message.payload.ErrorResponse;
 import health.tiro.swm.message.payload.ResponsePayload;
 
-import java.util.UUID;
-
 public class SmartMessageResponse extends SmartMessageBase {
     
     @JsonProperty("responseToMessageId")
@@ -29,15 +27,15 @@ public class SmartMessageResponse extends SmartMessageBase {
     }
 
     public SmartMessageResponse(String responseToMessageId, boolean additionalResponsesExpected, ResponsePayload payload) {
-        this(UUID.randomUUID().toString(), responseToMessageId, additionalResponsesExpected, payload);
+        this(MessageIdGenerator.randomUuid().nextId(), responseToMessageId, additionalResponsesExpected, payload);
     }
 
     public SmartMessageResponse(String responseToMessageId, ResponsePayload payload) {
-        this(UUID.randomUUID().toString(), responseToMessageId, false, payload);
+        this(MessageIdGenerator.randomUuid().nextId(), responseToMessageId, false, payload);
     }
 
     public static SmartMessageResponse createErrorResponse(String responseToMessageId, ErrorResponse errorPayload) {
-        return new SmartMessageResponse(UUID.randomUUID().toString(), responseToMessageId, false, errorPayload);
+        return new SmartMessageResponse(MessageIdGenerator.randomUuid().nextId(), responseToMessageId, false, errorPayload);
     }
 
     public String getResponseToMessageId() {
@@ -0,0 +1,24 @@
+package health.tiro.swm.message;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Version 4 UUIDs drawn from {@link ThreadLocalRandom}, see {@link MessageIdGenerator#randomUuid()}.
+ */
+final class ThreadLocalRandomUuidGenerator implements MessageIdGenerator {
+
+    static final MessageIdGenerator INSTANCE = new ThreadLocalRandomUuidGenerator();
+
+    private ThreadLocalRandomUuidGenerator() {
+    }
+
+    @Override
+    public String nextId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // Set the version (4) and IETF variant bits, as UUID.randomUUID() does
+        long msb = (random.nextLong() & 0xFFFFFFFFFFFF0FFFL) | 0x0000000000004000L;
+        long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(msb, lsb).toString();
+    }
+}
@@ -0,0 +1,32 @@
+package health.tiro.swm.message.payload;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Payload for sdc.cancelDisplayQuestionnaire requests: drops an sdc.displayQuestionnaire
+ * the page has received but not yet rendered.
+ */
+public class SdcCancelDisplayQuestionnaire extends RequestPayload {
+
+    @JsonProperty("messageId")
+    private String messageId;
+
+    public SdcCancelDisplayQuestionnaire() {
+        super();
+    }
+
+    /**
+     * @param messageId the messageId of the display to cancel, or null for any pending display
+     */
+    public SdcCancelDisplayQuestionnaire(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+}
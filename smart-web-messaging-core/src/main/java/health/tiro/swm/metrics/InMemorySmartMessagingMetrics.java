@@ -0,0 +1,128 @@
+package health.tiro.swm.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps metrics in memory as {@link Histogram}s keyed by message type, resource type or event
+ * name, e.g. to expose them on a diagnostics page or log them periodically.
+ *
+ * <pre>{@code
+ * InMemorySmartMessagingMetrics metrics = new InMemorySmartMessagingMetrics();
+ * handler.setMetrics(metrics);
+ * // ...
+ * Histogram submitted = metrics.getInboundLatency().get("form.submitted");
+ * long p99 = submitted.getValueAtPercentile(99);
+ * }</pre>
+ */
+public class InMemorySmartMessagingMetrics implements SmartMessagingMetrics {
+
+    private final ConcurrentMap<String, Histogram> inboundLatency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> inboundBytes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> serializationLatency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> outboundBytes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> fhirParseLatency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> listenerLatency = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicLong responseListeners = new AtomicLong();
+
+    @Override
+    public void recordInbound(String messageType, long durationNanos, int messageBytes) {
+        histogram(inboundLatency, messageType).record(durationNanos);
+        histogram(inboundBytes, messageType).record(messageBytes);
+    }
+
+    @Override
+    public void recordOutbound(String messageType, long serializationNanos, int messageBytes) {
+        histogram(serializationLatency, messageType).record(serializationNanos);
+        histogram(outboundBytes, messageType).record(messageBytes);
+    }
+
+    @Override
+    public void recordFhirParse(String resourceType, long durationNanos) {
+        histogram(fhirParseLatency, resourceType).record(durationNanos);
+    }
+
+    @Override
+    public void recordListener(String eventName, long durationNanos) {
+        histogram(listenerLatency, eventName).record(durationNanos);
+    }
+
+    @Override
+    public void recordError(String messageType, String errorType) {
+        errors.computeIfAbsent(String.valueOf(errorType), k -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void responseListenersChanged(int delta) {
+        responseListeners.addAndGet(delta);
+    }
+
+    /**
+     * Inbound handling time in nanoseconds by message type.
+     */
+    public Map<String, Histogram> getInboundLatency() {
+        return Collections.unmodifiableMap(inboundLatency);
+    }
+
+    /**
+     * Inbound message sizes in bytes by message type.
+     */
+    public Map<String, Histogram> getInboundBytes() {
+        return Collections.unmodifiableMap(inboundBytes);
+    }
+
+    /**
+     * Outbound serialization time in nanoseconds by message type.
+     */
+    public Map<String, Histogram> getSerializationLatency() {
+        return Collections.unmodifiableMap(serializationLatency);
+    }
+
+    /**
+     * Outbound message sizes in bytes by message type.
+     */
+    public Map<String, Histogram> getOutboundBytes() {
+        return Collections.unmodifiableMap(outboundBytes);
+    }
+
+    /**
+     * HAPI parse time in nanoseconds by resource type.
+     */
+    public Map<String, Histogram> getFhirParseLatency() {
+        return Collections.unmodifiableMap(fhirParseLatency);
+    }
+
+    /**
+     * Listener time in nanoseconds by event name.
+     */
+    public Map<String, Histogram> getListenerLatency() {
+        return Collections.unmodifiableMap(listenerLatency);
+    }
+
+    /**
+     * Number of error responses by {@code errorType}.
+     */
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        errors.forEach((errorType, count) -> counts.put(errorType, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Number of response listeners currently waiting for an answer.
+     */
+    public long getResponseListeners() {
+        return responseListeners.get();
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String key) {
+        Histogram histogram = histograms.get(key);
+        return histogram != null ? histogram : histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+}
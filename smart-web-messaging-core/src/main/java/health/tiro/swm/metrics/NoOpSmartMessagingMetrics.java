@@ -0,0 +1,30 @@
+package health.tiro.swm.metrics;
+
+/**
+ * Metrics implementation that discards everything. Used when no metrics library is on the
+ * classpath.
+ */
+public final class NoOpSmartMessagingMetrics implements SmartMessagingMetrics {
+
+    public static final NoOpSmartMessagingMetrics INSTANCE = new NoOpSmartMessagingMetrics();
+
+    private NoOpSmartMessagingMetrics() {}
+
+    @Override
+    public void recordInbound(String messageType, long durationNanos, int messageBytes) {}
+
+    @Override
+    public void recordOutbound(String messageType, long serializationNanos, int messageBytes) {}
+
+    @Override
+    public void recordFhirParse(String resourceType, long durationNanos) {}
+
+    @Override
+    public void recordListener(String eventName, long durationNanos) {}
+
+    @Override
+    public void recordError(String messageType, String errorType) {}
+
+    @Override
+    public void responseListenersChanged(int delta) {}
+}
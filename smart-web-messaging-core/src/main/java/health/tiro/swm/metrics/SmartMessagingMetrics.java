@@ -0,0 +1,53 @@
+package health.tiro.swm.metrics;
+
+/**
+ * Receives measurements from {@link health.tiro.swm.AbstractSmartMessageHandler}: where time
+ * goes per message type, how large messages are, and which errors are answered.
+ * <p>
+ * One instance may be shared by many handlers (e.g. all sessions of a
+ * {@link health.tiro.swm.SmartMessagingRuntime}) and is called from their message threads
+ * concurrently, so implementations must be thread-safe and fast. Durations are in nanoseconds,
+ * sizes are UTF-8 bytes of the message JSON.
+ *
+ * @see SmartMessagingMetricsFactory
+ * @see InMemorySmartMessagingMetrics
+ */
+public interface SmartMessagingMetrics {
+
+    /**
+     * An inbound message was handled, from decoding to the serialized response.
+     *
+     * @param messageType the message type, {@code response} for responses to outbound requests,
+     *                    or {@code unknown} if the message could not be decoded
+     */
+    void recordInbound(String messageType, long durationNanos, int messageBytes);
+
+    /**
+     * An outbound message was serialized: a request to the page, or a response to one of its
+     * requests ({@code messageType} is then {@code response}).
+     */
+    void recordOutbound(String messageType, long serializationNanos, int messageBytes);
+
+    /**
+     * HAPI parsed a FHIR resource from an inbound message.
+     */
+    void recordFhirParse(String resourceType, long durationNanos);
+
+    /**
+     * A listener handled an event, e.g. {@code formSubmitted}.
+     */
+    void recordListener(String eventName, long durationNanos);
+
+    /**
+     * An inbound message was answered with an error.
+     *
+     * @param errorType the {@code errorType} of the error response
+     */
+    void recordError(String messageType, String errorType);
+
+    /**
+     * The number of response listeners waiting for an answer changed by {@code delta}, summed
+     * over all handlers using this instance.
+     */
+    void responseListenersChanged(int delta);
+}
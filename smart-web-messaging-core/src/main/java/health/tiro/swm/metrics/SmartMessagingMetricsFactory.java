@@ -0,0 +1,59 @@
+package health.tiro.swm.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides the default {@link SmartMessagingMetrics} based on whether Micrometer is available
+ * on the classpath.
+ * <p>
+ * If {@code io.micrometer:micrometer-core} and {@code health.tiro:smart-web-messaging-micrometer}
+ * are present, handlers report to Micrometer's global registry. Otherwise they use a no-op
+ * implementation with zero overhead.
+ */
+public final class SmartMessagingMetricsFactory {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmartMessagingMetricsFactory.class);
+    private static final String MICROMETER_METRICS = "health.tiro.swm.metrics.micrometer.MicrometerSmartMessagingMetrics";
+
+    private static volatile SmartMessagingMetrics defaultMetrics;
+
+    private SmartMessagingMetricsFactory() {}
+
+    /**
+     * The metrics shared by all handlers without metrics of their own, created on first use.
+     */
+    public static SmartMessagingMetrics getDefault() {
+        SmartMessagingMetrics metrics = defaultMetrics;
+        if (metrics == null) {
+            synchronized (SmartMessagingMetricsFactory.class) {
+                metrics = defaultMetrics;
+                if (metrics == null) {
+                    metrics = create();
+                    defaultMetrics = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    private static SmartMessagingMetrics create() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics");
+        } catch (ClassNotFoundException e) {
+            logger.debug("Micrometer not on classpath, metrics disabled");
+            return NoOpSmartMessagingMetrics.INSTANCE;
+        }
+        try {
+            SmartMessagingMetrics metrics = (SmartMessagingMetrics) Class.forName(MICROMETER_METRICS)
+                .getDeclaredConstructor().newInstance();
+            logger.info("Micrometer detected on classpath, enabling SMART Web Messaging metrics");
+            return metrics;
+        } catch (ClassNotFoundException e) {
+            logger.debug("Micrometer on classpath without smart-web-messaging-micrometer, metrics disabled");
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.warn("Failed to create Micrometer metrics, metrics disabled", e);
+        }
+        return NoOpSmartMessagingMetrics.INSTANCE;
+    }
+}
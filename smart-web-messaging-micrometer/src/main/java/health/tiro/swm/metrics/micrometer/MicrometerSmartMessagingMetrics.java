@@ -0,0 +1,163 @@
+package health.tiro.swm.metrics.micrometer;
+
+import health.tiro.swm.metrics.SmartMessagingMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * {@link SmartMessagingMetrics} reporting to a Micrometer {@link MeterRegistry}. Created
+ * automatically for {@link Metrics#globalRegistry} by
+ * {@link health.tiro.swm.metrics.SmartMessagingMetricsFactory} when this module is on the
+ * classpath; create one for another registry and pass it to {@code handler.setMetrics(...)}.
+ * <p>
+ * Meters:
+ * <ul>
+ *   <li>{@code swm.inbound} (timer) and {@code swm.inbound.size} (bytes), tagged {@code messageType}</li>
+ *   <li>{@code swm.serialization} (timer) and {@code swm.outbound.size} (bytes), tagged {@code messageType}</li>
+ *   <li>{@code swm.fhir.parse} (timer), tagged {@code resourceType}</li>
+ *   <li>{@code swm.listener} (timer), tagged {@code event}</li>
+ *   <li>{@code swm.errors} (counter), tagged {@code messageType} and {@code errorType}</li>
+ *   <li>{@code swm.response.listeners} (gauge)</li>
+ * </ul>
+ * The {@code messageType} tag comes from the page, so only the standard SMART Web Messaging and
+ * SDC types, {@code response}, {@code unknown} and the types passed to the constructor are
+ * reported by name; all others are tagged {@code other}, which keeps the number of meters bounded.
+ */
+public class MicrometerSmartMessagingMetrics implements SmartMessagingMetrics {
+
+    /**
+     * Message types reported under their own name.
+     */
+    static final Set<String> STANDARD_MESSAGE_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "status.handshake", "ui.done", "ui.launchActivity", "ui.form.requestSubmit", "ui.form.persist",
+        "form.submitted", "sdc.configure", "sdc.configureContext", "sdc.displayQuestionnaire",
+        "sdc.cancelDisplayQuestionnaire", "scratchpad.create", "scratchpad.read", "scratchpad.update",
+        "scratchpad.delete", "fhir.http", "response", "unknown")));
+
+    static final String OTHER_MESSAGE_TYPE = "other";
+
+    private final MeterRegistry registry;
+    private final Set<String> messageTypes;
+    private final ConcurrentMap<String, Timer> inboundTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DistributionSummary> inboundSizes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> serializationTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DistributionSummary> outboundSizes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> parseTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> listenerTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> errorCounters = new ConcurrentHashMap<>();
+    private final AtomicLong responseListeners = new AtomicLong();
+
+    public MicrometerSmartMessagingMetrics() {
+        this(Metrics.globalRegistry);
+    }
+
+    public MicrometerSmartMessagingMetrics(MeterRegistry registry) {
+        this(registry, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param messageTypes additional message types to report by name, e.g. those handled with
+     *                     a {@code MessageTypeHandler}
+     */
+    public MicrometerSmartMessagingMetrics(MeterRegistry registry, Collection<String> messageTypes) {
+        this.registry = registry;
+        Set<String> known = new HashSet<>(STANDARD_MESSAGE_TYPES);
+        known.addAll(messageTypes);
+        this.messageTypes = Collections.unmodifiableSet(known);
+        Gauge.builder("swm.response.listeners", responseListeners, AtomicLong::get)
+            .description("Response listeners waiting for an answer")
+            .register(registry);
+    }
+
+    @Override
+    public void recordInbound(String messageType, long durationNanos, int messageBytes) {
+        messageType = tagValue(messageType);
+        meter(inboundTimers, messageType, type -> Timer.builder("swm.inbound")
+            .description("Inbound message handling time")
+            .tag("messageType", type)
+            .register(registry)).record(durationNanos, TimeUnit.NANOSECONDS);
+        meter(inboundSizes, messageType, type -> DistributionSummary.builder("swm.inbound.size")
+            .description("Inbound message size")
+            .baseUnit("bytes")
+            .tag("messageType", type)
+            .register(registry)).record(messageBytes);
+    }
+
+    @Override
+    public void recordOutbound(String messageType, long serializationNanos, int messageBytes) {
+        messageType = tagValue(messageType);
+        meter(serializationTimers, messageType, type -> Timer.builder("swm.serialization")
+            .description("Outbound message serialization time")
+            .tag("messageType", type)
+            .register(registry)).record(serializationNanos, TimeUnit.NANOSECONDS);
+        meter(outboundSizes, messageType, type -> DistributionSummary.builder("swm.outbound.size")
+            .description("Outbound message size")
+            .baseUnit("bytes")
+            .tag("messageType", type)
+            .register(registry)).record(messageBytes);
+    }
+
+    @Override
+    public void recordFhirParse(String resourceType, long durationNanos) {
+        meter(parseTimers, resourceType, type -> Timer.builder("swm.fhir.parse")
+            .description("FHIR resource parse time")
+            .tag("resourceType", type)
+            .register(registry)).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordListener(String eventName, long durationNanos) {
+        meter(listenerTimers, eventName, event -> Timer.builder("swm.listener")
+            .description("Listener execution time")
+            .tag("event", event)
+            .register(registry)).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordError(String messageType, String errorType) {
+        String tag = tagValue(messageType);
+        String type = String.valueOf(errorType);
+        meter(errorCounters, tag + '\u0000' + type, key -> Counter.builder("swm.errors")
+            .description("Inbound messages answered with an error")
+            .tag("messageType", tag)
+            .tag("errorType", type)
+            .register(registry)).increment();
+    }
+
+    @Override
+    public void responseListenersChanged(int delta) {
+        responseListeners.addAndGet(delta);
+    }
+
+    /**
+     * The {@code messageType} tag of a message type: the type itself if it is known, otherwise
+     * {@code other}.
+     */
+    private String tagValue(String messageType) {
+        return messageType != null && messageTypes.contains(messageType) ? messageType : OTHER_MESSAGE_TYPE;
+    }
+
+    /**
+     * The meter for {@code key}, looked up once and then kept, so recording does not go
+     * through the registry.
+     */
+    private static <M> M meter(ConcurrentMap<String, M> meters, String key, Function<String, M> create) {
+        M meter = meters.get(key);
+        return meter != null ? meter : meters.computeIfAbsent(key, create);
+    }
+}
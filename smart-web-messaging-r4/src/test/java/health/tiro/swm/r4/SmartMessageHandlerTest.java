@@ -1,20 +1,51 @@
 package health.tiro.swm.r4;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import health.tiro.swm.AbstractSmartMessageHandler;
+import health.tiro.swm.ListenerExecutors;
+import health.tiro.swm.QuestionnaireCache;
+import health.tiro.swm.SmartMessagingRuntime;
 import health.tiro.swm.events.CloseApplicationEvent;
 import health.tiro.swm.events.FormSubmittedEvent;
 import health.tiro.swm.events.HandshakeReceivedEvent;
+import health.tiro.swm.events.RawFormSubmittedEvent;
 import health.tiro.swm.events.SmartMessageListener;
+import health.tiro.swm.message.SmartMessageCodec;
 import health.tiro.swm.message.SmartMessageResponse;
+import health.tiro.swm.message.payload.ErrorResponse;
 import health.tiro.swm.message.payload.LaunchContext;
+import health.tiro.swm.message.payload.RequestPayload;
+import health.tiro.swm.message.payload.ResponsePayload;
+import health.tiro.swm.message.payload.SdcConfigure;
+import health.tiro.swm.metrics.InMemorySmartMessagingMetrics;
 import org.hl7.fhir.r4.model.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -91,6 +122,87 @@ class SmartMessageHandlerTest {
         assertEquals(QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED, qr.getStatus());
     }
 
+    @Test
+    void handleFormSubmittedRequestKeepsRawJsonAndParsesOnDemand() throws Exception {
+        String questionnaireResponse = "{\"resourceType\":\"QuestionnaireResponse\",\"status\":\"completed\"}";
+        String request = "{"
+                + "\"messageId\": \"msg-form\","
+                + "\"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"form.submitted\","
+                + "\"payload\": {\"response\": " + questionnaireResponse + "}"
+                + "}";
+
+        AtomicReference<FormSubmittedEvent> receivedEvent = new AtomicReference<>();
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onFormSubmitted(FormSubmittedEvent event) {
+                receivedEvent.set(event);
+            }
+        });
+
+        handler.handleMessage(request);
+
+        FormSubmittedEvent event = receivedEvent.get();
+        assertEquals(questionnaireResponse, event.getResponseJson());
+        assertNull(event.getOutcomeJson());
+        assertNull(event.getOutcome());
+        QuestionnaireResponse qr = (QuestionnaireResponse) event.getResponse();
+        assertEquals(QuestionnaireResponse.QuestionnaireResponseStatus.COMPLETED, qr.getStatus());
+        assertSame(qr, event.getResponse());
+    }
+
+    @Test
+    void handleFormSubmittedRequestNotifiesRawListener() throws Exception {
+        String questionnaireResponse = "{\"resourceType\":\"QuestionnaireResponse\",\"status\":\"completed\","
+                + "\"text\":{\"status\":\"generated\",\"div\":\"<div>Caf\u00e9 \ud83d\ude00</div>\"}}";
+        String request = "{"
+                + "\"messageId\": \"msg-form\","
+                + "\"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"form.submitted\","
+                + "\"payload\": {\"response\": " + questionnaireResponse + "}"
+                + "}";
+
+        AtomicReference<RawFormSubmittedEvent> receivedEvent = new AtomicReference<>();
+        handler.addRawListener(receivedEvent::set);
+
+        String response = handler.handleMessage(request);
+
+        assertEquals("msg-form", objectMapper.readTree(response).get("responseToMessageId").asText());
+        RawFormSubmittedEvent event = receivedEvent.get();
+        assertEquals("msg-form", event.getMessageId());
+        assertArrayEquals(questionnaireResponse.getBytes(StandardCharsets.UTF_8), event.getResponseBytes());
+        assertEquals(event.getResponseBytes().length, event.getResponse().remaining());
+        assertNull(event.getOutcome());
+    }
+
+    @Test
+    void handleFormSubmittedRequestParsesOutcome() throws Exception {
+        String request = "{"
+                + "\"messageId\": \"msg-form-outcome\","
+                + "\"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"form.submitted\","
+                + "\"payload\": {"
+                + "  \"outcome\": {\"resourceType\": \"OperationOutcome\", \"issue\": [{\"severity\": \"information\", \"code\": \"informational\"}]},"
+                + "  \"response\": {\"resourceType\": \"QuestionnaireResponse\", \"status\": \"completed\"}"
+                + "}"
+                + "}";
+
+        AtomicReference<FormSubmittedEvent> receivedEvent = new AtomicReference<>();
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onFormSubmitted(FormSubmittedEvent event) {
+                receivedEvent.set(event);
+            }
+        });
+
+        handler.handleMessage(request);
+
+        assertNotNull(receivedEvent.get());
+        assertTrue(receivedEvent.get().getResponse() instanceof QuestionnaireResponse);
+        OperationOutcome outcome = (OperationOutcome) receivedEvent.get().getOutcome();
+        assertEquals(1, outcome.getIssue().size());
+    }
+
     @Test
     void handleUiDoneRequest() throws Exception {
         String request = "{"
@@ -116,6 +228,119 @@ class SmartMessageHandlerTest {
         assertNotNull(receivedEvent.get());
     }
 
+    @Test
+    void handleUiDoneRequestWithListenerExecutor() throws Exception {
+        ExecutorService executor = ListenerExecutors.newBoundedPool(2, 16);
+        handler.setListenerExecutor(executor);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch delivered = new CountDownLatch(3);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onCloseApplication(CloseApplicationEvent event) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add("close");
+                delivered.countDown();
+            }
+
+            @Override
+            public void onHandshakeReceived(HandshakeReceivedEvent event) {
+                order.add("handshake");
+                delivered.countDown();
+            }
+        });
+
+        // Acks come back while the listener is still blocked
+        String uiDone = handler.handleMessage("{\"messageId\": \"msg-done\", \"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"ui.done\", \"payload\": {}}");
+        String handshake = handler.handleMessage("{\"messageId\": \"msg-hs\", \"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"status.handshake\", \"payload\": {}}");
+        assertEquals("msg-done", objectMapper.readTree(uiDone).get("responseToMessageId").asText());
+        assertEquals("msg-hs", objectMapper.readTree(handshake).get("responseToMessageId").asText());
+        handler.handleMessage("{\"messageId\": \"msg-done-2\", \"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"ui.done\", \"payload\": {}}");
+        assertTrue(order.isEmpty());
+
+        release.countDown();
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("close", "handshake", "close"), order);
+        // Stats are recorded after the listener returns
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(3, handler.getListenerDispatchStats().getDelivered());
+        assertEquals(0, handler.getListenerDispatchStats().getFailed());
+        assertEquals(0, handler.getListenerDispatchStats().getPending());
+    }
+
+    @Test
+    void listenerExecutorSlowsIntakeWhenListenerFallsBehind() throws Exception {
+        ExecutorService executor = ListenerExecutors.newBoundedPool(1, 16);
+        handler.setListenerExecutor(executor);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger delivered = new AtomicInteger();
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onCloseApplication(CloseApplicationEvent event) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.incrementAndGet();
+            }
+        });
+
+        // One event is being delivered, the queue holds 1024 more, the next one has to wait
+        int messages = 1026;
+        AtomicInteger handled = new AtomicInteger();
+        Thread intake = new Thread(() -> {
+            for (int i = 0; i < messages; i++) {
+                handler.handleMessage("{\"messageId\": \"msg-" + i + "\", \"messageType\": \"ui.done\", \"payload\": {}}");
+                handled.incrementAndGet();
+            }
+        });
+        intake.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (handled.get() < messages - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(messages - 1, handled.get());
+        assertTrue(intake.isAlive());
+
+        release.countDown();
+        intake.join(5000);
+        assertEquals(messages, handled.get());
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(messages, delivered.get());
+    }
+
+    @Test
+    void messageIdGeneratorIsUsedForRequestsAndAcks() throws Exception {
+        AtomicReference<String> sentMessage = new AtomicReference<>();
+        handler.setMessageSender(msg -> {
+            sentMessage.set(msg);
+            return CompletableFuture.completedFuture(null);
+        });
+        AtomicInteger counter = new AtomicInteger();
+        handler.setMessageIdGenerator(() -> "id-" + counter.incrementAndGet());
+
+        handler.sendFormRequestSubmitAsync(null);
+        assertEquals("id-1", objectMapper.readTree(sentMessage.get()).get("messageId").asText());
+
+        String ack = handler.handleMessage("{\"messageId\": \"msg-done\", \"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"ui.done\", \"payload\": {}}");
+        assertEquals("id-2", objectMapper.readTree(ack).get("messageId").asText());
+
+        String error = handler.handleMessage("{\"messageId\": \"msg-unknown\", \"messageType\": \"unknown.type\"}");
+        assertEquals("id-3", objectMapper.readTree(error).get("messageId").asText());
+    }
+
     @Test
     void handleUnknownMessageType() throws Exception {
         String request = "{"
@@ -134,6 +359,31 @@ class SmartMessageHandlerTest {
         assertTrue(responseNode.get("payload").get("errorMessage").asText().contains("Unknown messageType"));
     }
 
+    @Test
+    void handleRegisteredMessageTypeHandler() throws Exception {
+        AtomicReference<String> received = new AtomicReference<>();
+        handler.registerMessageTypeHandler("scratchpad.read", message -> {
+            received.set(message.getPayload().get("location").asText());
+            return null;
+        });
+
+        String request = "{"
+                + "\"messageId\": \"msg-scratchpad\","
+                + "\"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"Scratchpad.READ\","
+                + "\"payload\": {\"location\": \"Observation/1\"}"
+                + "}";
+
+        JsonNode responseNode = objectMapper.readTree(handler.handleMessage(request));
+        assertEquals("msg-scratchpad", responseNode.get("responseToMessageId").asText());
+        assertNull(responseNode.get("payload").get("errorMessage"));
+        assertEquals("Observation/1", received.get());
+
+        assertNotNull(handler.unregisterMessageTypeHandler("scratchpad.read"));
+        responseNode = objectMapper.readTree(handler.handleMessage(request));
+        assertTrue(responseNode.get("payload").get("errorMessage").asText().contains("Unknown messageType"));
+    }
+
     @Test
     void handleMalformedJson() {
         String malformedJson = "{ invalid json }";
@@ -144,6 +394,424 @@ class SmartMessageHandlerTest {
         assertTrue(response.contains("errorMessage"));
     }
 
+    @Test
+    void handleMalformedJsonKeepsMessageIdReadBeforeError() throws Exception {
+        String malformedJson = "{\"messageId\": \"msg-broken\", \"payload\": { invalid }";
+
+        String response = handler.handleMessage(malformedJson);
+
+        JsonNode responseNode = objectMapper.readTree(response);
+        assertEquals("msg-broken", responseNode.get("responseToMessageId").asText());
+        assertNotNull(responseNode.get("payload").get("errorMessage"));
+    }
+
+    @Test
+    void handleResponseMessageInvokesResponseListener() throws Exception {
+        AtomicReference<SmartMessageResponse> receivedResponse = new AtomicReference<>();
+        handler.registerResponseListener("req-1", receivedResponse::set);
+
+        String response = handler.handleMessage("{"
+                + "\"messageId\": \"resp-1\","
+                + "\"responseToMessageId\": \"req-1\","
+                + "\"additionalResponsesExpected\": false,"
+                + "\"payload\": {\"errorMessage\": \"boom\", \"errorType\": \"Failure\"}"
+                + "}");
+
+        assertNull(response);
+        assertNotNull(receivedResponse.get());
+        assertEquals("resp-1", receivedResponse.get().getMessageId());
+        assertEquals("req-1", receivedResponse.get().getResponseToMessageId());
+        assertTrue(receivedResponse.get().getPayload() instanceof health.tiro.swm.message.payload.ErrorResponse);
+        assertFalse(handler.hasPendingResponseListener("req-1"));
+    }
+
+    @Test
+    void responseListenerTimesOut() throws Exception {
+        CompletableFuture<SmartMessageResponse> timedOut = new CompletableFuture<>();
+        handler.registerResponseListener("req-slow", timedOut::complete, 150, TimeUnit.MILLISECONDS);
+        assertEquals(1, handler.getResponseListenerStats().getPending());
+
+        SmartMessageResponse response = timedOut.get(5, TimeUnit.SECONDS);
+        assertEquals("req-slow", response.getResponseToMessageId());
+        assertEquals("TimeoutException",
+                ((health.tiro.swm.message.payload.ErrorResponse) response.getPayload()).getErrorType());
+        assertFalse(handler.hasPendingResponseListener("req-slow"));
+        assertEquals(0, handler.getResponseListenerStats().getPending());
+        assertEquals(1, handler.getResponseListenerStats().getExpired());
+
+        handler.handleMessage("{\"messageId\": \"resp-slow\", \"responseToMessageId\": \"req-slow\", \"payload\": {}}");
+        assertEquals(1, handler.getResponseListenerStats().getLate());
+    }
+
+    @Test
+    void slowTimedOutListenerDoesNotDelayOtherTimeouts() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch slowCalled = new CountDownLatch(1);
+        handler.registerResponseListener("req-blocking", response -> {
+            slowCalled.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        assertTrue(slowCalled.await(5, TimeUnit.SECONDS));
+
+        AtomicReference<String> callbackThread = new AtomicReference<>();
+        CompletableFuture<SmartMessageResponse> other = new CompletableFuture<>();
+        new SmartMessageHandler().registerResponseListener("req-other", response -> {
+            callbackThread.set(Thread.currentThread().getName());
+            other.complete(response);
+        }, 100, TimeUnit.MILLISECONDS);
+        try {
+            assertEquals("req-other", other.get(2, TimeUnit.SECONDS).getResponseToMessageId());
+            assertNotEquals("swm-response-timer", callbackThread.get());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    void sendRequestAsyncCompletesWithCorrelatedResponse() throws Exception {
+        List<String> sentMessages = new ArrayList<>();
+        handler.setMessageSender(msg -> {
+            sentMessages.add(msg);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        CompletableFuture<SmartMessageResponse> first = handler.sendRequestAsync("ui.form.persist", new RequestPayload());
+        CompletableFuture<SmartMessageResponse> second = handler.sendRequestAsync("ui.form.requestSubmit", new RequestPayload());
+        CompletableFuture<SmartMessageResponse> cancelled = handler.sendRequestAsync("ui.form.persist", new RequestPayload());
+        CompletableFuture<SmartMessageResponse> timedOut =
+                handler.sendRequestAsync("ui.form.persist", new RequestPayload(), 150, TimeUnit.MILLISECONDS);
+        String firstId = objectMapper.readTree(sentMessages.get(0)).get("messageId").asText();
+        String secondId = objectMapper.readTree(sentMessages.get(1)).get("messageId").asText();
+        String cancelledId = objectMapper.readTree(sentMessages.get(2)).get("messageId").asText();
+
+        // Responses may arrive in any order
+        handler.handleMessage("{\"messageId\": \"resp-2\", \"responseToMessageId\": \"" + secondId + "\", \"payload\": {}}");
+        assertTrue(second.isDone());
+        assertFalse(first.isDone());
+        handler.handleMessage("{\"messageId\": \"resp-1\", \"responseToMessageId\": \"" + firstId + "\", \"payload\": {}}");
+        assertEquals("resp-1", first.get().getMessageId());
+        assertEquals("resp-2", second.get().getMessageId());
+
+        assertTrue(cancelled.cancel(false));
+        assertFalse(handler.hasPendingResponseListener(cancelledId));
+
+        ExecutionException timeout = assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+        assertTrue(timeout.getCause() instanceof TimeoutException);
+        assertEquals(0, handler.getResponseListenerStats().getPending());
+    }
+
+    @Test
+    void sendRequestAsyncFailsWhenSessionIsReset() throws Exception {
+        handler.setMessageSender(msg -> CompletableFuture.completedFuture(null));
+
+        CompletableFuture<SmartMessageResponse> unanswered =
+                handler.sendRequestAsync("ui.form.persist", new RequestPayload(), 0, TimeUnit.MILLISECONDS);
+        CompletableFuture<SmartMessageResponse> listened = new CompletableFuture<>();
+        handler.registerResponseListener("req-reset", listened::complete);
+        assertEquals(2, handler.getResponseListenerStats().getPending());
+
+        handler.resetSession();
+
+        assertThrows(CancellationException.class, () -> unanswered.get(5, TimeUnit.SECONDS));
+        SmartMessageResponse response = listened.get(5, TimeUnit.SECONDS);
+        assertEquals("req-reset", response.getResponseToMessageId());
+        assertEquals("CancellationException",
+                ((health.tiro.swm.message.payload.ErrorResponse) response.getPayload()).getErrorType());
+        assertEquals(0, handler.getResponseListenerStats().getPending());
+        assertEquals(0, handler.getResponseListenerStats().getExpired());
+    }
+
+    @Test
+    void handleRequestWithNestedResponseToMessageIdIsTreatedAsRequest() throws Exception {
+        String request = "{"
+                + "\"messageId\": \"msg-nested\","
+                + "\"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"status.handshake\","
+                + "\"payload\": {\"responseToMessageId\": \"not-top-level\"}"
+                + "}";
+
+        AtomicReference<HandshakeReceivedEvent> receivedEvent = new AtomicReference<>();
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onHandshakeReceived(HandshakeReceivedEvent event) {
+                receivedEvent.set(event);
+            }
+        });
+
+        String response = handler.handleMessage(request);
+
+        assertNotNull(response);
+        assertEquals("msg-nested", objectMapper.readTree(response).get("responseToMessageId").asText());
+        assertNotNull(receivedEvent.get());
+        assertEquals("not-top-level", receivedEvent.get().getPayload().get("responseToMessageId").asText());
+    }
+
+    @Test
+    void runtimeSessionsShareResources() throws Exception {
+        try (SmartMessagingRuntime<SmartMessageHandler> runtime = SmartMessageHandler.runtimeBuilder()
+                .workerThreads(2)
+                .listenersOnWorkers(true)
+                .build()) {
+            SmartMessageHandler first = runtime.openSession("a");
+            SmartMessageHandler second = runtime.openSession("b");
+            assertSame(first, runtime.openSession("a"));
+            assertNotSame(first, second);
+            assertSame(runtime, first.getRuntime());
+            assertSame(runtime.getListenerPool(), second.getListenerExecutor());
+            assertNotSame(runtime.getWorkerPool(), runtime.getListenerPool());
+            assertEquals(2, runtime.getSessionCount());
+
+            // Session state stays separate
+            first.registerResponseListener("req-1", response -> { });
+            assertTrue(first.hasPendingResponseListener("req-1"));
+            assertFalse(second.hasPendingResponseListener("req-1"));
+
+            // A session executor runs its tasks in order, one at a time
+            Executor executor = runtime.newSessionExecutor();
+            List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                int n = i;
+                executor.execute(() -> {
+                    order.add(n);
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, order.get(i));
+            }
+
+            assertSame(first, runtime.closeSession("a"));
+            assertFalse(first.hasPendingResponseListener("req-1"));
+            assertNull(runtime.getSession("a"));
+            assertEquals(Collections.singleton("b"), runtime.getSessionIds());
+
+            // Owners without the session ID close it by handler; its unanswered requests fail
+            second.setMessageSender(msg -> CompletableFuture.completedFuture(null));
+            CompletableFuture<SmartMessageResponse> unanswered =
+                    second.sendRequestAsync("ui.form.persist", new RequestPayload(), 0, TimeUnit.MILLISECONDS);
+            assertTrue(runtime.closeSession(second));
+            assertFalse(runtime.closeSession(second));
+            assertThrows(CancellationException.class, () -> unanswered.get(5, TimeUnit.SECONDS));
+            assertEquals(0, runtime.getSessionCount());
+        }
+    }
+
+    @Test
+    void sessionExecutorWaitsForSaturatedWorkerPool() throws Exception {
+        try (SmartMessagingRuntime<SmartMessageHandler> runtime = SmartMessageHandler.runtimeBuilder()
+                .workerThreads(1)
+                .workerQueueCapacity(1)
+                .build()) {
+            // Occupy the only worker and fill the pool's queue
+            CountDownLatch release = new CountDownLatch(1);
+            runtime.getWorkerPool().execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            runtime.getWorkerPool().execute(() -> { });
+            assertThrows(RejectedExecutionException.class, () -> runtime.getWorkerPool().execute(() -> { }));
+
+            // Messages of a session wait in its own queue instead of running on the caller
+            Executor executor = runtime.newSessionExecutor();
+            Thread caller = Thread.currentThread();
+            List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++) {
+                executor.execute(() -> {
+                    threads.add(Thread.currentThread());
+                    done.countDown();
+                });
+            }
+            assertTrue(threads.isEmpty());
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertFalse(threads.contains(caller));
+        }
+    }
+
+    @Test
+    void workersWaitingForFullListenerQueueDoNotStarveListeners() throws Exception {
+        try (SmartMessagingRuntime<SmartMessageHandler> runtime = SmartMessageHandler.runtimeBuilder()
+                .workerThreads(1)
+                .listenersOnWorkers(true)
+                .build()) {
+            SmartMessageHandler session = runtime.openSession("a");
+            // More than the 1024 events a listener queue holds
+            int messages = 1124;
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch delivered = new CountDownLatch(messages);
+            AtomicReference<String> listenerThread = new AtomicReference<>();
+            session.addListener(new SmartMessageListener() {
+                @Override
+                public void onHandshakeReceived(HandshakeReceivedEvent event) {
+                    listenerThread.set(Thread.currentThread().getName());
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    delivered.countDown();
+                }
+            });
+
+            // The only worker fills the listener's queue and then waits for room in it
+            Executor executor = runtime.newSessionExecutor();
+            for (int i = 0; i < messages; i++) {
+                String request = "{\"messageId\": \"msg-" + i + "\", \"messagingHandle\": \"smart-web-messaging\","
+                        + " \"messageType\": \"status.handshake\", \"payload\": {}}";
+                executor.execute(() -> session.handleMessage(request));
+            }
+            Thread.sleep(200);
+            release.countDown();
+
+            assertTrue(delivered.await(10, TimeUnit.SECONDS));
+            assertTrue(listenerThread.get().startsWith("swm-listener-"));
+        }
+    }
+
+    @Test
+    void envelopeWritersMatchObjectMapper() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        SmartMessageCodec handWritten = SmartMessageCodec.jacksonWithEnvelopeWriters(mapper);
+        SmartMessageCodec generic = SmartMessageCodec.jackson(mapper);
+
+        ErrorResponse error = new ErrorResponse("boom", null);
+        error.setExtraField("detail", mapper.readTree("{\"code\": 42}"));
+        ResponsePayload base = new ResponsePayload();
+        base.setExtraField("$type", mapper.getNodeFactory().textNode("base"));
+        RequestPayload request = new RequestPayload();
+        request.setExtraField("flag", mapper.getNodeFactory().booleanNode(true));
+
+        for (Object payload : Arrays.asList(error, base, request, new SdcConfigure("tx", null, null))) {
+            String expected = mapper.writeValueAsString(payload);
+            assertEquals(expected, writePayload(handWritten, payload));
+            assertEquals(expected, writePayload(generic, payload));
+        }
+
+        ResponsePayload read = handWritten.readResponsePayload(new StringReader("{\"errorMessage\": \"x\", \"errorType\": \"y\"}"));
+        assertTrue(read instanceof ErrorResponse);
+    }
+
+    @Test
+    void customMessageCodecIsUsed() throws Exception {
+        AtomicInteger payloadsWritten = new AtomicInteger();
+        SmartMessageCodec defaultCodec = handler.getMessageCodec();
+        handler.setMessageCodec(new SmartMessageCodec() {
+            @Override
+            public JsonFactory getFactory() {
+                return defaultCodec.getFactory();
+            }
+
+            @Override
+            public JsonNode readTree(Reader reader) throws IOException {
+                return defaultCodec.readTree(reader);
+            }
+
+            @Override
+            public ResponsePayload readResponsePayload(Reader reader) throws IOException {
+                return defaultCodec.readResponsePayload(reader);
+            }
+
+            @Override
+            public void writePayload(JsonGenerator gen, Object payload) throws IOException {
+                payloadsWritten.incrementAndGet();
+                defaultCodec.writePayload(gen, payload);
+            }
+        });
+
+        String response = handler.handleMessage("{\"messageId\": \"msg-1\", \"messageType\": \"ui.done\", \"payload\": {}}");
+        assertEquals("msg-1", objectMapper.readTree(response).get("responseToMessageId").asText());
+        assertEquals(1, payloadsWritten.get());
+
+        handler.setMessageCodec(null);
+        assertSame(defaultCodec, handler.getMessageCodec());
+    }
+
+    @Test
+    void inMemoryMetricsRecordMessages() throws Exception {
+        InMemorySmartMessagingMetrics metrics = new InMemorySmartMessagingMetrics();
+        handler.setMetrics(metrics);
+        assertSame(metrics, handler.getMetrics());
+        handler.addListener(new SmartMessageListener() {
+            @Override
+            public void onFormSubmitted(FormSubmittedEvent event) {
+                event.getResponse();
+            }
+        });
+
+        handler.handleMessage("{\"messageId\": \"msg-1\", \"messageType\": \"status.handshake\", \"payload\": {}}");
+        handler.handleMessage("{\"messageId\": \"msg-2\", \"messageType\": \"unknown.type\", \"payload\": {}}");
+        handler.handleMessage("{\"messageId\": \"msg-3\", \"messageType\": \"form.submitted\", \"payload\": {"
+                + "\"response\": {\"resourceType\": \"QuestionnaireResponse\", \"status\": \"completed\"}}}");
+
+        assertEquals(1, metrics.getInboundLatency().get("status.handshake").getCount());
+        assertEquals(1, metrics.getInboundLatency().get("unknown.type").getCount());
+        assertTrue(metrics.getInboundBytes().get("form.submitted").getMax() > 0);
+        assertEquals(3, metrics.getSerializationLatency().get("response").getCount());
+        assertEquals(Long.valueOf(1), metrics.getErrorCounts().get("UnknownMessageTypeException"));
+        assertEquals(1, metrics.getFhirParseLatency().get("QuestionnaireResponse").getCount());
+        assertEquals(1, metrics.getListenerLatency().get("formSubmitted").getCount());
+
+        handler.registerResponseListener("req-1", response -> { });
+        assertEquals(1, metrics.getResponseListeners());
+        handler.handleMessage("{\"messageId\": \"resp-1\", \"responseToMessageId\": \"req-1\", \"payload\": {}}");
+        assertEquals(0, metrics.getResponseListeners());
+        assertEquals(1, metrics.getInboundLatency().get("response").getCount());
+
+        handler.setMetrics(null);
+        assertNotSame(metrics, handler.getMetrics());
+    }
+
+    @Test
+    void inboundMessageObserverSeesDecodedEnvelope() {
+        List<String> observed = new ArrayList<>();
+        handler.setInboundMessageObserver(new AbstractSmartMessageHandler.InboundMessageObserver() {
+            @Override
+            public void onMessageReceived(String messageType, String messageId, String responseToMessageId,
+                                          String jsonMessage) {
+                observed.add("received " + messageType + " " + messageId + " " + responseToMessageId);
+            }
+
+            @Override
+            public void onMessageHandled(String messageType, String messageId, long durationNanos) {
+                assertTrue(durationNanos >= 0);
+                observed.add("handled " + messageType + " " + messageId);
+            }
+        });
+
+        handler.handleMessage("{\"messageId\": \"msg-1\", \"messageType\": \"status.handshake\", \"payload\": {}}");
+        handler.handleMessage("{\"messageId\": \"resp-1\", \"responseToMessageId\": \"req-1\", \"payload\": {}}");
+        handler.handleMessage("{\"messageId\": \"msg-2\", \"messageType\": \"unknown.type\", \"payload\": {}}");
+        handler.handleMessage("{\"messageId\": \"msg-3\", \"messageType\": 42");
+
+        assertEquals(Arrays.asList(
+                "received status.handshake msg-1 null", "handled status.handshake msg-1",
+                "received response resp-1 req-1", "handled response resp-1",
+                "received unknown.type msg-2 null", "handled unknown.type msg-2",
+                "received unknown msg-3 null", "handled unknown msg-3"), observed);
+
+        handler.setInboundMessageObserver(null);
+        assertNull(handler.getInboundMessageObserver());
+    }
+
+    private static String writePayload(SmartMessageCodec codec, Object payload) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator gen = codec.getFactory().createGenerator(out)) {
+            codec.writePayload(gen, payload);
+        }
+        return out.toString();
+    }
+
     @Test
     void getMessageIdFromJson() {
         String json = "{\"messageId\": \"test-id-123\", \"other\": \"value\"}";
@@ -269,6 +937,90 @@ class SmartMessageHandlerTest {
         assertNotNull(payload.get("questionnaireResponse"));
     }
 
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_encodesResourcesInPlace() throws Exception {
+        AtomicReference<String> sentMessage = new AtomicReference<>();
+        handler.setMessageSender(msg -> {
+            sentMessage.set(msg);
+            return CompletableFuture.completedFuture("OK");
+        });
+
+        Questionnaire questionnaire = new Questionnaire();
+        questionnaire.setId("test-questionnaire");
+
+        QuestionnaireResponse qr = new QuestionnaireResponse();
+        qr.setStatus(QuestionnaireResponse.QuestionnaireResponseStatus.INPROGRESS);
+
+        Patient patient = new Patient();
+        patient.setId("patient-123");
+
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter-456");
+
+        handler.sendSdcDisplayQuestionnaireAsync(questionnaire, qr, patient, encounter, (Practitioner) null, null);
+
+        JsonNode payload = objectMapper.readTree(sentMessage.get()).get("payload");
+        assertEquals("Questionnaire", payload.get("questionnaire").get("resourceType").asText());
+        assertEquals("in-progress", payload.get("questionnaireResponse").get("status").asText());
+        JsonNode launchContext = payload.get("context").get("launchContext");
+        assertEquals("patient-123", launchContext.get(0).get("contentResource").get("id").asText());
+        assertEquals("encounter", launchContext.get(1).get("name").asText());
+        assertEquals("encounter-456", launchContext.get(1).get("contentResource").get("id").asText());
+    }
+
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_questionnaireCache() throws Exception {
+        List<String> sentMessages = new ArrayList<>();
+        handler.setMessageSender(msg -> {
+            sentMessages.add(msg);
+            return CompletableFuture.completedFuture("OK");
+        });
+        QuestionnaireCache cache = new QuestionnaireCache(1);
+        handler.setQuestionnaireCache(cache);
+
+        Questionnaire cardiology = new Questionnaire();
+        cardiology.setUrl("http://example.org/Questionnaire/cardiology");
+        cardiology.setVersion("1");
+        cardiology.setTitle("Cardiology");
+
+        Questionnaire intake = new Questionnaire();
+        intake.setId("intake");
+        intake.getMeta().setVersionId("3");
+
+        Questionnaire unversioned = new Questionnaire();
+        unversioned.setTitle("Unversioned");
+
+        handler.sendSdcDisplayQuestionnaireAsync(cardiology, null, null, null, (Practitioner) null, null);
+        handler.sendSdcDisplayQuestionnaireAsync(cardiology, null, null, null, (Practitioner) null, null);
+        handler.sendSdcDisplayQuestionnaireAsync(intake, null, null, null, (Practitioner) null, null);
+        handler.sendSdcDisplayQuestionnaireAsync(unversioned, null, null, null, (Practitioner) null, null);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.size());
+
+        JsonNode first = objectMapper.readTree(sentMessages.get(0)).get("payload").get("questionnaire");
+        JsonNode second = objectMapper.readTree(sentMessages.get(1)).get("payload").get("questionnaire");
+        assertEquals(first, second);
+        assertEquals("Cardiology", second.get("title").asText());
+        assertEquals("Unversioned",
+                objectMapper.readTree(sentMessages.get(3)).get("payload").get("questionnaire").get("title").asText());
+
+        // Changed in place without a new version: served stale until invalidated
+        assertEquals(1, cache.invalidate("Questionnaire/intake"));
+        handler.sendSdcDisplayQuestionnaireAsync(cardiology, null, null, null, (Practitioner) null, null);
+        cardiology.setTitle("Cardiology (revised)");
+        handler.sendSdcDisplayQuestionnaireAsync(cardiology, null, null, null, (Practitioner) null, null);
+        assertEquals("Cardiology",
+                objectMapper.readTree(sentMessages.get(5)).get("payload").get("questionnaire").get("title").asText());
+        assertEquals(1, cache.invalidate("http://example.org/Questionnaire/cardiology"));
+        assertEquals(0, cache.size());
+        handler.sendSdcDisplayQuestionnaireAsync(cardiology, null, null, null, (Practitioner) null, null);
+        assertEquals("Cardiology (revised)",
+                objectMapper.readTree(sentMessages.get(6)).get("payload").get("questionnaire").get("title").asText());
+    }
+
     @Test
     void sendSdcDisplayQuestionnaireAsync_withReferences() throws Exception {
         AtomicReference<String> sentMessage = new AtomicReference<>();
@@ -333,6 +1085,182 @@ class SmartMessageHandlerTest {
         assertTrue(handler.hasPendingResponseListener(messageId));
     }
 
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_undeliveredMessageDropsResponseListener() throws Exception {
+        AtomicReference<String> sentMessage = new AtomicReference<>();
+        CompletableFuture<String> delivery = new CompletableFuture<>();
+        handler.setMessageSender(msg -> {
+            sentMessage.set(msg);
+            return delivery;
+        });
+
+        CompletableFuture<String> future = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/test",
+                null,
+                null,
+                null,
+                (Practitioner) null,
+                response -> { }
+        );
+        String messageId = objectMapper.readTree(sentMessage.get()).get("messageId").asText();
+        assertTrue(handler.hasPendingResponseListener(messageId));
+
+        // e.g. superseded by a newer questionnaire before the page finished loading
+        delivery.completeExceptionally(new CancellationException("superseded"));
+        assertTrue(future.isCompletedExceptionally());
+        assertFalse(handler.hasPendingResponseListener(messageId));
+    }
+
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_cancelSendsCancelDisplay() throws Exception {
+        List<String> sentMessages = new ArrayList<>();
+        handler.setMessageSender(msg -> {
+            sentMessages.add(msg);
+            return new CompletableFuture<>();
+        });
+
+        CompletableFuture<String> future = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/test",
+                null,
+                null,
+                null,
+                (Practitioner) null,
+                response -> { }
+        );
+        String messageId = objectMapper.readTree(sentMessages.get(0)).get("messageId").asText();
+
+        assertTrue(future.cancel(false));
+        assertFalse(handler.hasPendingResponseListener(messageId));
+        assertEquals(2, sentMessages.size());
+        JsonNode cancel = objectMapper.readTree(sentMessages.get(1));
+        assertEquals("sdc.cancelDisplayQuestionnaire", cancel.get("messageType").asText());
+        assertEquals(messageId, cancel.get("payload").get("messageId").asText());
+
+        // Cancelling again sends nothing
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertEquals(2, sentMessages.size());
+    }
+
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_completesWhenAcknowledged() throws Exception {
+        List<String> sentMessages = new ArrayList<>();
+        handler.setMessageSender(msg -> {
+            sentMessages.add(msg);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        CompletableFuture<String> rendered = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/rendered", null, null, null, (Practitioner) null, null);
+        CompletableFuture<String> dropped = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/dropped", null, null, null, (Practitioner) null, null);
+        String renderedId = objectMapper.readTree(sentMessages.get(0)).get("messageId").asText();
+        String droppedId = objectMapper.readTree(sentMessages.get(1)).get("messageId").asText();
+
+        // Delivered, but the page has not rendered it yet
+        assertFalse(rendered.isDone());
+
+        handler.handleMessage("{\"messageId\": \"resp-1\", \"responseToMessageId\": \"" + renderedId
+                + "\", \"payload\": {\"$type\": \"base\"}}");
+        assertEquals(renderedId, rendered.get());
+        assertFalse(rendered.cancel(false));
+
+        handler.handleMessage("{\"messageId\": \"resp-2\", \"responseToMessageId\": \"" + droppedId
+                + "\", \"payload\": {\"$type\": \"error\", \"errorMessage\": \"Superseded by a newer questionnaire\","
+                + " \"errorType\": \"CancellationException\"}}");
+        assertTrue(dropped.isCancelled());
+        assertEquals(2, sentMessages.size());
+    }
+
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_failsWhenSessionIsResetBeforeAcknowledgement() throws Exception {
+        handler.setMessageSender(msg -> CompletableFuture.completedFuture(null));
+
+        AtomicReference<SmartMessageResponse> acknowledgement = new AtomicReference<>();
+        CompletableFuture<String> display = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/test", null, null, null, (Practitioner) null,
+                acknowledgement::set);
+        assertFalse(display.isDone());
+
+        // e.g. FormFiller.navigate() before the page rendered it
+        handler.resetSession();
+
+        assertThrows(CancellationException.class, () -> display.get(5, TimeUnit.SECONDS));
+        assertEquals("CancellationException",
+                ((health.tiro.swm.message.payload.ErrorResponse) acknowledgement.get().getPayload()).getErrorType());
+        assertEquals(0, handler.getResponseListenerStats().getPending());
+    }
+
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_cancelAfterDeliverySendsCancelDisplay() throws Exception {
+        // After the handshake the sender delivers at once
+        List<String> sentMessages = new ArrayList<>();
+        handler.setMessageSender(msg -> {
+            sentMessages.add(msg);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        CompletableFuture<String> future = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/test", null, null, null, (Practitioner) null, response -> { });
+        String messageId = objectMapper.readTree(sentMessages.get(0)).get("messageId").asText();
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertFalse(handler.hasPendingResponseListener(messageId));
+        assertEquals(2, sentMessages.size());
+        JsonNode cancel = objectMapper.readTree(sentMessages.get(1));
+        assertEquals("sdc.cancelDisplayQuestionnaire", cancel.get("messageType").asText());
+        assertEquals(messageId, cancel.get("payload").get("messageId").asText());
+
+        // The page's answer to the dropped display changes nothing
+        handler.handleMessage("{\"messageId\": \"resp-1\", \"responseToMessageId\": \"" + messageId
+                + "\", \"payload\": {\"$type\": \"error\", \"errorMessage\": \"Cancelled by the host\","
+                + " \"errorType\": \"CancellationException\"}}");
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    void sendSdcDisplayQuestionnaireAsync_cancelWithdrawsDisplayQueuedBeforeHandshake() throws Exception {
+        // A sender that holds requests until the handshake, like the FormFiller's outbound queue
+        List<String> requestedTypes = new ArrayList<>();
+        Map<String, CompletableFuture<String>> held = new LinkedHashMap<>();
+        handler.setMessageSender(new AbstractSmartMessageHandler.MessageSender() {
+            @Override
+            public CompletableFuture<String> sendMessage(String jsonMessage) {
+                throw new AssertionError("Requests carry their type and ID");
+            }
+
+            @Override
+            public CompletableFuture<String> sendRequest(String messageType, String messageId, String jsonMessage) {
+                requestedTypes.add(messageType);
+                CompletableFuture<String> delivery = new CompletableFuture<>();
+                held.put(messageId, delivery);
+                return delivery;
+            }
+
+            @Override
+            public boolean withdrawRequest(String messageId) {
+                CompletableFuture<String> delivery = held.remove(messageId);
+                if (delivery == null) {
+                    return false;
+                }
+                delivery.completeExceptionally(new CancellationException("Withdrawn before delivery"));
+                return true;
+            }
+        });
+
+        CompletableFuture<String> future = handler.sendSdcDisplayQuestionnaireAsync(
+                "http://example.org/Questionnaire/test", null, null, null, (Practitioner) null, response -> { });
+        String messageId = held.keySet().iterator().next();
+
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(held.isEmpty());
+        assertFalse(handler.hasPendingResponseListener(messageId));
+        // Nothing reaches the page, so there is nothing to cancel there
+        assertEquals(Collections.singletonList("sdc.displayQuestionnaire"), requestedTypes);
+    }
+
     @Test
     void sendSdcDisplayQuestionnaireAsync_responseListenerCanBeCleared() throws Exception {
         AtomicReference<String> capturedMessageId = new AtomicReference<>();
@@ -429,8 +1357,8 @@ class SmartMessageHandlerTest {
         JsonNode messageNode = objectMapper.readTree(sentMessage.get());
         String messageId = messageNode.get("messageId").asText();
 
-        // No listener should be registered when responseHandler is null
-        assertFalse(handler.hasPendingResponseListener(messageId));
+        // The display still waits for the page's acknowledgement
+        assertTrue(handler.hasPendingResponseListener(messageId));
     }
 
     @Test
@@ -585,6 +1513,142 @@ class SmartMessageHandlerTest {
         assertTrue(names.contains("user"));
     }
 
+    @Test
+    void sendSdcConfigureContextAsync_launchContextDelta() throws Exception {
+        List<String> sentMessages = new ArrayList<>();
+        handler.setMessageSender(msg -> {
+            sentMessages.add(msg);
+            return CompletableFuture.completedFuture("OK");
+        });
+        handler.setLaunchContextDeltaEnabled(true);
+        handler.handleMessage("{\"messageId\": \"hs-1\", \"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"status.handshake\", \"payload\": {}}");
+
+        Patient patient = new Patient();
+        patient.setId("patient-123");
+        patient.getMeta().setVersionId("1");
+        Encounter encounter = new Encounter();
+        encounter.setId("encounter-456");
+        Practitioner user = new Practitioner();
+        user.setId("practitioner-789");
+
+        handler.sendSdcConfigureContextAsync(patient, encounter, user, null);
+        JsonNode first = objectMapper.readTree(sentMessages.get(0)).get("payload");
+        assertEquals(3, first.get("launchContext").size());
+        assertNull(first.get("launchContextDelta"));
+
+        // Only the encounter changed
+        encounter.setLanguage("nl-BE");
+        handler.sendSdcConfigureContextAsync(patient, encounter, user, null);
+        JsonNode second = objectMapper.readTree(sentMessages.get(1)).get("payload");
+        assertTrue(second.get("launchContextDelta").asBoolean());
+        assertEquals(1, second.get("launchContext").size());
+        assertEquals("encounter", second.get("launchContext").get(0).get("name").asText());
+        assertEquals("nl-BE", second.get("launchContext").get(0).get("contentResource").get("language").asText());
+
+        // Nothing changed
+        handler.sendSdcConfigureContextAsync(patient, encounter, user, null);
+        JsonNode third = objectMapper.readTree(sentMessages.get(2)).get("payload");
+        assertTrue(third.get("launchContextDelta").asBoolean());
+        assertNull(third.get("launchContext"));
+
+        // Removing an entry forces a full send
+        handler.sendSdcConfigureContextAsync(patient, null, user, null);
+        JsonNode fourth = objectMapper.readTree(sentMessages.get(3)).get("payload");
+        assertNull(fourth.get("launchContextDelta"));
+        assertEquals(2, fourth.get("launchContext").size());
+
+        // A new page gets the full context again
+        handler.resetSession();
+        handler.sendSdcConfigureContextAsync(patient, null, user, null);
+        JsonNode fifth = objectMapper.readTree(sentMessages.get(4)).get("payload");
+        assertNull(fifth.get("launchContextDelta"));
+        assertEquals(2, fifth.get("launchContext").size());
+    }
+
+    @Test
+    void sendBatchAsync_sendsRequestsInOneTransportCall() throws Exception {
+        List<List<String>> batches = new ArrayList<>();
+        handler.setMessageSender(new AbstractSmartMessageHandler.MessageSender() {
+            @Override
+            public CompletableFuture<String> sendMessage(String jsonMessage) {
+                batches.add(Collections.singletonList(jsonMessage));
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletableFuture<String> sendMessages(List<String> jsonMessages) {
+                batches.add(new ArrayList<>(jsonMessages));
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+
+        Patient patient = new Patient();
+        patient.setId("patient-123");
+        List<CompletableFuture<String>> sends = new ArrayList<>();
+        CompletableFuture<String> batch = handler.sendBatchAsync(() -> {
+            sends.add(handler.sendSdcConfigureContextAsync(patient, null, (Practitioner) null, null));
+            sends.add(handler.sendSdcDisplayQuestionnaireAsync(new Questionnaire(), null, patient, null, (Practitioner) null, null));
+            assertFalse(sends.get(0).isDone());
+        });
+
+        assertTrue(batch.isDone());
+        // The display waits for the page to acknowledge it
+        assertTrue(sends.get(0).isDone() && !sends.get(1).isDone());
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals("sdc.configureContext", objectMapper.readTree(batches.get(0).get(0)).get("messageType").asText());
+        assertEquals("sdc.displayQuestionnaire", objectMapper.readTree(batches.get(0).get(1)).get("messageType").asText());
+
+        // A failing batch sends nothing and drops its response listeners
+        assertThrows(IllegalStateException.class, () -> handler.sendBatchAsync(() -> {
+            handler.sendFormRequestSubmitAsync(response -> { });
+            throw new IllegalStateException("boom");
+        }));
+        assertEquals(1, batches.size());
+        // Only the display of the first batch is still waiting for its acknowledgement
+        assertEquals(1, handler.getResponseListenerStats().getPending());
+    }
+
+    @Test
+    void messageSender_receivesTypeAndIdOfRequests() throws Exception {
+        List<String> sent = new ArrayList<>();
+        handler.setMessageSender(new AbstractSmartMessageHandler.MessageSender() {
+            @Override
+            public CompletableFuture<String> sendMessage(String jsonMessage) {
+                throw new AssertionError("Requests are sent with their type and ID");
+            }
+
+            @Override
+            public CompletableFuture<String> sendRequest(String messageType, String messageId, String jsonMessage) {
+                sent.add(messageType + " " + messageId);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            public CompletableFuture<String> sendRequests(List<String> messageTypes, List<String> messageIds,
+                                                          List<String> jsonMessages) {
+                assertEquals(messageTypes.size(), jsonMessages.size());
+                for (int i = 0; i < jsonMessages.size(); i++) {
+                    assertEquals(handler.getMessageIdFromJson(jsonMessages.get(i)), messageIds.get(i));
+                    sent.add(messageTypes.get(i) + " " + messageIds.get(i));
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+        AtomicInteger nextId = new AtomicInteger();
+        handler.setMessageIdGenerator(() -> "id-" + nextId.incrementAndGet());
+
+        handler.sendFormRequestSubmitAsync(null).get(1, TimeUnit.SECONDS);
+        handler.sendBatchAsync(() -> {
+            handler.sendSdcConfigureContextAsync(null, null, (Practitioner) null, null);
+            handler.sendSdcDisplayQuestionnaireAsync(new Questionnaire(), null, null, null, (Practitioner) null, null);
+        }).get(1, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("ui.form.requestSubmit id-1", "sdc.configureContext id-2",
+                "sdc.displayQuestionnaire id-3"), sent);
+    }
+
     @Test
     void sendSdcDisplayQuestionnaireAsync_partialContext() throws Exception {
         AtomicReference<String> sentMessage = new AtomicReference<>();
@@ -4,6 +4,7 @@ import ca.uhn.fhir.context.FhirContext;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import health.tiro.swm.AbstractSmartMessageHandler;
+import health.tiro.swm.SmartMessagingRuntime;
 import health.tiro.swm.message.SmartMessageResponse;
 import health.tiro.swm.message.payload.LaunchContext;
 import org.hl7.fhir.instance.model.api.IBaseReference;
@@ -39,6 +40,22 @@ public class SmartMessageHandler extends AbstractSmartMessageHandler {
         super(customFhirContext != null ? customFhirContext : FhirContext.forR5Cached(), customObjectMapper);
     }
 
+    /**
+     * Creates a session handler sharing the resources of the given runtime.
+     *
+     * @see #runtimeBuilder()
+     */
+    public SmartMessageHandler(SmartMessagingRuntime<?> runtime) {
+        super(runtime);
+    }
+
+    /**
+     * A builder for a runtime of R5 session handlers, using the cached R5 FhirContext.
+     */
+    public static SmartMessagingRuntime.Builder<SmartMessageHandler> runtimeBuilder() {
+        return SmartMessagingRuntime.builder(FhirContext.forR5Cached(), SmartMessageHandler::new);
+    }
+
     @Override
     protected ObjectNode serializeReference(IBaseReference ref) {
         Reference r5Ref = (Reference) ref;
@@ -0,0 +1,166 @@
+package health.tiro.swm.r5;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import health.tiro.swm.SmartMessagingRuntime;
+import health.tiro.swm.events.FormSubmittedEvent;
+import health.tiro.swm.events.SmartMessageListener;
+import org.hl7.fhir.r5.model.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Many sessions handling form submissions and sending questionnaires on several threads at once.
+ */
+class ConcurrentSessionsTest {
+
+    private static final int SESSIONS = 16;
+    private static final int SUBMISSIONS_PER_SESSION = 50;
+    private static final int THREADS = 8;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void parallelFormSubmissionsFromManySessions() throws Exception {
+        try (SmartMessagingRuntime<SmartMessageHandler> runtime = SmartMessageHandler.runtimeBuilder()
+                .workerThreads(THREADS)
+                .build()) {
+            Map<String, Queue<String>> received = new ConcurrentHashMap<>();
+            Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+            for (int s = 0; s < SESSIONS; s++) {
+                String sessionId = "session-" + s;
+                Queue<String> sessionReceived = new ConcurrentLinkedQueue<>();
+                received.put(sessionId, sessionReceived);
+                runtime.openSession(sessionId).addListener(new SmartMessageListener() {
+                    @Override
+                    public void onFormSubmitted(FormSubmittedEvent event) {
+                        QuestionnaireResponse response = (QuestionnaireResponse) event.getResponse();
+                        String answer = response.getItemFirstRep().getAnswerFirstRep().getValueStringType().getValue();
+                        if (!response.getIdElement().getIdPart().equals(answer)) {
+                            failures.add(new AssertionError("Mixed up submission: " + response.getIdElement().getIdPart() + " / " + answer));
+                        }
+                        sessionReceived.add(answer);
+                    }
+                });
+            }
+
+            // Every thread submits to every session, so each handler is used by many threads at once
+            ExecutorService submitters = Executors.newFixedThreadPool(THREADS);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(submitters.submit(() -> {
+                    start.await();
+                    for (int i = thread; i < SUBMISSIONS_PER_SESSION; i += THREADS) {
+                        for (int s = 0; s < SESSIONS; s++) {
+                            String sessionId = "session-" + s;
+                            String id = sessionId + "-qr-" + i;
+                            String ack = runtime.getSession(sessionId).handleMessage(formSubmitted(id));
+                            JsonNode ackNode = objectMapper.readTree(ack);
+                            assertEquals("msg-" + id, ackNode.get("responseToMessageId").asText());
+                            assertFalse(ackNode.get("payload").has("errorMessage"), ack);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            submitters.shutdown();
+
+            assertTrue(failures.isEmpty(), () -> failures.peek().toString());
+            for (int s = 0; s < SESSIONS; s++) {
+                Queue<String> sessionReceived = received.get("session-" + s);
+                assertEquals(SUBMISSIONS_PER_SESSION, sessionReceived.size());
+                for (String answer : sessionReceived) {
+                    assertTrue(answer.startsWith("session-" + s + "-qr-"), answer);
+                }
+                assertEquals(SUBMISSIONS_PER_SESSION, sessionReceived.stream().distinct().count());
+            }
+        }
+    }
+
+    @Test
+    void parallelQuestionnaireEncodingFromManySessions() throws Exception {
+        try (SmartMessagingRuntime<SmartMessageHandler> runtime = SmartMessageHandler.runtimeBuilder()
+                .workerThreads(THREADS)
+                .build()) {
+            Queue<String> sent = new ConcurrentLinkedQueue<>();
+            for (int s = 0; s < SESSIONS; s++) {
+                runtime.openSession("session-" + s).setMessageSender(json -> {
+                    sent.add(json);
+                    return CompletableFuture.completedFuture(null);
+                });
+            }
+
+            ExecutorService senders = Executors.newFixedThreadPool(THREADS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int s = 0; s < SESSIONS; s++) {
+                SmartMessageHandler handler = runtime.getSession("session-" + s);
+                for (int i = 0; i < SUBMISSIONS_PER_SESSION; i++) {
+                    String id = "session-" + s + "-q-" + i;
+                    futures.add(senders.submit(() -> {
+                        Questionnaire questionnaire = new Questionnaire();
+                        questionnaire.setId(id);
+                        questionnaire.setTitle(id);
+                        Patient patient = new Patient();
+                        patient.setId(id);
+                        // Delivered at once; the page's acknowledgement is not simulated here
+                        CompletableFuture<String> display = handler.sendSdcDisplayQuestionnaireAsync(
+                                questionnaire, null, patient, null, (Practitioner) null, null);
+                        assertFalse(display.isCompletedExceptionally());
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+            senders.shutdown();
+
+            assertEquals(SESSIONS * SUBMISSIONS_PER_SESSION, sent.size());
+            for (String json : sent) {
+                JsonNode payload = objectMapper.readTree(json).get("payload");
+                String title = payload.get("questionnaire").get("title").asText();
+                assertEquals(title, payload.get("questionnaire").get("id").asText());
+                assertEquals(title, payload.get("context").get("launchContext").get(0)
+                        .get("contentResource").get("id").asText());
+            }
+        }
+    }
+
+    private static String formSubmitted(String id) {
+        return "{"
+                + "\"messageId\": \"msg-" + id + "\","
+                + "\"messagingHandle\": \"smart-web-messaging\","
+                + "\"messageType\": \"form.submitted\","
+                + "\"payload\": {"
+                + "  \"response\": {"
+                + "    \"resourceType\": \"QuestionnaireResponse\","
+                + "    \"id\": \"" + id + "\","
+                + "    \"status\": \"completed\","
+                + "    \"questionnaire\": \"http://example.org/Questionnaire/test\","
+                + "    \"item\": [{\"linkId\": \"1\", \"answer\": [{\"valueString\": \"" + id + "\"}]}]"
+                + "  },"
+                + "  \"outcome\": {\"resourceType\": \"OperationOutcome\", \"issue\": []}"
+                + "}"
+                + "}";
+    }
+}